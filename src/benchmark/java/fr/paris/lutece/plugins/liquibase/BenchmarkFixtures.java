@@ -0,0 +1,187 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import fr.paris.lutece.portal.service.util.AppPathService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+import fr.paris.lutece.utils.sql.SqlRegexpHelper;
+
+/**
+ * Generates the data used by the benchmarks.
+ *
+ * Everything is generated from a fixed seed, so that runs on different commits measure the same work.
+ */
+final class BenchmarkFixtures
+{
+    private static final long SEED = 42;
+    private static final String BUILD_PROPERTIES = "/sql/build.properties";
+
+    private BenchmarkFixtures()
+    {
+    }
+
+    /**
+     * Creates a minimal webapp directory and initializes the Lutece path and properties services on it
+     *
+     * @param properties content of WEB-INF/conf/config.properties
+     * @return the webapp directory
+     * @throws Exception
+     */
+    static File initWebapp(String properties) throws Exception
+    {
+        File webapp = Files.createTempDirectory("liquibase-bench").toFile();
+        Path conf = webapp.toPath().resolve("WEB-INF/conf");
+        Files.createDirectories(conf.resolve("plugins"));
+        Files.createDirectories(webapp.toPath().resolve("WEB-INF/plugins"));
+        Files.write(conf.resolve("config.properties"), properties.getBytes(StandardCharsets.ISO_8859_1));
+        AppPathService.init(webapp.getAbsolutePath());
+        AppPropertiesService.init(conf.toString() + File.separator);
+        return webapp;
+    }
+
+    /**
+     * Names of synthetic plugins
+     */
+    static List<String> pluginNames(int count)
+    {
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            names.add("bench" + i);
+        return names;
+    }
+
+    /**
+     * Writes one descriptor per plugin, shaped like real ones (name and version near the top, followed by the feature declarations), and a core
+     * descriptor
+     */
+    static void writeDescriptors(File pluginDir, File coreXml, List<String> plugins) throws IOException
+    {
+        writeDescriptors(pluginDir, coreXml, plugins, null);
+    }
+
+    /**
+     * Same as writeDescriptors(pluginDir, coreXml, plugins), all plugins having the given version
+     *
+     * @param version version of the plugins, or null for version(plugin)
+     */
+    static void writeDescriptors(File pluginDir, File coreXml, List<String> plugins, String version) throws IOException
+    {
+        Files.createDirectories(pluginDir.toPath());
+        for (String plugin : plugins)
+            writeDescriptor(new File(pluginDir, plugin + ".xml"), plugin, version == null ? version(plugin) : version);
+        writeDescriptor(coreXml, "core", "7.1.4");
+    }
+
+    private static void writeDescriptor(File file, String name, String version) throws IOException
+    {
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))
+        {
+            writer.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><plug-in>\n");
+            writer.append("    <name>").append(name).append("</name>\n");
+            writer.append("    <class>fr.paris.lutece.portal.service.plugin.PluginDefaultImplementation</class>\n");
+            writer.append("    <version>").append(version).append("</version>\n");
+            writer.append("    <description>").append(name).append(".plugin.description</description>\n");
+            writer.append("    <db-pool-required>1</db-pool-required>\n");
+            writer.append("    <admin-features>\n");
+            for (int i = 0; i < 20; i++)
+            {
+                writer.append("        <admin-feature>\n");
+                writer.append("            <feature-id>").append(name.toUpperCase()).append("_FEATURE_").append(String.valueOf(i)).append("</feature-id>\n");
+                writer.append("            <feature-title>").append(name).append(".feature").append(String.valueOf(i)).append(".title</feature-title>\n");
+                writer.append("            <feature-url>jsp/admin/plugins/").append(name).append("/Manage").append(String.valueOf(i)).append(".jsp</feature-url>\n");
+                writer.append("        </admin-feature>\n");
+            }
+            writer.append("    </admin-features>\n</plug-in>\n");
+        }
+    }
+
+    /**
+     * Version of a synthetic plugin
+     */
+    static String version(String plugin)
+    {
+        return "2." + (plugin.hashCode() & 7) + ".0";
+    }
+
+    /**
+     * Paths of the SQL files of the plugins : a create script and a chain of update scripts each
+     */
+    static List<String> sqlPaths(List<String> plugins, int updatesPerPlugin)
+    {
+        List<String> paths = new ArrayList<>();
+        for (String plugin : plugins)
+        {
+            paths.add("sql/plugins/" + plugin + "/plugin/create_db_" + plugin + ".sql");
+            for (int i = 0; i < updatesPerPlugin; i++)
+                paths.add("sql/plugins/" + plugin + "/upgrade/update_db_" + plugin + "-1." + i + ".0-1." + (i + 1) + ".0.sql");
+        }
+        paths.add("sql/plugins/" + plugins.get(0) + "/plugin/init_db_" + plugins.get(0) + ".txt");
+        return paths;
+    }
+
+    /**
+     * Writes an init script shaped like the large ones of real plugins : a few table definitions followed by many single line inserts
+     *
+     * @param file  target file
+     * @param lines approximate number of lines
+     */
+    static void writeInitScript(File file, int lines) throws IOException
+    {
+        Random random = new Random(SEED);
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))
+        {
+            for (int t = 0; t < 10; t++)
+            {
+                writer.append("--\n-- Structure for table bench_table_").append(String.valueOf(t)).append("\n--\n");
+                writer.append("DROP TABLE IF EXISTS bench_table_").append(String.valueOf(t)).append(";\n");
+                writer.append("CREATE TABLE bench_table_").append(String.valueOf(t)).append(" (\n");
+                writer.append("id_entry int AUTO_INCREMENT,\n");
+                writer.append("title varchar(255) default '' NOT NULL,\n");
+                writer.append("content long varchar,\n");
+                writer.append("is_enabled SMALLINT default 0 NOT NULL,\n");
+                writer.append("date_creation timestamp default CURRENT_TIMESTAMP NOT NULL,\n");
+                writer.append("PRIMARY KEY (id_entry)\n);\n");
+            }
+            for (int i = 0; i < lines; i++)
+            {
+                writer.append("INSERT INTO bench_table_").append(String.valueOf(i % 10)).append(" (id_entry, title, content, is_enabled) VALUES (")
+                        .append(String.valueOf(i)).append(",'Entrée n°").append(String.valueOf(random.nextInt(100000))).append("','")
+                        .append(Long.toHexString(random.nextLong())).append(" l''été ").append(Long.toHexString(random.nextLong())).append("',")
+                        .append(String.valueOf(random.nextInt(2))).append(");\n");
+            }
+        }
+    }
+
+    /**
+     * Filtering rules for a dialect : those of the classpath when available (as at runtime), none otherwise
+     */
+    static SqlRegexpHelper helper(String dialect)
+    {
+        return new SqlRegexpHelper(() -> {
+            InputStream in = BenchmarkFixtures.class.getResourceAsStream(BUILD_PROPERTIES);
+            return in != null ? in : new ByteArrayInputStream(new byte[0]);
+        }, dialect);
+    }
+
+    static void delete(File dir) throws IOException
+    {
+        if (dir == null || !dir.exists())
+            return;
+        try (Stream<Path> paths = Files.walk(dir.toPath()))
+        {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
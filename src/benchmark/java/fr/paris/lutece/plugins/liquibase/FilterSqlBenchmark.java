@@ -0,0 +1,93 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import liquibase.resource.DirectoryResourceAccessor;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Reading a large init script through RegexpFilteringResourceAccessor : filtering (no cache), and replay of the filtered content (cache hit).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FilterSqlBenchmark
+{
+    private static final String SCRIPT = "sql/plugins/bench/plugin/init_db_bench.sql";
+
+    @Param({ "mysql", "postgresql", "oracle" })
+    public String dialect;
+
+    @Param({ "10000", "200000" })
+    public int lines;
+
+    private File webapp;
+    private ResourceAccessor filtering;
+    private ResourceAccessor replaying;
+    private final byte[] buffer = new byte[8192];
+
+    @Setup
+    public void setup() throws Exception
+    {
+        webapp = BenchmarkFixtures.initWebapp("");
+        File sqlRoot = new File(webapp, "WEB-INF/classes");
+        File script = new File(sqlRoot, SCRIPT);
+        script.getParentFile().mkdirs();
+        BenchmarkFixtures.writeInitScript(script, lines);
+        // an empty cache keeps nothing : every read filters the file
+        filtering = new RegexpFilteringResourceAccessor(new DirectoryResourceAccessor(sqlRoot), BenchmarkFixtures.helper(dialect), new FilteredSqlCache(0),
+                dialect);
+        replaying = new RegexpFilteringResourceAccessor(new DirectoryResourceAccessor(sqlRoot), BenchmarkFixtures.helper(dialect),
+                new FilteredSqlCache(Long.MAX_VALUE), dialect);
+        read(replaying);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        filtering.close();
+        replaying.close();
+        BenchmarkFixtures.delete(webapp);
+    }
+
+    @Benchmark
+    public long filter() throws Exception
+    {
+        return read(filtering);
+    }
+
+    @Benchmark
+    public long replay() throws Exception
+    {
+        return read(replaying);
+    }
+
+    private long read(ResourceAccessor accessor) throws Exception
+    {
+        long size = 0;
+        try (InputStream in = accessor.get(SCRIPT).openInputStream())
+        {
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer))
+                size += read;
+        }
+        return size;
+    }
+}
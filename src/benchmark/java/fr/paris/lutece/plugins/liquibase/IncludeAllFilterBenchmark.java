@@ -0,0 +1,110 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.paris.lutece.plugins.liquibase.filters.TestIncludeAllFilter;
+
+/**
+ * TestIncludeAllFilter.include() over the SQL files of many plugins, on an empty database (create scripts) and on an installed one (update scripts).
+ *
+ * The context probes run against an in-memory HSQLDB database ; plugin status entries are preloaded, as at runtime. The lutece loggers are raised to
+ * WARN while the benchmark runs, so that the filter is measured rather than its INFO logging.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class IncludeAllFilterBenchmark
+{
+    private static final String PROPERTIES = "liquibase.first.run.request=SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME='DATABASECHANGELOG'\n"
+            + "liquibase.empty.db.request=SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA='PUBLIC'\n";
+    private static final String STATUS_PREFIX = "core.plugins.status.";
+    private static final String LOGGER_LUTECE = "lutece";
+
+    @Param({ "create", "update" })
+    public String scenario;
+
+    @Param({ "200" })
+    public int plugins;
+
+    @Param({ "20" })
+    public int updatesPerPlugin;
+
+    private File webapp;
+    private Connection connection;
+    private List<String> paths;
+    private final TestIncludeAllFilter filter = new TestIncludeAllFilter();
+
+    @Setup
+    public void setup() throws Exception
+    {
+        Configurator.setAllLevels(LOGGER_LUTECE, Level.WARN);
+        webapp = BenchmarkFixtures.initWebapp(PROPERTIES);
+        List<String> names = BenchmarkFixtures.pluginNames(plugins);
+        BenchmarkFixtures.writeDescriptors(new File(webapp, "WEB-INF/plugins"), new File(webapp, "WEB-INF/conf/core.xml"), names);
+        PluginMeta.preloadMeta(new File(webapp, "WEB-INF/plugins"), new File(webapp, "WEB-INF/conf/core.xml"), null);
+        paths = BenchmarkFixtures.sqlPaths(names, updatesPerPlugin);
+
+        connection = DriverManager.getConnection("jdbc:hsqldb:mem:include_" + scenario, "SA", "");
+        Map<String, String> pluginsStatus = new HashMap<>();
+        if ("update".equals(scenario))
+        {
+            try (Statement statement = connection.createStatement())
+            {
+                statement.execute("CREATE TABLE IF NOT EXISTS DATABASECHANGELOG (ID VARCHAR(255))");
+            }
+            // half of the plugins installed halfway through their updates, the other half new
+            for (int i = 0; i < names.size(); i += 2)
+            {
+                pluginsStatus.put(STATUS_PREFIX + names.get(i) + ".version", "1." + updatesPerPlugin / 2 + ".0");
+                pluginsStatus.put(STATUS_PREFIX + names.get(i) + ".lastRunScriptType", LiquibaseRunnerContext.LAST_RUN_SCRIPT_TYPE_UPDATE);
+            }
+        }
+        LiquibaseRunnerContext.init(connection, null, null, pluginsStatus);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        LiquibaseRunnerContext.release();
+        connection.close();
+        BenchmarkFixtures.delete(webapp);
+        // back to the levels of the log4j configuration
+        LoggerContext.getContext(false).reconfigure();
+    }
+
+    @Benchmark
+    public int include()
+    {
+        int included = 0;
+        for (String path : paths)
+            if (filter.include(path))
+                included++;
+        return included;
+    }
+}
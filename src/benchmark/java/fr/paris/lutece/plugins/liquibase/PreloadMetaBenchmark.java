@@ -0,0 +1,78 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PluginMeta.preloadMeta() over a generated directory of plugin descriptors : parsing every descriptor, reusing those parsed by a previous preload, and
+ * reading them from the cache file (as on a restart).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PreloadMetaBenchmark
+{
+    @Param({ "20", "200" })
+    public int plugins;
+
+    private File webapp;
+    private File pluginDir;
+    private File coreXml;
+    private File cacheFile;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        webapp = BenchmarkFixtures.initWebapp("");
+        pluginDir = new File(webapp, "WEB-INF/plugins");
+        coreXml = new File(webapp, "WEB-INF/conf/core.xml");
+        cacheFile = new File(webapp, "WEB-INF/cache/plugins-meta.properties");
+        BenchmarkFixtures.writeDescriptors(pluginDir, coreXml, BenchmarkFixtures.pluginNames(plugins));
+        PluginMeta.preloadMeta(pluginDir, coreXml, cacheFile);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        BenchmarkFixtures.delete(webapp);
+    }
+
+    @Benchmark
+    public String parse() throws Exception
+    {
+        PluginMeta.clearCache();
+        PluginMeta.preloadMeta(pluginDir, coreXml, null);
+        return PluginMeta.getPluginVersion("core");
+    }
+
+    @Benchmark
+    public String unchanged() throws Exception
+    {
+        PluginMeta.preloadMeta(pluginDir, coreXml, null);
+        return PluginMeta.getPluginVersion("core");
+    }
+
+    @Benchmark
+    public String cacheFile() throws Exception
+    {
+        PluginMeta.clearCache();
+        PluginMeta.preloadMeta(pluginDir, coreXml, cacheFile);
+        return PluginMeta.getPluginVersion("core");
+    }
+}
@@ -0,0 +1,198 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Installs the same synthetic webapp twice on in-memory HSQLDB databases : with its scripts, taking a snapshot, then from that snapshot. Compares the
+ * tables, their columns and row counts, and the next value of their identity columns : exits with 1 if the bootstrapped database differs from the
+ * scripted one.
+ *
+ * Usage : SnapshotSmokeCheck
+ */
+public final class SnapshotSmokeCheck
+{
+    private static final String PROPERTIES = "path.conf=/WEB-INF/conf/\npath.plugins=/WEB-INF/plugins/\n"
+            + "liquibase.first.run.request=SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME='DATABASECHANGELOG'\n"
+            + "liquibase.empty.db.request=SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA='PUBLIC'\n"
+            + "liquibase.snapshot.enabled=true\nliquibase.snapshot.export=true\n";
+    private static final int PLUGINS = 3;
+    private static final int ROWS = 50;
+    // the lock table only differs by the time of the last lock
+    private static final String LOCK_TABLE = "DATABASECHANGELOGLOCK";
+
+    private static String url;
+
+    private SnapshotSmokeCheck()
+    {
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        File webapp = BenchmarkFixtures.initWebapp(PROPERTIES);
+        Thread thread = Thread.currentThread();
+        ClassLoader previousLoader = thread.getContextClassLoader();
+        List<String> differences = new ArrayList<>();
+        try
+        {
+            List<String> names = BenchmarkFixtures.pluginNames(PLUGINS);
+            BenchmarkFixtures.writeDescriptors(new File(webapp, "WEB-INF/plugins"), new File(webapp, "WEB-INF/conf/core.xml"), names, "1.0.0");
+            File classes = new File(webapp, "WEB-INF/classes");
+            writeScripts(new File(classes, "sql"), names);
+            // liquibase looks for the SQL files with the context class loader
+            try (URLClassLoader sqlLoader = new URLClassLoader(new URL[] { classes.toURI().toURL() }, previousLoader))
+            {
+                thread.setContextClassLoader(sqlLoader);
+                // plugin versions are read and written with plain JDBC, as offline
+                Datastore.useConnections(SnapshotSmokeCheck::connection);
+                Map<String, String> scripted = install("jdbc:hsqldb:mem:snapshot_scripted");
+                if (!new File(webapp, "WEB-INF/plugins/liquibase/snapshots/hsqldb/snapshot.properties").isFile())
+                    differences.add("no snapshot was taken of the scripted install");
+                Map<String, String> bootstrapped = install("jdbc:hsqldb:mem:snapshot_bootstrapped");
+                for (String table : new TreeSet<>(scripted.keySet()))
+                {
+                    if (!Objects.equals(scripted.get(table), bootstrapped.get(table)))
+                        differences.add(table + " : " + bootstrapped.get(table) + " instead of " + scripted.get(table));
+                }
+                for (String table : bootstrapped.keySet())
+                {
+                    if (!scripted.containsKey(table))
+                        differences.add(table + " : not created by the scripts");
+                }
+            }
+        } finally
+        {
+            Datastore.useConnections(null);
+            thread.setContextClassLoader(previousLoader);
+            BenchmarkFixtures.delete(webapp);
+        }
+        if (!differences.isEmpty())
+        {
+            System.out.println("Snapshot bootstrap differs from the scripted install :");
+            differences.forEach(difference -> System.out.println("  " + difference));
+            System.exit(1);
+        }
+        System.out.println("Snapshot bootstrap matches the scripted install");
+    }
+
+    private static Connection connection() throws SQLException
+    {
+        return DriverManager.getConnection(url, "SA", "");
+    }
+
+    /**
+     * Installs the webapp on a new database
+     *
+     * @return the description of its tables, by table name
+     */
+    private static Map<String, String> install(String databaseUrl) throws SQLException
+    {
+        url = databaseUrl;
+        if (!new LiquibaseRunner(SnapshotSmokeCheck::connection, true).migrate())
+            throw new IllegalStateException("Could not install " + databaseUrl);
+        try (Connection connection = connection())
+        {
+            return describe(connection);
+        }
+    }
+
+    /**
+     * Describes the tables of a database : columns, row count, and the value given to a new row by their identity column if they have one
+     */
+    private static Map<String, String> describe(Connection connection) throws SQLException
+    {
+        Map<String, StringBuilder> tables = new TreeMap<>();
+        List<String[]> identities = new ArrayList<>();
+        DatabaseMetaData metaData = connection.getMetaData();
+        try (ResultSet columns = metaData.getColumns(null, "PUBLIC", "%", "%"))
+        {
+            while (columns.next())
+            {
+                String table = columns.getString("TABLE_NAME");
+                tables.computeIfAbsent(table, t -> new StringBuilder()).append(columns.getString("COLUMN_NAME")).append(' ')
+                        .append(columns.getString("TYPE_NAME")).append(", ");
+                if ("YES".equals(columns.getString("IS_AUTOINCREMENT")))
+                    identities.add(new String[] { table, columns.getString("COLUMN_NAME") });
+            }
+        }
+        tables.remove(LOCK_TABLE);
+        try (Statement statement = connection.createStatement())
+        {
+            for (Map.Entry<String, StringBuilder> table : tables.entrySet())
+            {
+                try (ResultSet count = statement.executeQuery("SELECT COUNT(*) FROM \"" + table.getKey() + "\""))
+                {
+                    count.next();
+                    table.getValue().append(count.getLong(1)).append(" rows");
+                }
+            }
+            for (String[] identity : identities)
+            {
+                statement.execute("INSERT INTO \"" + identity[0] + "\" (title) VALUES ('next')", Statement.RETURN_GENERATED_KEYS);
+                try (ResultSet keys = statement.getGeneratedKeys())
+                {
+                    keys.next();
+                    tables.get(identity[0]).append(", next ").append(identity[1]).append(' ').append(keys.getLong(1));
+                }
+            }
+        }
+        Map<String, String> description = new TreeMap<>();
+        tables.forEach((table, columns) -> description.put(table, columns.toString()));
+        return description;
+    }
+
+    /**
+     * Writes the SQL files of the core and of the plugins : a table with an identity column and a table keyed by the application, both loaded by
+     * the init script
+     */
+    private static void writeScripts(File sql, List<String> names) throws IOException
+    {
+        Files.createDirectories(sql.toPath());
+        write(new File(sql, "create_db_lutece_core.sql"), "DROP TABLE IF EXISTS core_datastore;\n"
+                + "CREATE TABLE core_datastore (\nentity_key VARCHAR(255) NOT NULL,\nentity_value LONGVARCHAR,\nPRIMARY KEY (entity_key)\n);\n");
+        write(new File(sql, "init_db_lutece_core.sql"), "INSERT INTO core_datastore (entity_key, entity_value) VALUES ('core.startup.time', '');\n");
+        for (String plugin : names)
+        {
+            File pluginDir = new File(sql, "plugins/" + plugin + "/plugin");
+            Files.createDirectories(pluginDir.toPath());
+            write(new File(pluginDir, "create_db_" + plugin + ".sql"), "CREATE TABLE " + plugin + "_entry (\n"
+                    + "id_entry INT GENERATED BY DEFAULT AS IDENTITY NOT NULL,\ntitle VARCHAR(255) DEFAULT '' NOT NULL,\nPRIMARY KEY (id_entry)\n);\n"
+                    + "CREATE TABLE " + plugin + "_attribute (\nattribute_key VARCHAR(50) NOT NULL,\nattribute_value VARCHAR(255),\n"
+                    + "PRIMARY KEY (attribute_key)\n);\n");
+            StringBuilder init = new StringBuilder();
+            for (int i = 1; i <= ROWS; i++)
+            {
+                init.append("INSERT INTO ").append(plugin).append("_entry (id_entry, title) VALUES (").append(i * 2).append(", 'Entrée ").append(i)
+                        .append("');\n");
+                init.append("INSERT INTO ").append(plugin).append("_attribute (attribute_key, attribute_value) VALUES ('key_").append(i)
+                        .append("', 'l''été ").append(i).append("');\n");
+            }
+            write(new File(pluginDir, "init_db_" + plugin + ".sql"), init.toString());
+        }
+    }
+
+    private static void write(File file, String content) throws IOException
+    {
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))
+        {
+            writer.append(content);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end LiquibaseRunner run over a synthetic webapp of many plugins, against an in-memory HSQLDB database, in the three cases
+ * TestIncludeAllFilter distinguishes :
+ * <ul>
+ * <li>empty : first install, the create and init scripts of all plugins run</li>
+ * <li>firstRun : the plugins are installed, but liquibase never ran on the database</li>
+ * <li>upgrade : liquibase installed the plugins, half of their update scripts run</li>
+ * </ul>
+ *
+ * Each iteration migrates a new database, prepared beforehand. Besides the wall time, the statements sent to the database (queries) and the bytes
+ * allocated by the migrating thread (allocatedBytes) are reported ; StartupRegressionCheck compares them to a baseline.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class StartupBenchmark
+{
+    private static final String PROPERTIES = "path.conf=/WEB-INF/conf/\npath.plugins=/WEB-INF/plugins/\n"
+            + "liquibase.first.run.request=SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME='DATABASECHANGELOG'\n"
+            + "liquibase.empty.db.request=SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA='PUBLIC'\n"
+            + "liquibase.metrics.jmx.enabled=false\n";
+    private static final int TABLES_PER_PLUGIN = 5;
+    private static final long SEED = 42;
+
+    @Param({ "empty", "firstRun", "upgrade" })
+    public String scenario;
+
+    @Param({ "30" })
+    public int plugins;
+
+    @Param({ "10" })
+    public int updatesPerPlugin;
+
+    @Param({ "300" })
+    public int initRows;
+
+    private File webapp;
+    private List<String> names;
+    private URLClassLoader sqlLoader;
+    private ClassLoader previousLoader;
+    private int databases;
+    private String url;
+    private final AtomicLong queries = new AtomicLong();
+
+    /**
+     * Counters reported with the wall time of each migration
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class StartupCounters
+    {
+        public long queries;
+        public long allocatedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            queries = 0;
+            allocatedBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception
+    {
+        webapp = BenchmarkFixtures.initWebapp(PROPERTIES);
+        names = BenchmarkFixtures.pluginNames(plugins);
+        File classes = new File(webapp, "WEB-INF/classes");
+        writeScripts(classes);
+        // liquibase looks for the SQL files with the context class loader
+        Thread thread = Thread.currentThread();
+        previousLoader = thread.getContextClassLoader();
+        sqlLoader = new URLClassLoader(new URL[] { classes.toURI().toURL() }, previousLoader);
+        thread.setContextClassLoader(sqlLoader);
+        // plugin versions are read and written with plain JDBC, as offline
+        Datastore.useConnections(this::connection);
+    }
+
+    @Setup(Level.Iteration)
+    public void prepare() throws Exception
+    {
+        url = "jdbc:hsqldb:mem:startup_" + scenario + "_" + databases++;
+        if (!"empty".equals(scenario))
+        {
+            // installed at the version reached halfway through the updates
+            writeDescriptors("1." + updatesPerPlugin / 2 + ".0");
+            if (!new LiquibaseRunner(this::connection, true).migrate())
+                throw new IllegalStateException("Could not prepare the " + scenario + " database");
+            if ("firstRun".equals(scenario))
+            {
+                try (Connection connection = connection(); Statement statement = connection.createStatement())
+                {
+                    statement.execute("DROP TABLE DATABASECHANGELOG");
+                    statement.execute("DROP TABLE DATABASECHANGELOGLOCK");
+                }
+            }
+        }
+        writeDescriptors("1." + updatesPerPlugin + ".0");
+        queries.set(0);
+    }
+
+    @Benchmark
+    public boolean migrate(StartupCounters counters)
+    {
+        long allocated = allocatedBytes();
+        boolean success = new LiquibaseRunner(this::connection, true).migrate();
+        counters.allocatedBytes += allocatedBytes() - allocated;
+        counters.queries += queries.get();
+        if (!success)
+            throw new IllegalStateException("The " + scenario + " migration failed");
+        return success;
+    }
+
+    @TearDown(Level.Iteration)
+    public void drop() throws Exception
+    {
+        try (Connection connection = DriverManager.getConnection(url, "SA", ""); Statement statement = connection.createStatement())
+        {
+            statement.execute("SHUTDOWN");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        Datastore.useConnections(null);
+        Thread.currentThread().setContextClassLoader(previousLoader);
+        sqlLoader.close();
+        BenchmarkFixtures.delete(webapp);
+    }
+
+    private void writeDescriptors(String version) throws Exception
+    {
+        BenchmarkFixtures.writeDescriptors(new File(webapp, "WEB-INF/plugins"), new File(webapp, "WEB-INF/conf/core.xml"), names, version);
+        // descriptors rewritten within the same second may keep their size and modification time
+        PluginMeta.clearCache();
+    }
+
+    /**
+     * Connection to the database of the iteration, counting the statements run through it
+     */
+    private Connection connection() throws SQLException
+    {
+        Connection connection = DriverManager.getConnection(url, "SA", "");
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+            Object result = invoke(connection, method, args);
+            return result instanceof Statement ? counting((Statement) result, method.getReturnType()) : result;
+        });
+    }
+
+    private Object counting(Statement statement, Class<?> type)
+    {
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            // a batch counts as the statements it holds
+            if (method.getName().equals("addBatch") || (method.getName().startsWith("execute") && !method.getName().equals("executeBatch")))
+                queries.incrementAndGet();
+            return invoke(statement, method, args);
+        });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable
+    {
+        try
+        {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e)
+        {
+            throw e.getCause();
+        }
+    }
+
+    private static long allocatedBytes()
+    {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Writes the SQL files of the core and of the plugins, shaped like real ones : a create script of a few tables, an init script of single line
+     * inserts, and a chain of small update scripts altering the tables and adding new ones.
+     *
+     * A raw SQL file runs as one JDBC statement, which HSQLDB compiles as a whole : no statement of a file uses an object created by the same file.
+     */
+    private void writeScripts(File classes) throws IOException
+    {
+        Random random = new Random(SEED);
+        File sql = new File(classes, "sql");
+        Files.createDirectories(sql.toPath());
+        write(new File(sql, "create_db_lutece_core.sql"), "DROP TABLE IF EXISTS core_datastore;\n"
+                + "CREATE TABLE core_datastore (\nentity_key VARCHAR(255) NOT NULL,\nentity_value LONGVARCHAR,\nPRIMARY KEY (entity_key)\n);\n");
+        write(new File(sql, "init_db_lutece_core.sql"), "INSERT INTO core_datastore (entity_key, entity_value) VALUES ('core.startup.time', '');\n");
+        for (String plugin : names)
+        {
+            File pluginDir = new File(sql, "plugins/" + plugin + "/plugin");
+            File upgradeDir = new File(sql, "plugins/" + plugin + "/upgrade");
+            Files.createDirectories(pluginDir.toPath());
+            Files.createDirectories(upgradeDir.toPath());
+            StringBuilder create = new StringBuilder();
+            for (int t = 0; t < TABLES_PER_PLUGIN; t++)
+            {
+                String table = plugin + "_table_" + t;
+                create.append("--\n-- Structure for table ").append(table).append("\n--\n");
+                create.append("DROP TABLE IF EXISTS ").append(table).append(";\n");
+                create.append("CREATE TABLE ").append(table).append(" (\n");
+                create.append("id_entry INT NOT NULL,\n");
+                create.append("title VARCHAR(255) DEFAULT '' NOT NULL,\n");
+                create.append("content LONGVARCHAR,\n");
+                create.append("is_enabled SMALLINT DEFAULT 0 NOT NULL,\n");
+                create.append("date_creation TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL,\n");
+                create.append("PRIMARY KEY (id_entry)\n);\n\n");
+            }
+            write(new File(pluginDir, "create_db_" + plugin + ".sql"), create.toString());
+            StringBuilder init = new StringBuilder();
+            for (int i = 0; i < initRows; i++)
+            {
+                init.append("INSERT INTO ").append(plugin).append("_table_").append(i % TABLES_PER_PLUGIN)
+                        .append(" (id_entry, title, content, is_enabled) VALUES (").append(i).append(",'Entrée n°").append(random.nextInt(100000))
+                        .append("','").append(Long.toHexString(random.nextLong())).append(" l''été ").append(Long.toHexString(random.nextLong()))
+                        .append("',").append(random.nextInt(2)).append(");\n");
+            }
+            write(new File(pluginDir, "init_db_" + plugin + ".sql"), init.toString());
+            for (int u = 0; u < updatesPerPlugin; u++)
+            {
+                String table = plugin + "_table_" + u % TABLES_PER_PLUGIN;
+                String added = plugin + "_update_" + u;
+                StringBuilder update = new StringBuilder();
+                update.append("ALTER TABLE ").append(table).append(" ADD COLUMN attribute_").append(u).append(" VARCHAR(50) DEFAULT NULL;\n");
+                update.append("UPDATE ").append(table).append(" SET is_enabled = 1 WHERE id_entry < ").append(u * 10).append(";\n");
+                for (int i = 0; i < 10; i++)
+                    update.append("INSERT INTO ").append(table).append(" (id_entry, title, content, is_enabled) VALUES (").append(initRows + u * 10 + i)
+                            .append(",'Mise à jour ").append(u).append("','").append(Long.toHexString(random.nextLong())).append("',1);\n");
+                update.append("CREATE TABLE ").append(added).append(" (\nid_entry INT NOT NULL,\nid_parent INT NOT NULL,\nentry_value VARCHAR(255),\n")
+                        .append("PRIMARY KEY (id_entry)\n);\n");
+                write(new File(upgradeDir, "update_db_" + plugin + "-1." + u + ".0-1." + (u + 1) + ".0.sql"), update.toString());
+            }
+        }
+    }
+
+    private static void write(File file, String content) throws IOException
+    {
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))
+        {
+            writer.append(content);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+
+/**
+ * Reports the results of StartupBenchmark in a JMH JSON result file, and compares them to those of a baseline result file (for instance the one of
+ * the main branch) : exits with 1 if the wall time, the queries or the allocations of a scenario exceed the baseline by more than the threshold.
+ *
+ * Usage : StartupRegressionCheck &lt;result file&gt;, with the system properties startup.baseline (baseline result file, none for a report only)
+ * and startup.threshold (allowed increase, in percent, 20 by default).
+ */
+public final class StartupRegressionCheck
+{
+    private static final String BENCHMARK = StartupBenchmark.class.getName() + ".migrate";
+    private static final String BASELINE = "startup.baseline";
+    private static final String THRESHOLD = "startup.threshold";
+    private static final String[] METRICS = { "time", "queries", "allocatedBytes" };
+
+    private StartupRegressionCheck()
+    {
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        File results = new File(args[0]);
+        if (!results.isFile())
+        {
+            System.out.println("No benchmark result in " + results);
+            return;
+        }
+        String baselinePath = System.getProperty(BASELINE, "");
+        double threshold = Double.parseDouble(System.getProperty(THRESHOLD, "20"));
+        Map<String, Map<String, Double>> current = read(results);
+        Map<String, Map<String, Double>> baseline = baselinePath.isEmpty() ? new LinkedHashMap<>() : read(new File(baselinePath));
+        if (current.isEmpty())
+            return;
+
+        List<String> regressions = new ArrayList<>();
+        System.out.println("Startup benchmark" + (baselinePath.isEmpty() ? "" : ", compared to " + baselinePath + " (threshold " + threshold + "%)"));
+        System.out.println(String.format("%-70s %16s %16s %18s", "Scenario", "time (ms)", "queries", "allocated (MB)"));
+        for (Map.Entry<String, Map<String, Double>> result : current.entrySet())
+        {
+            Map<String, Double> metrics = result.getValue();
+            Map<String, Double> reference = baseline.get(result.getKey());
+            System.out.println(String.format("%-70s %16s %16s %18s", result.getKey(), format(metrics, reference, "time", 1),
+                    format(metrics, reference, "queries", 1), format(metrics, reference, "allocatedBytes", 1024 * 1024)));
+            if (reference == null)
+                continue;
+            for (String metric : METRICS)
+            {
+                Double value = metrics.get(metric);
+                Double referenceValue = reference.get(metric);
+                if (value != null && referenceValue != null && value > referenceValue * (1 + threshold / 100))
+                    regressions.add(result.getKey() + " " + metric + " : " + String.format("%.1f", value) + " instead of " + String.format("%.1f", referenceValue));
+            }
+        }
+        if (!regressions.isEmpty())
+        {
+            System.out.println("Startup regressions above " + threshold + "% :");
+            regressions.forEach(regression -> System.out.println("  " + regression));
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return the metrics of each StartupBenchmark result, by parameters
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Map<String, Double>> read(File file) throws IOException
+    {
+        List<Map<String, Object>> results;
+        // a JSON document is a YAML one
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+        {
+            results = new Yaml(new SafeConstructor(new LoaderOptions())).load(reader);
+        }
+        Map<String, Map<String, Double>> metrics = new LinkedHashMap<>();
+        for (Map<String, Object> result : results)
+        {
+            if (!BENCHMARK.equals(result.get("benchmark")))
+                continue;
+            Map<String, Double> values = new LinkedHashMap<>();
+            values.put("time", score(result.get("primaryMetric")));
+            Map<String, Object> secondary = (Map<String, Object>) result.get("secondaryMetrics");
+            if (secondary != null)
+            {
+                for (String metric : METRICS)
+                {
+                    if (!metric.equals("time") && secondary.containsKey(metric))
+                        values.put(metric, score(secondary.get(metric)));
+                }
+            }
+            metrics.put(String.valueOf(result.get("params")), values);
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the mean value of a metric over the measurement iterations : JMH sums the counters of the iterations in their score
+     */
+    @SuppressWarnings("unchecked")
+    private static Double score(Object metric)
+    {
+        List<List<Number>> rawData = (List<List<Number>>) ((Map<String, Object>) metric).get("rawData");
+        if (rawData == null)
+            return null;
+        double sum = 0;
+        int count = 0;
+        for (List<Number> fork : rawData)
+        {
+            for (Number value : fork)
+            {
+                sum += value.doubleValue();
+                count++;
+            }
+        }
+        return count == 0 ? null : sum / count;
+    }
+
+    private static String format(Map<String, Double> metrics, Map<String, Double> reference, String metric, double unit)
+    {
+        Double value = metrics.get(metric);
+        if (value == null)
+            return "-";
+        String formatted = String.format("%.1f", value / unit);
+        Double referenceValue = reference == null ? null : reference.get(metric);
+        if (referenceValue == null || referenceValue == 0)
+            return formatted;
+        return formatted + String.format(" (%+.0f%%)", (value - referenceValue) * 100 / referenceValue);
+    }
+}
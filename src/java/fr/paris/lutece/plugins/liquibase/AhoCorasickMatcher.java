@@ -0,0 +1,119 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Case insensitive multi-keyword matcher (Aho-Corasick automaton compiled to a DFA over ASCII).
+ *
+ * Tells in a single pass over a char buffer whether it contains any of the keywords. Keywords must be ASCII.
+ */
+class AhoCorasickMatcher
+{
+    private static final int ALPHABET = 128;
+
+    // transitions[state][char], fully computed (failure links are folded in)
+    private final int[][] transitions;
+    private final boolean[] terminal;
+
+    /**
+     * @param keywords non empty ASCII keywords
+     */
+    AhoCorasickMatcher(Collection<String> keywords)
+    {
+        List<int[]> gotos = new ArrayList<>();
+        List<Boolean> accept = new ArrayList<>();
+        gotos.add(newState());
+        accept.add(false);
+        for (String keyword : keywords)
+        {
+            if (keyword.isEmpty() || !isAscii(keyword))
+                throw new IllegalArgumentException("Keywords must be non empty ASCII strings : " + keyword);
+            int state = 0;
+            for (char c : keyword.toLowerCase(Locale.ROOT).toCharArray())
+            {
+                if (gotos.get(state)[c] <= 0)
+                {
+                    gotos.add(newState());
+                    accept.add(false);
+                    gotos.get(state)[c] = gotos.size() - 1;
+                }
+                state = gotos.get(state)[c];
+            }
+            accept.set(state, true);
+        }
+
+        int size = gotos.size();
+        transitions = new int[size][];
+        terminal = new boolean[size];
+        int[] failure = new int[size];
+        Deque<Integer> queue = new ArrayDeque<>();
+        transitions[0] = new int[ALPHABET];
+        for (int c = 0; c < ALPHABET; c++)
+        {
+            int next = gotos.get(0)[c];
+            transitions[0][c] = next > 0 ? next : 0;
+            if (next > 0)
+            {
+                failure[next] = 0;
+                queue.add(next);
+            }
+        }
+        terminal[0] = accept.get(0);
+        // breadth first : the failure state of a node is always computed before the node itself
+        while (!queue.isEmpty())
+        {
+            int state = queue.poll();
+            terminal[state] = accept.get(state) || terminal[failure[state]];
+            transitions[state] = new int[ALPHABET];
+            for (int c = 0; c < ALPHABET; c++)
+            {
+                int next = gotos.get(state)[c];
+                if (next > 0)
+                {
+                    failure[next] = transitions[failure[state]][c];
+                    transitions[state][c] = next;
+                    queue.add(next);
+                } else
+                {
+                    transitions[state][c] = transitions[failure[state]][c];
+                }
+            }
+        }
+    }
+
+    private static int[] newState()
+    {
+        return new int[ALPHABET];
+    }
+
+    static boolean isAscii(String s)
+    {
+        return s.chars().allMatch(c -> c < ALPHABET);
+    }
+
+    /**
+     * @param buffer chars to search
+     * @param length number of chars to search from the start of the buffer
+     * @return true if the buffer contains at least one keyword
+     */
+    boolean matches(char[] buffer, int length)
+    {
+        int state = 0;
+        for (int i = 0; i < length; i++)
+        {
+            char c = buffer[i];
+            if (c >= 'A' && c <= 'Z')
+                c += 'a' - 'A';
+            // a non ASCII char cannot be part of a keyword
+            state = c < ALPHABET ? transitions[state][c] : 0;
+            if (terminal[state])
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,73 @@
+package fr.paris.lutece.plugins.liquibase;
+
+/**
+ * Execution metrics of a changeset
+ */
+public class ChangeSetMetrics
+{
+    private final String id;
+    private final String author;
+    private final String filePath;
+    private final String execType;
+    private final long durationMillis;
+    private final long statements;
+    private final long rowsAffected;
+
+    ChangeSetMetrics(String id, String author, String filePath, String execType, long durationMillis, long statements, long rowsAffected)
+    {
+        this.id = id;
+        this.author = author;
+        this.filePath = filePath;
+        this.execType = execType;
+        this.durationMillis = durationMillis;
+        this.statements = statements;
+        this.rowsAffected = rowsAffected;
+    }
+
+    public String getId()
+    {
+        return id;
+    }
+
+    public String getAuthor()
+    {
+        return author;
+    }
+
+    /**
+     * @return the SQL file or changelog declaring the changeset
+     */
+    public String getFilePath()
+    {
+        return filePath;
+    }
+
+    /**
+     * @return the liquibase execution type (EXECUTED, MARK_RAN, ...), or FAILED
+     */
+    public String getExecType()
+    {
+        return execType;
+    }
+
+    public long getDurationMillis()
+    {
+        return durationMillis;
+    }
+
+    /**
+     * @return the number of SQL statements sent to the database, the DATABASECHANGELOG row of the changeset included
+     */
+    public long getStatements()
+    {
+        return statements;
+    }
+
+    /**
+     * @return the number of rows reported by the driver as affected by the statements, the DATABASECHANGELOG row of the changeset included
+     */
+    public long getRowsAffected()
+    {
+        return rowsAffected;
+    }
+}
@@ -0,0 +1,233 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.JarURLConnection;
+import java.net.URI;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarEntry;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import liquibase.ChecksumVersion;
+import liquibase.change.CheckSum;
+import liquibase.parser.ChangeLogParserFactory;
+import liquibase.resource.Resource;
+
+/**
+ * Checksums of the raw SQL changelog files, kept in a local file from one run to the next, so that liquibase does not read and filter unchanged
+ * files to compute them again.
+ *
+ * An entry is keyed by the target database (the filtered content depends on it), the checksum version and the path of the file, and is only used if
+ * the identity of the file did not change : name of its jar, size and CRC32 of its entry (read from the jar directory, not from the content), or size
+ * and modification time of a plain file. The whole cache is dropped when the environment (liquibase version, filtering rules) changes.
+ *
+ * The cache is used by ChecksumCachingSqlChangeLogParser, registered by open().
+ */
+final class ChecksumCache
+{
+    private static final String ENVIRONMENT = "# environment=";
+    private static final String SEPARATOR = "\t";
+
+    private static volatile ChecksumCache active;
+
+    private final File file;
+    private final String environment;
+    // key : database, checksum version and path ; value : identity and checksum
+    private final Map<String, String[]> entries = new ConcurrentHashMap<>();
+    // identities computed during this run, by URI
+    private final Map<String, String> identities = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile boolean dirty;
+
+    private ChecksumCache(File file, String environment)
+    {
+        this.file = file;
+        this.environment = environment;
+    }
+
+    /**
+     * Loads the cache and makes it active for the runs of this startup
+     *
+     * @param file        the cache file
+     * @param environment description of what the checksums depend on, besides the files themselves
+     */
+    static synchronized void open(File file, String environment)
+    {
+        ChecksumCache cache = new ChecksumCache(file, environment);
+        cache.load();
+        if (active == null)
+            ChangeLogParserFactory.getInstance().register(new ChecksumCachingSqlChangeLogParser());
+        active = cache;
+    }
+
+    /**
+     * @return the active cache, or null if the checksum cache is not enabled
+     */
+    static ChecksumCache active()
+    {
+        return active;
+    }
+
+    /**
+     * Writes the active cache if checksums were added since it was loaded
+     */
+    static void saveActive()
+    {
+        ChecksumCache cache = active;
+        if (cache != null)
+            cache.save();
+    }
+
+    private void load()
+    {
+        if (!file.isFile())
+            return;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+        {
+            String line = reader.readLine();
+            if (line == null || !line.equals(ENVIRONMENT + environment))
+            {
+                AppLogService.info("LiquibaseRunner checksum cache {} was written for another environment, ignoring it", file);
+                dirty = true;
+                return;
+            }
+            for (line = reader.readLine(); line != null; line = reader.readLine())
+            {
+                String[] fields = line.split(SEPARATOR, -1);
+                if (fields.length == 5)
+                    entries.put(key(fields[0], fields[1], fields[2]), new String[] { fields[3], fields[4] });
+            }
+        } catch (IOException e)
+        {
+            AppLogService.error("LiquibaseRunner could not read the checksum cache " + file, e);
+        }
+        AppLogService.debug("LiquibaseRunner {} checksums loaded from {}", entries.size(), file);
+    }
+
+    private synchronized void save()
+    {
+        AppLogService.info("LiquibaseRunner checksum cache : {} hits, {} misses", hits.get(), misses.get());
+        if (!dirty)
+            return;
+        try
+        {
+            Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+            File work = new File(file.getPath() + ".tmp");
+            try (Writer writer = Files.newBufferedWriter(work.toPath(), StandardCharsets.UTF_8))
+            {
+                writer.append(ENVIRONMENT).append(environment).append('\n');
+                for (Map.Entry<String, String[]> entry : entries.entrySet())
+                    writer.append(entry.getKey()).append(SEPARATOR).append(entry.getValue()[0]).append(SEPARATOR).append(entry.getValue()[1]).append('\n');
+            }
+            Files.move(work.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            dirty = false;
+        } catch (IOException e)
+        {
+            AppLogService.error("LiquibaseRunner could not write the checksum cache " + file, e);
+        }
+    }
+
+    /**
+     * @param variant  the target database and filtering of the file
+     * @param path     path of the file
+     * @param identity identity of the file
+     * @return true if a checksum of any version is known for this file
+     */
+    boolean contains(String variant, String path, String identity)
+    {
+        for (ChecksumVersion version : ChecksumVersion.values())
+            if (get(variant, version, path, identity) != null)
+                return true;
+        return false;
+    }
+
+    /**
+     * @param variant  the target database and filtering of the file
+     * @param version  the checksum version
+     * @param path     path of the file
+     * @param identity identity of the file
+     * @return the checksum, or null if unknown for this identity
+     */
+    CheckSum get(String variant, ChecksumVersion version, String path, String identity)
+    {
+        String[] entry = entries.get(key(variant, String.valueOf(version.getVersion()), path));
+        return entry == null || !entry[0].equals(identity) ? null : CheckSum.parse(entry[1]);
+    }
+
+    void put(String variant, ChecksumVersion version, String path, String identity, CheckSum checkSum)
+    {
+        entries.put(key(variant, String.valueOf(version.getVersion()), path), new String[] { identity, checkSum.toString() });
+        dirty = true;
+    }
+
+    void hit()
+    {
+        hits.incrementAndGet();
+    }
+
+    void miss()
+    {
+        misses.incrementAndGet();
+    }
+
+    private static String key(String variant, String version, String path)
+    {
+        return variant + SEPARATOR + version + SEPARATOR + path;
+    }
+
+    /**
+     * Identity of a file, computed without reading it
+     *
+     * @param resource the file
+     * @return the identity, or an empty string if the file can not be identified cheaply
+     */
+    String identity(Resource resource)
+    {
+        URI uri = resource.getUri();
+        if (uri == null)
+            return "";
+        return identities.computeIfAbsent(uri.toString(), u -> computeIdentity(uri));
+    }
+
+    /**
+     * Identity of a file from its metadata : size and modification time of a file, size and CRC of a jar entry as recorded in the jar directory
+     *
+     * @param uri the URI of the file
+     * @return the identity, or an empty string if the file can not be identified cheaply
+     */
+    static String computeIdentity(URI uri)
+    {
+        try
+        {
+            if ("file".equals(uri.getScheme()))
+            {
+                File source = new File(uri);
+                return source.length() + ":" + source.lastModified();
+            }
+            if ("jar".equals(uri.getScheme()))
+            {
+                URLConnection connection = uri.toURL().openConnection();
+                if (connection instanceof JarURLConnection)
+                {
+                    JarEntry entry = ((JarURLConnection) connection).getJarEntry();
+                    String jar = ((JarURLConnection) connection).getJarFileURL().getPath();
+                    if (entry != null && entry.getSize() >= 0 && entry.getCrc() >= 0)
+                        return jar.substring(jar.lastIndexOf('/') + 1) + ":" + entry.getSize() + ":" + Long.toHexString(entry.getCrc());
+                }
+            }
+        } catch (IOException | IllegalArgumentException e)
+        {
+            AppLogService.debug("LiquibaseRunner no identity for {} : {}", uri, e.getMessage());
+        }
+        return "";
+    }
+}
@@ -0,0 +1,304 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import liquibase.ChecksumVersion;
+import liquibase.Scope;
+import liquibase.change.CheckSum;
+import liquibase.change.core.RawSQLChange;
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.changeset.ChangeSetServiceFactory;
+import liquibase.database.Database;
+import liquibase.database.ObjectQuotingStrategy;
+import liquibase.exception.ChangeLogParseException;
+import liquibase.exception.ValidationErrors;
+import liquibase.parser.core.formattedsql.FormattedSqlChangeLogParser;
+import liquibase.parser.core.sql.SqlChangeLogParser;
+import liquibase.resource.OpenOptions;
+import liquibase.resource.Resource;
+import liquibase.resource.ResourceAccessor;
+import liquibase.util.StreamUtil;
+
+/**
+ * Parses raw SQL changelog files like liquibase does, but with the checksums of the active ChecksumCache : a file whose checksum is cached is only
+ * read if its changeset has to run.
+ *
+ * Its priority is above the one of formatted SQL files, so that cached files are not even opened to check their first line. Files which are not
+ * cached are left to the formatted SQL parser when they are formatted.
+ */
+class ChecksumCachingSqlChangeLogParser extends SqlChangeLogParser
+{
+    private static final FormattedSqlChangeLogParser FORMATTED = new FormattedSqlChangeLogParser();
+    // the content given to liquibase's parser for cached files, so that it builds the changeset without reading them
+    private static final String PLACEHOLDER = "-- checksum cached";
+
+    @Override
+    public int getPriority()
+    {
+        return FORMATTED.getPriority() + 1;
+    }
+
+    @Override
+    public boolean supports(String changeLogFile, ResourceAccessor resourceAccessor)
+    {
+        ChecksumCache cache = ChecksumCache.active();
+        Database database = Scope.getCurrentScope().getDatabase();
+        if (cache == null || database == null || !super.supports(changeLogFile, resourceAccessor))
+            return false;
+        try
+        {
+            Resource resource = resourceAccessor.get(changeLogFile);
+            String identity = resource == null ? "" : cache.identity(resource);
+            if (identity.isEmpty())
+                return false;
+            return cache.contains(variant(database), changeLogFile, identity) || !FORMATTED.supports(changeLogFile, resourceAccessor);
+        } catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    @Override
+    public DatabaseChangeLog parse(String physicalChangeLogLocation, ChangeLogParameters changeLogParameters, ResourceAccessor resourceAccessor)
+            throws ChangeLogParseException
+    {
+        ChecksumCache cache = ChecksumCache.active();
+        String variant = variant(Scope.getCurrentScope().getDatabase());
+        String identity;
+        try
+        {
+            identity = cache.identity(resourceAccessor.getExisting(physicalChangeLogLocation));
+        } catch (IOException e)
+        {
+            throw new ChangeLogParseException(e);
+        }
+        boolean cached = cache.contains(variant, physicalChangeLogLocation, identity);
+        if (cached)
+            cache.hit();
+        else
+            cache.miss();
+        DatabaseChangeLog parsed = super.parse(physicalChangeLogLocation, changeLogParameters,
+                cached ? new PlaceholderResourceAccessor(resourceAccessor, physicalChangeLogLocation, PLACEHOLDER) : resourceAccessor);
+        RawSQLChange parsedChange = (RawSQLChange) parsed.getChangeSets().get(0).getChanges().get(0);
+
+        // the same changelog, with a change whose checksum comes from the cache
+        CachedChecksumSqlChange change = new CachedChecksumSqlChange(cache, variant, identity, resourceAccessor, physicalChangeLogLocation);
+        if (!cached)
+            change.setSql(parsedChange.getSql());
+        return withChange(parsed, physicalChangeLogLocation, change);
+    }
+
+    /**
+     * Builds the changelog parsed by liquibase again, with another change in its changeset : the changes of a parsed changeset can not be replaced
+     *
+     * @param parsed the changelog of a raw SQL file, parsed by liquibase
+     * @param path   path of the file
+     * @param change the change replacing the parsed one
+     * @return the new changelog
+     */
+    static DatabaseChangeLog withChange(DatabaseChangeLog parsed, String path, RawSQLChange change)
+    {
+        ChangeSet parsedChangeSet = parsed.getChangeSets().get(0);
+        RawSQLChange parsedChange = (RawSQLChange) parsedChangeSet.getChanges().get(0);
+        DatabaseChangeLog changeLog = new DatabaseChangeLog();
+        changeLog.setPhysicalFilePath(path);
+        ChangeSet changeSet = ChangeSetServiceFactory.getInstance().createChangeSetService().createChangeSet(parsedChangeSet.getId(),
+                parsedChangeSet.getAuthor(), false, false, path, null, null, null, null, true, ObjectQuotingStrategy.LEGACY, changeLog);
+        change.setSplitStatements(parsedChange.isSplitStatements());
+        change.setStripComments(parsedChange.isStripComments(), parsedChange.isStripCommentsUsedDefaultValue());
+        changeSet.addChange(change);
+        changeLog.addChangeSet(changeSet);
+        return changeLog;
+    }
+
+    /**
+     * The content of a file depends on the target database (filtering) and on the coalescing of its inserts
+     */
+    private static String variant(Database database)
+    {
+        return database.getShortName() + "|" + InsertCoalescingResourceAccessor.describe(database.getShortName());
+    }
+
+    /**
+     * Raw SQL change reading its file only when its SQL is needed, and taking its checksum from the cache when known
+     */
+    static class CachedChecksumSqlChange extends RawSQLChange
+    {
+        private final ChecksumCache cache;
+        private final String variant;
+        private final String identity;
+        private final ResourceAccessor resourceAccessor;
+        private final String path;
+        private boolean loaded;
+
+        CachedChecksumSqlChange(ChecksumCache cache, String variant, String identity, ResourceAccessor resourceAccessor, String path)
+        {
+            this.cache = cache;
+            this.variant = variant;
+            this.identity = identity;
+            this.resourceAccessor = resourceAccessor;
+            this.path = path;
+        }
+
+        @Override
+        public void setSql(String sql)
+        {
+            super.setSql(sql);
+            loaded = true;
+        }
+
+        @Override
+        public String getSql()
+        {
+            load();
+            return super.getSql();
+        }
+
+        @Override
+        public CheckSum generateCheckSum()
+        {
+            ChecksumVersion version = Scope.getCurrentScope().getChecksumVersion();
+            CheckSum checkSum = cache.get(variant, version, path, identity);
+            if (checkSum == null)
+            {
+                load();
+                checkSum = super.generateCheckSum();
+                cache.put(variant, version, path, identity, checkSum);
+            }
+            return checkSum;
+        }
+
+        @Override
+        public ValidationErrors validate(Database database)
+        {
+            load();
+            return super.validate(database);
+        }
+
+        private synchronized void load()
+        {
+            if (loaded)
+                return;
+            try (InputStream in = resourceAccessor.getExisting(path).openInputStream())
+            {
+                setSql(StreamUtil.readStreamAsString(in));
+            } catch (IOException e)
+            {
+                throw new IllegalStateException("Could not read " + path, e);
+            }
+        }
+    }
+
+    /**
+     * Gives a placeholder content for a file, so that liquibase's parser builds its changeset without reading it
+     */
+    static class PlaceholderResourceAccessor implements ResourceAccessor
+    {
+        private final ResourceAccessor delegate;
+        private final String path;
+        private final String content;
+
+        PlaceholderResourceAccessor(ResourceAccessor delegate, String path, String content)
+        {
+            this.delegate = delegate;
+            this.path = path;
+            this.content = content;
+        }
+
+        @Override
+        public List<Resource> search(String searchPath, boolean recursive) throws IOException
+        {
+            return delegate.search(searchPath, recursive);
+        }
+
+        @Override
+        public List<Resource> getAll(String searchPath) throws IOException
+        {
+            List<Resource> resources = delegate.getAll(searchPath);
+            if (resources == null || !path.equals(searchPath))
+                return resources;
+            return resources.stream().map(r -> (Resource) new PlaceholderResource(r, content)).collect(Collectors.toList());
+        }
+
+        @Override
+        public List<String> describeLocations()
+        {
+            return delegate.describeLocations();
+        }
+
+        @Override
+        public void close()
+        {
+            // the delegate belongs to the run
+        }
+    }
+
+    /**
+     * Actual resource, with the placeholder content
+     */
+    private static class PlaceholderResource implements Resource
+    {
+        private final Resource actual;
+        private final String content;
+
+        PlaceholderResource(Resource actual, String content)
+        {
+            this.actual = actual;
+            this.content = content;
+        }
+
+        public String getPath()
+        {
+            return actual.getPath();
+        }
+
+        public InputStream openInputStream()
+        {
+            return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public boolean isWritable()
+        {
+            return false;
+        }
+
+        public boolean exists()
+        {
+            return actual.exists();
+        }
+
+        public Resource resolve(String other)
+        {
+            return actual.resolve(other);
+        }
+
+        public Resource resolveSibling(String other)
+        {
+            return actual.resolveSibling(other);
+        }
+
+        public OutputStream openOutputStream(OpenOptions openOptions) throws IOException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public OutputStream openOutputStream(boolean createIfNeeded) throws IOException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public URI getUri()
+        {
+            return actual.getUri();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+
+import fr.paris.lutece.portal.service.datastore.DatastoreCacheService;
+import fr.paris.lutece.portal.service.datastore.DatastoreService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Entries of core_datastore read and written by the runner : through the DatastoreService of the webapp, or with plain JDBC when liquibase runs
+ * outside of the webapp (LiquibaseCli), where the services of the webapp are not initialized.
+ */
+final class Datastore
+{
+    private static final String SQL_SELECT = "SELECT entity_value FROM core_datastore WHERE entity_key = ?";
+    private static final String SQL_UPDATE = "UPDATE core_datastore SET entity_value = ? WHERE entity_key = ?";
+    private static final String SQL_INSERT = "INSERT INTO core_datastore (entity_key, entity_value) VALUES (?, ?)";
+
+    // connections to the database of the datastore when running outside of the webapp, null in the webapp
+    private static volatile LiquibaseRunner.ConnectionSupplier connections;
+
+    private Datastore()
+    {
+    }
+
+    /**
+     * Accesses the datastore with plain JDBC from now on
+     *
+     * @param connectionSupplier gives connections to the database of the datastore
+     */
+    static void useConnections(LiquibaseRunner.ConnectionSupplier connectionSupplier)
+    {
+        connections = connectionSupplier;
+    }
+
+    /**
+     * @param key          the entry key
+     * @param defaultValue value returned if the entry does not exist
+     * @return the value of the entry
+     */
+    static String getDataValue(String key, String defaultValue)
+    {
+        LiquibaseRunner.ConnectionSupplier connectionSupplier = connections;
+        if (connectionSupplier == null)
+            return DatastoreService.getDataValue(key, defaultValue);
+        try (Connection connection = connectionSupplier.get(); PreparedStatement select = connection.prepareStatement(SQL_SELECT))
+        {
+            select.setString(1, key);
+            try (ResultSet result = select.executeQuery())
+            {
+                return result.next() ? result.getString(1) : defaultValue;
+            }
+        } catch (SQLException e)
+        {
+            AppLogService.error("LiquibaseRunner could not read " + key + " in core_datastore", e);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Evicts entries written with plain JDBC from the cache of the datastore service, so that the webapp reads their new values
+     *
+     * @param keys the keys of the entries
+     */
+    static void evict(Collection<String> keys)
+    {
+        if (connections != null)
+            return;
+        DatastoreCacheService cache = DatastoreCacheService.getInstance();
+        for (String key : keys)
+            cache.removeKey(key);
+    }
+
+    /**
+     * Creates or updates an entry
+     *
+     * @param key   the entry key
+     * @param value the entry value
+     */
+    static void setDataValue(String key, String value)
+    {
+        LiquibaseRunner.ConnectionSupplier connectionSupplier = connections;
+        if (connectionSupplier == null)
+        {
+            DatastoreService.setDataValue(key, value);
+            return;
+        }
+        try (Connection connection = connectionSupplier.get())
+        {
+            int updated;
+            try (PreparedStatement update = connection.prepareStatement(SQL_UPDATE))
+            {
+                update.setString(1, value);
+                update.setString(2, key);
+                updated = update.executeUpdate();
+            }
+            if (updated == 0)
+            {
+                try (PreparedStatement insert = connection.prepareStatement(SQL_INSERT))
+                {
+                    insert.setString(1, key);
+                    insert.setString(2, value);
+                    insert.executeUpdate();
+                }
+            }
+            if (!connection.getAutoCommit())
+                connection.commit();
+        } catch (SQLException e)
+        {
+            throw new IllegalStateException("Could not write " + key + " in core_datastore", e);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Runs the SQL files deferred by the startup pass (see liquibase.deferred.enabled) in background, once the webapp is started, and exposes their
+ * progress. Passes are submitted during early initialization, and start when DeferredMigrationStartUpService is called, after the services of the
+ * webapp.
+ *
+ * Services depending on deferred data can wait for it with awaitCompletion(), or register a hook with onCompletion().
+ */
+public final class DeferredMigrationService
+{
+    /** Status of the deferred migrations of the last startup */
+    public enum Status
+    {
+        /** nothing was deferred */
+        NONE,
+        /** deferred files are being run */
+        RUNNING,
+        /** all deferred files ran */
+        COMPLETED,
+        /** at least one deferred pass failed */
+        FAILED
+    }
+
+    private static final Object LOCK = new Object();
+    private static final AtomicInteger _nScriptsTotal = new AtomicInteger();
+    private static final AtomicInteger _nScriptsDone = new AtomicInteger();
+    private static ExecutorService _executor;
+    // completed by start(), once the webapp is started
+    private static final CompletableFuture<Void> _started = new CompletableFuture<>();
+    private static List<CompletableFuture<Void>> _listRuns = new ArrayList<>();
+    private static CompletableFuture<Void> _completion = CompletableFuture.completedFuture(null);
+
+    private DeferredMigrationService()
+    {
+    }
+
+    /**
+     * Starts collecting the deferred passes of a startup : completion is not reached before end() is called
+     */
+    static void begin()
+    {
+        synchronized (LOCK)
+        {
+            _listRuns = new ArrayList<>();
+            _completion = new CompletableFuture<>();
+            _nScriptsTotal.set(0);
+            _nScriptsDone.set(0);
+        }
+    }
+
+    /**
+     * Starts the deferred passes submitted so far, and runs the next ones as soon as they are submitted
+     */
+    static void start()
+    {
+        if (_started.complete(null) && _nScriptsTotal.get() > 0)
+            AppLogService.info("LiquibaseRunner webapp started, running {} deferred SQL files", _nScriptsTotal.get());
+    }
+
+    /**
+     * Submits a deferred pass, which runs once start() was called
+     *
+     * @param description for the logs
+     * @param scripts     number of deferred files of the pass
+     * @param pass        the pass
+     */
+    static void submit(String description, int scripts, DeferredPass pass)
+    {
+        _nScriptsTotal.addAndGet(scripts);
+        synchronized (LOCK)
+        {
+            AppLogService.info("LiquibaseRunner {} SQL files deferred to the background ({})", scripts, description);
+            _listRuns.add(_started.thenRunAsync(() -> {
+                try
+                {
+                    pass.run();
+                    AppLogService.info("LiquibaseRunner deferred migrations done ({})", description);
+                } catch (Exception e)
+                {
+                    AppLogService.error("LiquibaseRunner deferred migrations failed (" + description + ")", e);
+                    throw new IllegalStateException(e);
+                }
+            }, executor()));
+        }
+    }
+
+    /**
+     * Ends the collection of deferred passes : completion is reached when all submitted passes are over
+     */
+    static void end()
+    {
+        synchronized (LOCK)
+        {
+            CompletableFuture<Void> completion = _completion;
+            CompletableFuture.allOf(_listRuns.toArray(new CompletableFuture[0])).whenComplete((result, failure) -> {
+                if (failure == null)
+                    completion.complete(null);
+                else
+                    completion.completeExceptionally(failure);
+            });
+        }
+    }
+
+    static void scriptDone()
+    {
+        _nScriptsDone.incrementAndGet();
+    }
+
+    private static Executor executor()
+    {
+        if (_executor == null)
+        {
+            // a single daemon thread : passes run one after the other, and never prevent the JVM from stopping
+            _executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "liquibase-deferred");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return _executor;
+    }
+
+    /**
+     * @return the status of the deferred migrations
+     */
+    public static Status getStatus()
+    {
+        synchronized (LOCK)
+        {
+            if (!_completion.isDone())
+                return Status.RUNNING;
+            if (_completion.isCompletedExceptionally())
+                return Status.FAILED;
+            return _listRuns.isEmpty() ? Status.NONE : Status.COMPLETED;
+        }
+    }
+
+    /**
+     * @return the number of deferred files
+     */
+    public static int getScriptsTotal()
+    {
+        return _nScriptsTotal.get();
+    }
+
+    /**
+     * @return the number of deferred files already run
+     */
+    public static int getScriptsDone()
+    {
+        return _nScriptsDone.get();
+    }
+
+    /**
+     * Waits for the deferred migrations
+     *
+     * @param timeout maximum time to wait
+     * @param unit    unit of the timeout
+     * @return true if the migrations completed successfully, false if they failed or did not complete in time
+     * @throws InterruptedException
+     */
+    public static boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        CompletableFuture<Void> completion;
+        synchronized (LOCK)
+        {
+            completion = _completion;
+        }
+        try
+        {
+            completion.get(timeout, unit);
+            return true;
+        } catch (ExecutionException | TimeoutException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Registers a hook called when the deferred migrations are over, or immediately if they already are
+     *
+     * @param hook receives COMPLETED, FAILED or NONE
+     */
+    public static void onCompletion(Consumer<Status> hook)
+    {
+        CompletableFuture<Void> completion;
+        synchronized (LOCK)
+        {
+            completion = _completion;
+        }
+        completion.whenComplete((result, failure) -> {
+            try
+            {
+                hook.accept(getStatus());
+            } catch (RuntimeException e)
+            {
+                AppLogService.error("LiquibaseRunner deferred migrations completion hook failed", e);
+            }
+        });
+    }
+
+    /** A deferred pass, which may throw */
+    interface DeferredPass
+    {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,21 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import fr.paris.lutece.portal.service.init.StartUpService;
+
+/**
+ * Starts the deferred passes submitted by the startup run once all the services of the webapp are initialized (see DeferredMigrationService).
+ */
+public class DeferredMigrationStartUpService implements StartUpService
+{
+    @Override
+    public String getName()
+    {
+        return "Liquibase deferred migrations";
+    }
+
+    @Override
+    public void process()
+    {
+        DeferredMigrationService.start();
+    }
+}
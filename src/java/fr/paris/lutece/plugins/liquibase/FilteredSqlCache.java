@@ -0,0 +1,108 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Thread-safe cache of filtered SQL files, keyed by resource path.
+ *
+ * The cache is bounded by the total size of its entries : the least recently used entries are evicted when the bound is exceeded. The temporary
+ * file of an evicted entry is deleted once the replay streams opened on it are closed.
+ */
+public class FilteredSqlCache
+{
+    private final long maxBytes;
+    private final Map<String, SpillBuffer> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    private long hits, misses, evictions;
+
+    /**
+     * @param maxBytes maximum total size of the cached files
+     */
+    public FilteredSqlCache(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Opens the cached content of a file
+     *
+     * @param key the cache key
+     * @return a stream on the filtered content, or null if not cached
+     * @throws IOException
+     */
+    synchronized InputStream open(String key) throws IOException
+    {
+        SpillBuffer content = entries.get(key);
+        if (content == null)
+        {
+            misses++;
+            return null;
+        }
+        hits++;
+        return content.openReplay();
+    }
+
+    /**
+     * Adds the complete filtered content of a file. Content larger than the cache itself is released immediately.
+     *
+     * @param key     the cache key
+     * @param content the filtered content
+     */
+    synchronized void put(String key, SpillBuffer content)
+    {
+        if (content.size() > maxBytes || entries.containsKey(key))
+        {
+            // too large, or filtered concurrently by another run
+            content.release();
+            return;
+        }
+        entries.put(key, content);
+        bytes += content.size();
+        Iterator<SpillBuffer> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext())
+        {
+            SpillBuffer evicted = eldest.next();
+            eldest.remove();
+            bytes -= evicted.size();
+            evicted.release();
+            evictions++;
+        }
+    }
+
+    /**
+     * Releases all entries
+     */
+    public synchronized void clear()
+    {
+        AppLogService.info("LiquibaseRunner filtered SQL cache : {} hits, {} misses, {} evictions, {} bytes cached", hits, misses, evictions, bytes);
+        entries.values().forEach(SpillBuffer::release);
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    public synchronized long getSize()
+    {
+        return bytes;
+    }
+}
@@ -0,0 +1,201 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Filters a SQL stream line by line, as it is read.
+ *
+ * Only the current line is held in memory, in reused buffers : lines left unchanged by the filter are re-encoded without any allocation. Filtered
+ * content can be copied to a SpillBuffer, which is completed and handed to a callback when the whole stream has been read, for later replay. If the
+ * stream is closed before its end, the copy is released.
+ */
+class FilteringSqlInputStream extends InputStream
+{
+    private final Reader reader;
+    private final SqlLineFilter filter;
+    private final SpillBuffer copy;
+    private final Consumer<SpillBuffer> onComplete;
+    // raw chars read from the reader
+    private final char[] input = new char[8192];
+    private int inputPosition, inputLength;
+    // current line, without terminator
+    private char[] chars = new char[256];
+    private int charsLength;
+    // current filtered line, encoded, with terminator
+    private byte[] line = new byte[1024];
+    private int lineLength;
+    private int position;
+    private boolean eof;
+    // a \r was the last char of the previous line : skip a following \n
+    private boolean skipLineFeed;
+
+    /**
+     * @param in         the original SQL stream
+     * @param filter     applies the configured regexes
+     * @param copy       receives the filtered content, may be null
+     * @param onComplete called with the copy once complete, may be null
+     */
+    FilteringSqlInputStream(InputStream in, SqlLineFilter filter, SpillBuffer copy, Consumer<SpillBuffer> onComplete)
+    {
+        this.reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+        this.filter = filter;
+        this.copy = copy;
+        this.onComplete = onComplete;
+    }
+
+    /**
+     * Reads the next line into chars, with the same line terminators as BufferedReader.readLine()
+     *
+     * @return false at the end of the stream
+     */
+    private boolean readLine() throws IOException
+    {
+        charsLength = 0;
+        boolean any = false;
+        while (true)
+        {
+            if (inputPosition >= inputLength)
+            {
+                inputLength = reader.read(input, 0, input.length);
+                inputPosition = 0;
+                if (inputLength <= 0)
+                {
+                    inputLength = 0;
+                    return any;
+                }
+            }
+            char c = input[inputPosition++];
+            if (skipLineFeed)
+            {
+                skipLineFeed = false;
+                if (c == '\n')
+                    continue;
+            }
+            any = true;
+            if (c == '\n')
+                return true;
+            if (c == '\r')
+            {
+                skipLineFeed = true;
+                return true;
+            }
+            if (charsLength == chars.length)
+                chars = Arrays.copyOf(chars, chars.length * 2);
+            chars[charsLength++] = c;
+        }
+    }
+
+    /**
+     * Makes the next filtered line available
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException
+    {
+        while (position >= lineLength)
+        {
+            if (eof)
+                return false;
+            if (!readLine())
+            {
+                eof = true;
+                if (copy != null)
+                {
+                    copy.close();
+                    if (onComplete != null)
+                        onComplete.accept(copy);
+                }
+                return false;
+            }
+            String filtered = filter.filter(chars, charsLength);
+            if (filtered == null)
+            {
+                encode(chars, charsLength);
+            } else
+            {
+                char[] filteredChars = filtered.toCharArray();
+                encode(filteredChars, filteredChars.length);
+            }
+            position = 0;
+            if (copy != null)
+                copy.write(line, 0, lineLength);
+        }
+        return true;
+    }
+
+    /**
+     * UTF-8 encodes chars followed by a line feed into line. Malformed surrogates are replaced by '?', as String.getBytes() does.
+     */
+    private void encode(char[] source, int length)
+    {
+        // worst case : 3 bytes per char, plus the line feed
+        if (line.length < length * 3 + 1)
+            line = new byte[length * 3 + 1];
+        int j = 0;
+        for (int i = 0; i < length; i++)
+        {
+            char c = source[i];
+            if (c < 0x80)
+            {
+                line[j++] = (byte) c;
+            } else if (c < 0x800)
+            {
+                line[j++] = (byte) (0xc0 | (c >> 6));
+                line[j++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(source[i + 1]))
+            {
+                int codePoint = Character.toCodePoint(c, source[++i]);
+                line[j++] = (byte) (0xf0 | (codePoint >> 18));
+                line[j++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                line[j++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                line[j++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c))
+            {
+                line[j++] = '?';
+            } else
+            {
+                line[j++] = (byte) (0xe0 | (c >> 12));
+                line[j++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                line[j++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        line[j++] = '\n';
+        lineLength = j;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        return fill() ? line[position++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+            return 0;
+        int total = 0;
+        while (total < len && fill())
+        {
+            int count = Math.min(len - total, lineLength - position);
+            System.arraycopy(line, position, b, off + total, count);
+            position += count;
+            total += count;
+        }
+        return total == 0 ? -1 : total;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        reader.close();
+        if (copy != null && !eof)
+            copy.release();
+    }
+}
@@ -0,0 +1,330 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+import fr.paris.lutece.utils.sql.SqlPathInfo;
+import liquibase.Scope;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.ChangeSet.RunStatus;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.changelog.visitor.AbstractChangeExecListener;
+import liquibase.changelog.visitor.ChangeExecListener;
+import liquibase.changelog.visitor.DefaultChangeExecListener;
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.UnexpectedLiquibaseException;
+import liquibase.executor.ExecutorService;
+import liquibase.executor.jvm.JdbcExecutor;
+import liquibase.sql.Sql;
+import liquibase.sql.visitor.SqlVisitor;
+import liquibase.sqlgenerator.SqlGeneratorFactory;
+import liquibase.statement.SqlStatement;
+import liquibase.statement.core.MarkChangeSetRanStatement;
+
+/**
+ * Connection of a run in grouped mode : the consecutive SQL files of a plugin run in one transaction, with a savepoint before each file when the
+ * database supports them, and their DATABASECHANGELOG rows are written in one JDBC batch just before the commit.
+ *
+ * Liquibase commits after each file and after each DATABASECHANGELOG row : these commits are ignored while the files of a plugin run. If a file
+ * fails, the transaction is rolled back to its savepoint and the files of the plugin which ran before it are committed with their rows, as without
+ * grouping ; without savepoint, none of them is kept.
+ *
+ * Only databases whose DDL statements are transactional are grouped : an implicit commit (mysql, oracle...) would keep files without their rows.
+ * Streamed files commit by themselves and are never grouped.
+ */
+class GroupedJdbcConnection extends JdbcConnection
+{
+    private static final String ENABLED = "liquibase.grouped.enabled";
+    private static final String DIALECTS = "liquibase.grouped.dialects";
+    private static final String SAVEPOINTS = "liquibase.grouped.savepoints";
+
+    private final boolean savepoints;
+    // executor of the run, null when the files of the run are not grouped
+    private ChangeLogBatchingExecutor executor;
+    // plugin of the files of the current transaction, null when files are not grouped
+    private String plugin;
+    private Savepoint savepoint;
+    // whether the current file sent a statement, and whether its DATABASECHANGELOG row is recorded
+    private boolean fileStarted;
+    private boolean fileRan;
+    private int files;
+    private final List<String> changeLogRows = new ArrayList<>();
+    private int transactions;
+    private int groupedFiles;
+
+    private GroupedJdbcConnection(Connection connection)
+    {
+        super(connection);
+        this.savepoints = AppPropertiesService.getPropertyBoolean(SAVEPOINTS, true) && supportsSavepoints(connection);
+    }
+
+    private static boolean supportsSavepoints(Connection connection)
+    {
+        try
+        {
+            return connection.getMetaData().supportsSavepoints();
+        } catch (SQLException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Connection for the liquibase database of a run
+     *
+     * @param connection the JDBC connection of the run
+     * @return a GroupedJdbcConnection if grouped mode is enabled, a plain JdbcConnection otherwise
+     */
+    static JdbcConnection wrap(Connection connection)
+    {
+        if (!AppPropertiesService.getPropertyBoolean(ENABLED, false) || AppPropertiesService.getPropertyBoolean("liquibase.dryrun", false))
+            return new JdbcConnection(connection);
+        return new GroupedJdbcConnection(connection);
+    }
+
+    /**
+     * Routes the statements of a database through the executor writing its DATABASECHANGELOG rows in batches, if grouped mode applies to it. The
+     * liquibase of the run must be given the listener returned by listener().
+     *
+     * @param database the liquibase database of a run, on a connection returned by wrap()
+     */
+    static void attach(Database database)
+    {
+        if (!(database.getConnection() instanceof GroupedJdbcConnection))
+            return;
+        List<String> dialects = Arrays.asList(AppPropertiesService.getProperty(DIALECTS, "postgresql,mssql,db2,derby,sqlite").split("\\s*,\\s*"));
+        if (!dialects.contains(database.getShortName()))
+        {
+            AppLogService.info("LiquibaseRunner grouped transactions not supported for {}", database.getShortName());
+            return;
+        }
+        ChangeLogBatchingExecutor executor = new ChangeLogBatchingExecutor();
+        executor.setDatabase(database);
+        ((GroupedJdbcConnection) database.getConnection()).executor = executor;
+        Scope.getCurrentScope().getSingleton(ExecutorService.class).setExecutor("jdbc", database, executor);
+    }
+
+    /**
+     * Commits the files of the current transaction, and forgets the executor of the database
+     *
+     * @param database the liquibase database of a run
+     * @throws DatabaseException if the DATABASECHANGELOG rows or the commit failed, the transaction is then rolled back
+     */
+    static void detach(Database database) throws DatabaseException
+    {
+        if (!(database.getConnection() instanceof GroupedJdbcConnection))
+            return;
+        GroupedJdbcConnection connection = (GroupedJdbcConnection) database.getConnection();
+        if (connection.executor == null)
+            return;
+        // liquibase forgets the executors at the end of an update
+        ExecutorService executorService = Scope.getCurrentScope().getSingleton(ExecutorService.class);
+        if (executorService.executorExists("jdbc", database) && executorService.getExecutor("jdbc", database) == connection.executor)
+            executorService.clearExecutor("jdbc", database);
+        connection.executor = null;
+        connection.endGroup();
+        if (connection.transactions > 0)
+            AppLogService.info("LiquibaseRunner ran {} SQL files in {} plugin transactions", connection.groupedFiles, connection.transactions);
+    }
+
+    /**
+     * Listener of the updates of a database given to attach() : starts each file before the listener of the run sees it
+     *
+     * @param runListener the listener of the run
+     * @return the listener to give to liquibase
+     */
+    static ChangeExecListener listener(ChangeExecListener runListener)
+    {
+        return new DefaultChangeExecListener(new AbstractChangeExecListener()
+        {
+            @Override
+            public void willRun(ChangeSet changeSet, DatabaseChangeLog databaseChangeLog, Database database, RunStatus runStatus)
+            {
+                beginFile(changeSet, database);
+            }
+        }, runListener);
+    }
+
+    /**
+     * Starts a file : joins the transaction of the previous file if it belongs to the same plugin, commits that transaction otherwise
+     *
+     * @param changeSet the changeset of the file
+     * @param database  the liquibase database of the run
+     */
+    private static void beginFile(ChangeSet changeSet, Database database)
+    {
+        if (!(database.getConnection() instanceof GroupedJdbcConnection) || ((GroupedJdbcConnection) database.getConnection()).executor == null)
+            return;
+        GroupedJdbcConnection connection = (GroupedJdbcConnection) database.getConnection();
+        // the update of a parallel lane forgets the executors of all databases when it ends
+        ExecutorService executorService = Scope.getCurrentScope().getSingleton(ExecutorService.class);
+        if (!executorService.executorExists("jdbc", database) || executorService.getExecutor("jdbc", database) != connection.executor)
+            executorService.setExecutor("jdbc", database, connection.executor);
+        try
+        {
+            connection.beginFile(changeSet);
+        } catch (DatabaseException e)
+        {
+            throw new UnexpectedLiquibaseException(e);
+        }
+    }
+
+    private void beginFile(ChangeSet changeSet) throws DatabaseException
+    {
+        String filePlugin = pluginName(changeSet);
+        if (plugin != null && !plugin.equals(filePlugin))
+            endGroup();
+        if (filePlugin == null)
+            return;
+        if (plugin == null)
+        {
+            plugin = filePlugin;
+            transactions++;
+        }
+        files++;
+        groupedFiles++;
+        fileStarted = false;
+        fileRan = false;
+        try
+        {
+            savepoint = savepoints ? getUnderlyingConnection().setSavepoint() : null;
+        } catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+    }
+
+    /**
+     * @return the plugin of the SQL file of a changeset, null if the file can not be grouped
+     */
+    private static String pluginName(ChangeSet changeSet)
+    {
+        if (!changeSet.isRunInTransaction() || changeSet.getChanges().stream().anyMatch(c -> c instanceof StreamedSqlChangeLogParser.StreamedSqlChange))
+            return null;
+        SqlPathInfo info = changeSet.getFilePath() == null ? null : SqlPathInfo.parse(changeSet.getFilePath());
+        return info == null ? null : info.getFullPluginName();
+    }
+
+    /**
+     * Writes the DATABASECHANGELOG rows of the current transaction and commits it
+     */
+    private void endGroup() throws DatabaseException
+    {
+        if (plugin == null)
+            return;
+        String groupPlugin = plugin;
+        int groupFiles = files;
+        plugin = null;
+        savepoint = null;
+        files = 0;
+        try
+        {
+            writeChangeLogRows();
+            getUnderlyingConnection().commit();
+        } catch (SQLException e)
+        {
+            changeLogRows.clear();
+            super.rollback();
+            throw new DatabaseException("LiquibaseRunner could not commit the SQL files of " + groupPlugin, e);
+        }
+        AppLogService.debug("LiquibaseRunner committed {} SQL files of {} in one transaction", groupFiles, groupPlugin);
+    }
+
+    private void writeChangeLogRows() throws SQLException
+    {
+        if (changeLogRows.isEmpty())
+            return;
+        try (Statement statement = getUnderlyingConnection().createStatement())
+        {
+            for (String sql : changeLogRows)
+                statement.addBatch(sql);
+            statement.executeBatch();
+        }
+        changeLogRows.clear();
+    }
+
+    @Override
+    public void commit() throws DatabaseException
+    {
+        // the files of the plugin are committed together
+        if (plugin == null)
+            super.commit();
+    }
+
+    @Override
+    public void rollback() throws DatabaseException
+    {
+        if (plugin == null)
+        {
+            super.rollback();
+            return;
+        }
+        // liquibase also rolls back after checking the preconditions of a changeset, before running it
+        if (!fileStarted)
+            return;
+        // and before releasing its lock, after the last file
+        if (fileRan)
+        {
+            endGroup();
+            super.rollback();
+            return;
+        }
+        String groupPlugin = plugin;
+        int kept = files - 1;
+        Savepoint failed = savepoint;
+        plugin = null;
+        savepoint = null;
+        files = 0;
+        if (failed == null)
+        {
+            changeLogRows.clear();
+            super.rollback();
+            AppLogService.info("LiquibaseRunner rolled back the {} SQL files of {} run before the failed one", kept, groupPlugin);
+            return;
+        }
+        try
+        {
+            // the files which ran before the failed one are kept, as they would be without grouping
+            getUnderlyingConnection().rollback(failed);
+            writeChangeLogRows();
+            getUnderlyingConnection().commit();
+        } catch (SQLException e)
+        {
+            changeLogRows.clear();
+            super.rollback();
+            throw new DatabaseException("LiquibaseRunner could not commit the SQL files of " + groupPlugin + " run before the failed one", e);
+        }
+    }
+
+    /**
+     * Executor of a run in grouped mode : keeps the DATABASECHANGELOG rows of the current transaction for its commit
+     */
+    private static class ChangeLogBatchingExecutor extends JdbcExecutor
+    {
+        @Override
+        public void execute(SqlStatement sql, List<SqlVisitor> sqlVisitors) throws DatabaseException
+        {
+            GroupedJdbcConnection connection = (GroupedJdbcConnection) database.getConnection();
+            if (sql instanceof MarkChangeSetRanStatement && connection.plugin != null)
+            {
+                // generated now : the order of execution is taken from a sequence
+                for (Sql generated : SqlGeneratorFactory.getInstance().generateSql(sql, database))
+                    connection.changeLogRows.add(generated.toSql());
+                connection.fileRan = true;
+                return;
+            }
+            if (connection.plugin != null)
+                connection.fileStarted = true;
+            super.execute(sql, sqlVisitors);
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ * First installs : the secondary indexes and foreign keys of the create files are created once all the init files loaded their data, instead of
+ * being maintained and checked for every inserted row.
+ *
+ * IndexDeferralSqlChangeLogParser takes the statements out of the create files and records them in the context of the run. They are created at the
+ * end of the run, then looked up in the database metadata : the run fails if one of them is missing, or if its columns (and for a foreign key, the
+ * referenced table and columns) are not those of its statement. Until then they are kept in core_datastore, so that a run interrupted in between
+ * creates them on the next startup. Indexes on expressions are only looked up by name.
+ *
+ * Only non unique CREATE INDEX statements and single ALTER TABLE ... ADD CONSTRAINT ... FOREIGN KEY statements are deferred : unique indexes may be
+ * relied upon by the init files (INSERT IGNORE, ON DUPLICATE KEY...), and unnamed constraints could not be checked.
+ */
+final class IndexDeferral
+{
+    private static final String SESSION_BEFORE = "liquibase.index.deferral.session.before.";
+    private static final String SESSION_AFTER = "liquibase.index.deferral.session.after.";
+    private static final String PENDING_KEY = "core.plugins.status.liquibase.deferred.indexes";
+    private static final Pattern INDEX = Pattern.compile("CREATE\\s+INDEX\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?([^\\s(]+)\\s+ON\\s+([^\\s(]+).*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern FOREIGN_KEY = Pattern.compile(
+            "ALTER\\s+TABLE\\s+(?:ONLY\\s+)?([^\\s(]+)\\s+ADD\\s+CONSTRAINT\\s+([^\\s(]+)\\s+FOREIGN\\s+KEY\\b.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern REFERENCES = Pattern.compile("\\s*REFERENCES\\s+([^\\s(]+)", Pattern.CASE_INSENSITIVE);
+    // a column of an index or a key, with its optional prefix length and order
+    private static final Pattern COLUMN = Pattern.compile(
+            "(?:\"([^\"]+)\"|`([^`]+)`|\\[([^\\]]+)\\]|([A-Za-z_][\\w$]*))(?:\\s*\\(\\s*\\d+\\s*\\))?(?:\\s+(?:ASC|DESC))?", Pattern.CASE_INSENSITIVE);
+    // another clause of the same ALTER TABLE statement
+    private static final Pattern OTHER_CLAUSE = Pattern.compile(",\\s*(?:ADD|DROP|ALTER|MODIFY|CHANGE|RENAME)\\b", Pattern.CASE_INSENSITIVE);
+
+    private IndexDeferral()
+    {
+    }
+
+    /**
+     * @param statement a statement of a create file, as returned by a SqlStatementReader
+     * @param mysql     true if # starts a comment
+     * @return the statement without its leading comments if it creates a secondary index or a foreign key which can be deferred, null otherwise
+     */
+    static String deferrable(String statement, boolean mysql)
+    {
+        DeferredObject object = DeferredObject.parse(statement, mysql);
+        return object == null ? null : object.sql;
+    }
+
+    /**
+     * Applies the session settings of the database for the load of the data, if indexes are deferred by the current run
+     *
+     * @param connection the connection loading the data
+     * @param dialect    liquibase short name of the target database
+     * @throws SQLException
+     */
+    static void beginLoad(Connection connection, String dialect) throws SQLException
+    {
+        if (LiquibaseRunnerContext.isIndexDeferral())
+            execute(connection, AppPropertiesService.getProperty(SESSION_BEFORE + dialect, defaultSession(dialect, true)));
+    }
+
+    /**
+     * Restores the session settings changed by beginLoad() : pooled connections keep them. A failure is only logged, not to hide the one of the load.
+     *
+     * @param connection the connection loading the data
+     * @param dialect    liquibase short name of the target database
+     */
+    static void endLoad(Connection connection, String dialect)
+    {
+        if (!LiquibaseRunnerContext.isIndexDeferral())
+            return;
+        try
+        {
+            execute(connection, AppPropertiesService.getProperty(SESSION_AFTER + dialect, defaultSession(dialect, false)));
+        } catch (SQLException e)
+        {
+            AppLogService.error("LiquibaseRunner could not restore the session settings of the connection", e);
+        }
+    }
+
+    private static String defaultSession(String dialect, boolean before)
+    {
+        if ("mysql".equals(dialect) || "mariadb".equals(dialect))
+            return before ? "SET FOREIGN_KEY_CHECKS = 0" : "SET FOREIGN_KEY_CHECKS = 1";
+        return "";
+    }
+
+    private static void execute(Connection connection, String statements) throws SQLException
+    {
+        for (String sql : split(statements))
+        {
+            try (Statement statement = connection.createStatement())
+            {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    /**
+     * Keeps the indexes deferred by the current run in core_datastore, for the next startup to create them if this one stops before.
+     *
+     * @param poolName the pool of the run, null in single pool mode
+     */
+    static void save(String poolName)
+    {
+        List<String> statements = LiquibaseRunnerContext.deferredIndexes();
+        if (!statements.isEmpty())
+            Datastore.setDataValue(key(poolName), String.join(";\n", statements));
+    }
+
+    /**
+     * Creates the indexes and foreign keys deferred by the current run, and checks that they all exist.
+     *
+     * @param connection the connection of the run
+     * @param poolName   the pool of the run, null in single pool mode
+     * @throws SQLException if a statement failed or an index or constraint is missing afterwards
+     */
+    static void apply(Connection connection, String poolName) throws SQLException
+    {
+        List<String> statements = LiquibaseRunnerContext.deferredIndexes();
+        if (statements.isEmpty())
+            return;
+        save(poolName);
+        create(connection, statements);
+        Datastore.setDataValue(key(poolName), "");
+    }
+
+    /**
+     * Creates the indexes and foreign keys left by a run interrupted before it could create them.
+     *
+     * @param connection the connection of the run
+     * @param poolName   the pool of the run, null in single pool mode
+     * @throws SQLException if a statement failed or an index or constraint is missing afterwards
+     */
+    static void resume(Connection connection, String poolName) throws SQLException
+    {
+        String pending = LiquibaseRunnerContext.statusEntry(key(poolName));
+        if (pending == null || pending.trim().isEmpty())
+            return;
+        List<String> statements = split(pending);
+        AppLogService.info("LiquibaseRunner creating {} indexes and foreign keys deferred by a previous run", statements.size());
+        create(connection, statements);
+        Datastore.setDataValue(key(poolName), "");
+    }
+
+    private static String key(String poolName)
+    {
+        return poolName == null ? PENDING_KEY : PENDING_KEY + "." + poolName;
+    }
+
+    private static List<String> split(String statements)
+    {
+        List<String> split = new ArrayList<>();
+        try (SqlStatementReader reader = new SqlStatementReader(new StringReader(statements), false, false))
+        {
+            for (String statement = reader.next(); statement != null; statement = reader.next())
+                split.add(statement);
+        } catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        return split;
+    }
+
+    /**
+     * Runs the statements whose object does not exist yet, then checks that all of them exist
+     */
+    private static void create(Connection connection, List<String> statements) throws SQLException
+    {
+        long start = System.currentTimeMillis();
+        List<DeferredObject> objects = new ArrayList<>();
+        for (String statement : statements)
+        {
+            DeferredObject object = DeferredObject.parse(statement, false);
+            if (object == null)
+                throw new SQLException("LiquibaseRunner unexpected deferred statement : " + statement);
+            objects.add(object);
+        }
+        // the indexes of the referencing columns first, some databases would create their own
+        objects.sort(Comparator.comparing(object -> object.foreignKey));
+        DatabaseMetaData metadata = connection.getMetaData();
+        // a resumed run may find some of them already created
+        Map<String, String> existing = existing(metadata, objects);
+        int created = 0;
+        for (DeferredObject object : objects)
+        {
+            if (existing.containsKey(object.key()))
+                continue;
+            try (Statement statement = connection.createStatement())
+            {
+                statement.execute(object.sql);
+            }
+            if (!connection.getAutoCommit())
+                connection.commit();
+            created++;
+        }
+        existing = existing(metadata, objects);
+        List<String> missing = new ArrayList<>();
+        for (DeferredObject object : objects)
+        {
+            String found = existing.get(object.key());
+            if (found == null)
+                missing.add(object.name + " on " + object.table);
+            else if (!object.matches(found))
+                missing.add(object.name + " on " + object.table + " (" + found + " instead of " + object.definition() + ")");
+        }
+        if (!missing.isEmpty())
+            throw new SQLException("LiquibaseRunner deferred indexes and foreign keys missing or different after their creation : " + missing);
+        AppLogService.info("LiquibaseRunner created {} deferred indexes and foreign keys in {} ms, all {} found in the database", created,
+                System.currentTimeMillis() - start, objects.size());
+    }
+
+    /**
+     * @return the definitions of the indexes and foreign keys of the tables of the objects (see DeferredObject.definition()), by key
+     */
+    private static Map<String, String> existing(DatabaseMetaData metadata, List<DeferredObject> objects) throws SQLException
+    {
+        Map<String, Boolean> tables = new HashMap<>();
+        for (DeferredObject object : objects)
+            tables.merge(object.table, object.foreignKey, Boolean::logicalOr);
+        Connection connection = metadata.getConnection();
+        Map<String, String> existing = new HashMap<>();
+        for (Map.Entry<String, Boolean> table : tables.entrySet())
+        {
+            String[] names = qualifiedName(metadata, table.getKey());
+            String catalog = names[0] == null ? connection.getCatalog() : null;
+            String schema = names[0] == null ? connection.getSchema() : names[0];
+            // columns in the order of the index
+            try (ResultSet indexes = metadata.getIndexInfo(catalog, schema, names[1], false, true))
+            {
+                while (indexes.next())
+                {
+                    String column = indexes.getString("COLUMN_NAME");
+                    if (column != null)
+                        existing.merge(key(false, table.getKey(), indexes.getString("INDEX_NAME")), normalized(column), (a, b) -> a + "," + b);
+                }
+            }
+            if (table.getValue())
+            {
+                // columns in the order of the key, with the referenced table and columns
+                Map<String, String[]> keys = new HashMap<>();
+                try (ResultSet imported = metadata.getImportedKeys(catalog, schema, names[1]))
+                {
+                    while (imported.next())
+                    {
+                        String referencedTable = normalized(imported.getString("PKTABLE_NAME"));
+                        String[] columns = keys.computeIfAbsent(key(true, table.getKey(), imported.getString("FK_NAME")),
+                                k -> new String[] { null, referencedTable, null });
+                        columns[0] = joined(columns[0], imported.getString("FKCOLUMN_NAME"));
+                        columns[2] = joined(columns[2], imported.getString("PKCOLUMN_NAME"));
+                    }
+                }
+                keys.forEach((key, columns) -> existing.put(key, DeferredObject.definition(columns[0], columns[1], columns[2])));
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * @return the key of an index or a foreign key : a foreign key may share the name of the index created for it (mysql)
+     */
+    private static String key(boolean foreignKey, String table, String name)
+    {
+        return (foreignKey ? "FK|" : "INDEX|") + table + "|" + normalized(name);
+    }
+
+    private static String joined(String columns, String column)
+    {
+        return columns == null ? normalized(column) : columns + "," + normalized(column);
+    }
+
+    private static String normalized(String identifier)
+    {
+        return identifier == null ? "" : identifier.toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the schema (null if not given) and the name of a table, as stored in the database metadata
+     */
+    private static String[] qualifiedName(DatabaseMetaData metadata, String table) throws SQLException
+    {
+        int dot = table.lastIndexOf('.');
+        return new String[] { dot < 0 ? null : identifier(metadata, table.substring(0, dot)), identifier(metadata, table.substring(dot + 1)) };
+    }
+
+    private static String identifier(DatabaseMetaData metadata, String name) throws SQLException
+    {
+        if (name.length() > 1 && (name.charAt(0) == '"' || name.charAt(0) == '`' || name.charAt(0) == '['))
+            return name.substring(1, name.length() - 1);
+        if (metadata.storesUpperCaseIdentifiers())
+            return name.toUpperCase(Locale.ROOT);
+        if (metadata.storesLowerCaseIdentifiers())
+            return name.toLowerCase(Locale.ROOT);
+        return name;
+    }
+
+    /**
+     * An index or foreign key created by a deferrable statement
+     */
+    static final class DeferredObject
+    {
+        final String sql;
+        final String table;
+        final String name;
+        final boolean foreignKey;
+        // upper case, comma separated : null if they could not be parsed (index on expressions)
+        final String columns;
+        // for a foreign key, the referenced columns are null when the statement does not list them (primary key)
+        final String referencedTable;
+        final String referencedColumns;
+
+        private DeferredObject(String sql, String table, String name, boolean foreignKey, String columns, String referencedTable,
+                String referencedColumns)
+        {
+            this.sql = sql;
+            this.table = table;
+            this.name = name;
+            this.foreignKey = foreignKey;
+            this.columns = columns;
+            this.referencedTable = referencedTable;
+            this.referencedColumns = referencedColumns;
+        }
+
+        /**
+         * @return the object created by the statement, null if it is not deferrable
+         */
+        static DeferredObject parse(String statement, boolean mysql)
+        {
+            String code = withoutLeadingComments(statement, mysql);
+            Matcher index = INDEX.matcher(code);
+            if (index.matches())
+            {
+                int[] list = parenthesized(code, index.end(2));
+                return new DeferredObject(code, index.group(2), unqualified(index.group(1)), false, list == null ? null : columns(code, list), null,
+                        null);
+            }
+            Matcher foreignKey = FOREIGN_KEY.matcher(code);
+            if (foreignKey.matches() && !OTHER_CLAUSE.matcher(code).find())
+            {
+                String columns = null;
+                String referencedTable = null;
+                String referencedColumns = null;
+                int[] list = parenthesized(code, foreignKey.end(2));
+                Matcher references = list == null ? null : REFERENCES.matcher(code).region(list[1] + 1, code.length());
+                if (references != null && references.lookingAt())
+                {
+                    columns = columns(code, list);
+                    referencedTable = normalized(unquoted(unqualified(references.group(1))));
+                    int[] referenced = parenthesized(code, references.end());
+                    // the parenthesis must follow the table
+                    if (referenced != null && code.substring(references.end(), referenced[0] - 1).trim().isEmpty())
+                        referencedColumns = columns(code, referenced);
+                }
+                return new DeferredObject(code, foreignKey.group(1), unqualified(foreignKey.group(2)), true, columns, referencedTable,
+                        referencedColumns);
+            }
+            return null;
+        }
+
+        String key()
+        {
+            return IndexDeferral.key(foreignKey, table, unquoted(name));
+        }
+
+        /**
+         * @return the columns of the object as found in the database metadata, with the referenced table and columns of a foreign key
+         */
+        String definition()
+        {
+            return foreignKey ? definition(columns, referencedTable, referencedColumns) : columns;
+        }
+
+        static String definition(String columns, String referencedTable, String referencedColumns)
+        {
+            return "(" + columns + ") REFERENCES " + referencedTable + " (" + referencedColumns + ")";
+        }
+
+        /**
+         * @param found the definition of the object with the same name in the database
+         * @return true if it has the columns of the statement, or if these could not be parsed
+         */
+        boolean matches(String found)
+        {
+            if (columns == null)
+                return true;
+            if (!foreignKey)
+                return columns.equals(found);
+            // the primary key of the referenced table when the statement does not list its columns
+            return referencedColumns == null ? found.startsWith("(" + columns + ") REFERENCES " + referencedTable + " (") : definition().equals(found);
+        }
+
+        /**
+         * @return the start and end of the content of the first parenthesis after a position, null if there is none or it is not closed
+         */
+        private static int[] parenthesized(String code, int from)
+        {
+            int start = code.indexOf('(', from);
+            if (start < 0)
+                return null;
+            int depth = 0;
+            for (int i = start; i < code.length(); i++)
+            {
+                char c = code.charAt(i);
+                if (c == '(')
+                    depth++;
+                else if (c == ')' && --depth == 0)
+                    return new int[] { start + 1, i };
+            }
+            return null;
+        }
+
+        /**
+         * @return the upper case columns of a parenthesized list, null if one of them is an expression
+         */
+        private static String columns(String code, int[] list)
+        {
+            List<String> columns = new ArrayList<>();
+            int depth = 0;
+            int start = list[0];
+            for (int i = list[0]; i <= list[1]; i++)
+            {
+                char c = i == list[1] ? ',' : code.charAt(i);
+                if (c == '(')
+                    depth++;
+                else if (c == ')')
+                    depth--;
+                else if (c == ',' && depth == 0)
+                {
+                    Matcher column = COLUMN.matcher(code.substring(start, i).trim());
+                    if (!column.matches())
+                        return null;
+                    for (int group = 1; group <= column.groupCount(); group++)
+                        if (column.group(group) != null)
+                            columns.add(normalized(column.group(group)));
+                    start = i + 1;
+                }
+            }
+            return String.join(",", columns);
+        }
+
+        private static String unquoted(String name)
+        {
+            return name.replaceAll("[\"`\\[\\]]", "");
+        }
+
+        private static String unqualified(String name)
+        {
+            return name.substring(name.lastIndexOf('.') + 1);
+        }
+
+        private static String withoutLeadingComments(String statement, boolean mysql)
+        {
+            String code = statement.trim();
+            while (true)
+            {
+                if (code.startsWith("--") || (mysql && code.startsWith("#")))
+                {
+                    int end = code.indexOf('\n');
+                    code = end < 0 ? "" : code.substring(end + 1).trim();
+                } else if (code.startsWith("/*"))
+                {
+                    int end = code.indexOf("*/");
+                    code = end < 0 ? "" : code.substring(end + 2).trim();
+                } else
+                {
+                    return code;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+import fr.paris.lutece.utils.sql.SqlPathInfo;
+import liquibase.change.core.RawSQLChange;
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.database.Database;
+import liquibase.exception.ChangeLogParseException;
+import liquibase.exception.UnexpectedLiquibaseException;
+import liquibase.parser.ChangeLogParserFactory;
+import liquibase.parser.core.formattedsql.FormattedSqlChangeLogParser;
+import liquibase.parser.core.sql.SqlChangeLogParser;
+import liquibase.resource.ResourceAccessor;
+import liquibase.statement.SqlStatement;
+
+/**
+ * Parses the create SQL files of first installs into an IndexDeferralSqlChange : their secondary indexes and foreign keys are left to IndexDeferral,
+ * which creates them once the init files loaded their data.
+ *
+ * The SQL of the change is the content of the file, only the statements sent to the database lack the deferred ones : the checksums recorded for
+ * the create files are the same as without deferral, so that they still match if the files are selected again after a failed install.
+ *
+ * Its priority is above the ones of ChecksumCachingSqlChangeLogParser and StreamedSqlChangeLogParser.
+ */
+class IndexDeferralSqlChangeLogParser extends SqlChangeLogParser
+{
+    private static final String ENABLED = "liquibase.index.deferral.enabled";
+    private static final FormattedSqlChangeLogParser FORMATTED = new FormattedSqlChangeLogParser();
+
+    private static boolean registered;
+
+    /**
+     * Registers the parser if indexes are to be deferred on empty databases
+     */
+    static synchronized void register()
+    {
+        if (AppPropertiesService.getPropertyBoolean(ENABLED, false) && !registered)
+        {
+            ChangeLogParserFactory.getInstance().register(new IndexDeferralSqlChangeLogParser());
+            registered = true;
+        }
+    }
+
+    @Override
+    public int getPriority()
+    {
+        return FORMATTED.getPriority() + 3;
+    }
+
+    @Override
+    public boolean supports(String changeLogFile, ResourceAccessor resourceAccessor)
+    {
+        return LiquibaseRunnerContext.isIndexDeferral() && isCreate(changeLogFile) && super.supports(changeLogFile, resourceAccessor)
+                && !FORMATTED.supports(changeLogFile, resourceAccessor);
+    }
+
+    private static boolean isCreate(String path)
+    {
+        if (path == null || !path.endsWith(".sql") || !path.substring(path.lastIndexOf('/') + 1).startsWith("create"))
+            return false;
+        SqlPathInfo info = SqlPathInfo.parse(path);
+        return info != null && info.isCreate();
+    }
+
+    @Override
+    public DatabaseChangeLog parse(String physicalChangeLogLocation, ChangeLogParameters changeLogParameters, ResourceAccessor resourceAccessor)
+            throws ChangeLogParseException
+    {
+        DatabaseChangeLog parsed = super.parse(physicalChangeLogLocation, changeLogParameters, resourceAccessor);
+        RawSQLChange parsedChange = (RawSQLChange) parsed.getChangeSets().get(0).getChanges().get(0);
+        IndexDeferralSqlChange change = new IndexDeferralSqlChange(physicalChangeLogLocation);
+        change.setSql(parsedChange.getSql());
+        change.setEndDelimiter(parsedChange.getEndDelimiter());
+        return ChecksumCachingSqlChangeLogParser.withChange(parsed, physicalChangeLogLocation, change);
+    }
+
+    /**
+     * Raw SQL change recording its deferrable statements in the context of the run, and running the other ones
+     */
+    static class IndexDeferralSqlChange extends RawSQLChange
+    {
+        private final String path;
+
+        IndexDeferralSqlChange(String path)
+        {
+            this.path = path;
+        }
+
+        @Override
+        public SqlStatement[] generateStatements(Database database)
+        {
+            boolean mysql = "mysql".equals(database.getShortName()) || "mariadb".equals(database.getShortName());
+            List<String> kept = new ArrayList<>();
+            List<String> deferred = new ArrayList<>();
+            try (SqlStatementReader reader = new SqlStatementReader(new StringReader(getSql()), mysql, "postgresql".equals(database.getShortName())))
+            {
+                for (String statement = reader.next(); statement != null; statement = reader.next())
+                {
+                    String deferrable = IndexDeferral.deferrable(statement, mysql);
+                    if (deferrable == null)
+                        kept.add(statement);
+                    else
+                        deferred.add(deferrable);
+                }
+            } catch (IOException e)
+            {
+                throw new UnexpectedLiquibaseException(e);
+            }
+            // recorded again if liquibase asks for the statements again
+            LiquibaseRunnerContext.deferIndexes(path, deferred);
+            if (deferred.isEmpty())
+                return super.generateStatements(database);
+            AppLogService.debug("LiquibaseRunner deferring {} indexes and foreign keys of {}", deferred.size(), path);
+            StringBuilder sql = new StringBuilder();
+            for (String statement : kept)
+                sql.append(statement).append(";\n");
+            RawSQLChange change = new RawSQLChange(sql.toString());
+            change.setSplitStatements(isSplitStatements());
+            change.setStripComments(isStripComments());
+            change.setEndDelimiter(getEndDelimiter());
+            change.setChangeSet(getChangeSet());
+            return change.generateStatements(database);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import liquibase.resource.Resource;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Answers searches of the SQL directory from the SqlIndex generated at build time, instead of scanning every jar and directory of the classpath.
+ *
+ * Other searches, and all searches when the index is missing or out of date, are delegated.
+ */
+public class IndexedResourceAccessor implements ResourceAccessor
+{
+    private static final String SQL_PATH = "sql";
+
+    private final ResourceAccessor delegate;
+    private final SqlIndex index;
+
+    private IndexedResourceAccessor(ResourceAccessor delegate, SqlIndex index)
+    {
+        this.delegate = delegate;
+        this.index = index;
+    }
+
+    /**
+     * Wraps an accessor if an up to date index exists.
+     *
+     * @param delegate  gives access to the classpath
+     * @param signature signature of the current jars and SQL files (see SqlIndex.signature()), or null if unknown, in which case the index is trusted
+     * @return an IndexedResourceAccessor, or the delegate itself
+     * @throws IOException
+     */
+    public static ResourceAccessor wrap(ResourceAccessor delegate, String signature) throws IOException
+    {
+        SqlIndex index = SqlIndex.load(delegate);
+        if (index == null)
+            return delegate;
+        if (signature != null && !signature.equals(index.getSignature()))
+        {
+            AppLogService.info("LiquibaseRunner SQL index is out of date (signature {} instead of {}), scanning the classpath", signature, index.getSignature());
+            return delegate;
+        }
+        AppLogService.info("LiquibaseRunner using SQL index of {} files", index.getEntries().size());
+        return new IndexedResourceAccessor(delegate, index);
+    }
+
+    @Override
+    public void close() throws Exception
+    {
+        delegate.close();
+    }
+
+    @Override
+    public List<Resource> search(String path, boolean recursive) throws IOException
+    {
+        String normalized = path.replaceAll("^/+|/+$", "");
+        if (!SQL_PATH.equals(normalized) || !recursive)
+            return delegate.search(path, recursive);
+        List<Resource> resources = new ArrayList<>(index.getEntries().size());
+        for (SqlIndex.Entry entry : index.getEntries())
+        {
+            List<Resource> found = delegate.getAll(entry.getPath());
+            if (found == null || found.isEmpty())
+                throw new IOException("Indexed SQL file not found on the classpath : " + entry.getPath());
+            resources.add(found.get(0));
+        }
+        return resources;
+    }
+
+    @Override
+    public List<Resource> getAll(String path) throws IOException
+    {
+        return delegate.getAll(path);
+    }
+
+    @Override
+    public List<String> describeLocations()
+    {
+        return delegate.describeLocations();
+    }
+}
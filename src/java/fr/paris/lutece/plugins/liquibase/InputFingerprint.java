@@ -0,0 +1,132 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+import liquibase.resource.Resource;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Cheap fingerprint of everything a liquibase run depends on : SQL resources, plugin versions, target database and version control options.
+ *
+ * When the fingerprint of a run matches the one stored by the last successful run, liquibase has nothing to do and can be skipped entirely.
+ */
+final class InputFingerprint
+{
+    private static final String SQL_PATH = "sql";
+    private static final String FINGERPRINT_KEY = "core.plugins.status.liquibase.fingerprint";
+    private static final String LIQUIBASE_ACCEPT_SNAPSHOT_VERSIONS = "liquibase.accept.snapshot.versions";
+    private static final String LIQUIBASE_ACCEPT_UNSTABLE_VERSIONS = "liquibase.accept.unstable.versions";
+
+    private InputFingerprint()
+    {
+    }
+
+    /**
+     * Summarizes the SQL resources : one line per resource, with its path and its identity, sorted by path.
+     *
+     * The identity is taken from the metadata of the resource (see ChecksumCache.computeIdentity()) : the resources are not read, except those
+     * which have no cheap identity, whose size and CRC32 are computed from their content.
+     *
+     * @param accessor gives access to the classpath
+     * @return the summary
+     * @throws IOException
+     */
+    static String describeResources(ResourceAccessor accessor) throws IOException
+    {
+        List<Resource> resources = new ArrayList<>(accessor.search(SQL_PATH, true));
+        resources.sort(Comparator.comparing(Resource::getPath));
+        StringBuilder description = new StringBuilder();
+        for (Resource resource : resources)
+        {
+            String identity = resource.getUri() == null ? "" : ChecksumCache.computeIdentity(resource.getUri());
+            description.append(resource.getPath()).append(':').append(identity.isEmpty() ? contentIdentity(resource) : identity).append('\n');
+        }
+        return description.toString();
+    }
+
+    /**
+     * Size and CRC32 of the content of a resource
+     */
+    private static String contentIdentity(Resource resource) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        long size = 0;
+        byte[] buffer = new byte[8192];
+        try (InputStream in = resource.openInputStream())
+        {
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer))
+            {
+                crc.update(buffer, 0, read);
+                size += read;
+            }
+        }
+        return size + ":" + Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * Computes the fingerprint of a run.
+     *
+     * @param resourcesDescription result of describeResources()
+     * @param url                  target database URL
+     * @return a hex encoded SHA-256 digest
+     */
+    static String compute(String resourcesDescription, String url)
+    {
+        return digest(resourcesDescription, "url=" + url);
+    }
+
+    /**
+     * Computes a fingerprint independent of the target database instance, for artifacts shared by all databases of a kind (see SnapshotBootstrap).
+     *
+     * @param resourcesDescription result of describeResources()
+     * @param dialect              liquibase short name of the target database
+     * @return a hex encoded SHA-256 digest
+     */
+    static String computeForDialect(String resourcesDescription, String dialect)
+    {
+        return digest(resourcesDescription, "dialect=" + dialect);
+    }
+
+    private static String digest(String resourcesDescription, String target)
+    {
+        StringBuilder input = new StringBuilder(resourcesDescription);
+        for (Map.Entry<String, String> meta : new TreeMap<>(PluginMeta.getPluginsMeta()).entrySet())
+            input.append(meta.getKey()).append('=').append(meta.getValue()).append('\n');
+        input.append(target).append('\n');
+        input.append("snapshot=").append(AppPropertiesService.getPropertyBoolean(LIQUIBASE_ACCEPT_SNAPSHOT_VERSIONS, false)).append('\n');
+        input.append("unstable=").append(AppPropertiesService.getPropertyBoolean(LIQUIBASE_ACCEPT_UNSTABLE_VERSIONS, false)).append('\n');
+        try
+        {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(input.toString().getBytes(StandardCharsets.UTF_8)))
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e)
+        {
+            // SHA-256 is mandatory on every JVM
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Datastore key of the fingerprint of the last successful run
+     *
+     * @param poolName the pool, or null in single pool mode
+     * @return the key
+     */
+    static String key(String poolName)
+    {
+        return poolName == null ? FINGERPRINT_KEY : FINGERPRINT_KEY + "." + poolName;
+    }
+}
@@ -0,0 +1,194 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Merges consecutive single row inserts into the same table and columns into multi-row inserts, as the SQL stream is read.
+ *
+ * Only inserts written on a single line, with one VALUES tuple and nothing but the terminating semicolon after it, are merged. Lines with a backslash
+ * or a comment outside quoted strings are left untouched, as well as any other line, which ends the current group.
+ */
+class InsertCoalescingInputStream extends InputStream
+{
+    // INSERT INTO table [(columns)] VALUES ( : group 1 is the part shared by the rows of a multi-row insert
+    private static final Pattern INSERT = Pattern.compile("^\\s*(INSERT\\s+INTO\\s+[^\\s(;]+\\s*(?:\\([^()'\";]*\\))?)\\s*VALUES\\s*(?=\\()",
+            Pattern.CASE_INSENSITIVE);
+
+    private final BufferedReader reader;
+    private final String path;
+    private final int batchSize;
+    private final int maxLength;
+    // pending group : shared part, tuples, and the original line while it has a single row
+    private String head;
+    private final List<String> tuples = new ArrayList<>();
+    private String firstLine;
+    private int groupLength;
+    // coalesced content not read yet
+    private byte[] chunk = new byte[0];
+    private int position;
+    private boolean eof;
+    private boolean closed;
+    private int insertsRead;
+    private int insertsWritten;
+
+    /**
+     * @param in        the SQL stream
+     * @param path      path of the SQL file, for the logs
+     * @param batchSize maximum number of rows of a multi-row insert
+     * @param maxLength maximum length (in chars) of a multi-row insert
+     */
+    InsertCoalescingInputStream(InputStream in, String path, int batchSize, int maxLength)
+    {
+        this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        this.path = path;
+        this.batchSize = batchSize;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Makes the next coalesced lines available
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException
+    {
+        if (position < chunk.length)
+            return true;
+        StringBuilder out = new StringBuilder();
+        while (out.length() == 0 && !eof)
+        {
+            String line = reader.readLine();
+            if (line == null)
+            {
+                eof = true;
+                flush(out);
+                break;
+            }
+            Matcher matcher = INSERT.matcher(line);
+            String tuple = line.indexOf('\\') < 0 && matcher.find() ? tuple(line, matcher.end()) : null;
+            if (tuple == null)
+            {
+                flush(out);
+                out.append(line).append('\n');
+                continue;
+            }
+            insertsRead++;
+            String lineHead = matcher.group(1).trim();
+            if (!lineHead.equals(head) || tuples.size() >= batchSize || groupLength + tuple.length() + 2 > maxLength)
+            {
+                flush(out);
+                head = lineHead;
+                firstLine = line;
+                groupLength = head.length() + " VALUES ".length() + 2;
+            }
+            tuples.add(tuple);
+            groupLength += tuple.length() + 2;
+        }
+        chunk = out.toString().getBytes(StandardCharsets.UTF_8);
+        position = 0;
+        return chunk.length > 0;
+    }
+
+    /**
+     * Writes the pending group, as a multi-row insert if it has several rows
+     */
+    private void flush(StringBuilder out)
+    {
+        if (tuples.isEmpty())
+            return;
+        if (tuples.size() == 1)
+        {
+            out.append(firstLine).append('\n');
+        } else
+        {
+            out.append(head).append(" VALUES ").append(String.join(",\n", tuples)).append(";\n");
+        }
+        insertsWritten++;
+        tuples.clear();
+        head = null;
+        firstLine = null;
+    }
+
+    /**
+     * Extracts the VALUES tuple of a single row insert
+     *
+     * @param line  the line
+     * @param start index of the opening parenthesis of the tuple
+     * @return the tuple, or null if the line is not a complete single row insert
+     */
+    static String tuple(String line, int start)
+    {
+        int depth = 0;
+        char quote = 0;
+        int end = -1;
+        for (int i = start; i < line.length() && end < 0; i++)
+        {
+            char c = line.charAt(i);
+            if (quote != 0)
+            {
+                if (c == quote)
+                {
+                    // a doubled quote is an escaped quote
+                    if (i + 1 < line.length() && line.charAt(i + 1) == quote)
+                        i++;
+                    else
+                        quote = 0;
+                }
+                continue;
+            }
+            char next = i + 1 < line.length() ? line.charAt(i + 1) : 0;
+            if (c == '\'' || c == '"' || c == '`')
+                quote = c;
+            else if (c == '(')
+                depth++;
+            else if (c == ')' && --depth == 0)
+                end = i + 1;
+            else if (c == ';' || c == '#' || (c == '-' && next == '-') || (c == '/' && next == '*'))
+                return null;
+        }
+        if (end < 0 || !";".equals(line.substring(end).trim()))
+            return null;
+        return line.substring(start, end);
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        return fill() ? chunk[position++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+            return 0;
+        int total = 0;
+        while (total < len && fill())
+        {
+            int count = Math.min(len - total, chunk.length - position);
+            System.arraycopy(chunk, position, b, off + total, count);
+            position += count;
+            total += count;
+        }
+        return total == 0 ? -1 : total;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        reader.close();
+        if (!closed && insertsRead > insertsWritten)
+            AppLogService.debug("LiquibaseRunner coalesced {} inserts into {} in {}", insertsRead, insertsWritten, path);
+        closed = true;
+    }
+}
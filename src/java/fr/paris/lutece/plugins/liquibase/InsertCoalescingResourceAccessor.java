@@ -0,0 +1,208 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+import fr.paris.lutece.utils.sql.SqlPathInfo;
+import liquibase.resource.OpenOptions;
+import liquibase.resource.Resource;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Merges the single row inserts of create/init SQL files into multi-row inserts (see InsertCoalescingInputStream), to load the data of first
+ * installs with far fewer statements.
+ *
+ * Only create/init files are rewritten : their content does not depend on the state of the database, but it does depend on the
+ * liquibase.insert.coalescing.* properties, and so do the checksums liquibase records for them. Changing the coalescing or its sizes between a
+ * failed first install and its retry makes liquibase reject the files which already ran. Update files are left untouched.
+ */
+class InsertCoalescingResourceAccessor implements ResourceAccessor
+{
+    private static final String ENABLED = "liquibase.insert.coalescing.enabled";
+    private static final String BATCH_SIZE = "liquibase.insert.coalescing.batch.size";
+    private static final String MAX_LENGTH = "liquibase.insert.coalescing.max.length";
+
+    private final ResourceAccessor delegate;
+    private final int batchSize;
+    private final int maxLength;
+
+    private InsertCoalescingResourceAccessor(ResourceAccessor delegate, int batchSize, int maxLength)
+    {
+        this.delegate = delegate;
+        this.batchSize = batchSize;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Wraps an accessor if coalescing is enabled and supported by the target database.
+     *
+     * @param delegate gives access to the (filtered) SQL files
+     * @param dialect  the liquibase short name of the target database
+     * @return an InsertCoalescingResourceAccessor, or the delegate itself
+     */
+    static ResourceAccessor wrap(ResourceAccessor delegate, String dialect)
+    {
+        if (!AppPropertiesService.getPropertyBoolean(ENABLED, false))
+            return delegate;
+        int batchSize = batchSize(dialect);
+        if (batchSize <= 1)
+        {
+            AppLogService.info("LiquibaseRunner insert coalescing not supported for {}", dialect);
+            return delegate;
+        }
+        AppLogService.info("LiquibaseRunner coalescing inserts by {} rows for {}", batchSize, dialect);
+        return new InsertCoalescingResourceAccessor(delegate, batchSize, maxLength());
+    }
+
+    /**
+     * Describes the coalescing of the files for a database, for the caches of values computed from their content
+     *
+     * @param dialect the liquibase short name of the target database
+     * @return a description of the configuration in effect
+     */
+    static String describe(String dialect)
+    {
+        int batchSize = AppPropertiesService.getPropertyBoolean(ENABLED, false) ? batchSize(dialect) : 1;
+        return batchSize <= 1 ? "none" : batchSize + "/" + maxLength();
+    }
+
+    private static int batchSize(String dialect)
+    {
+        int batchSize = AppPropertiesService.getPropertyInt(BATCH_SIZE, 0);
+        return batchSize <= 0 ? defaultBatchSize(dialect) : batchSize;
+    }
+
+    private static int maxLength()
+    {
+        return AppPropertiesService.getPropertyInt(MAX_LENGTH, 1024 * 1024);
+    }
+
+    /**
+     * Default number of rows of a multi-row insert
+     *
+     * @param dialect the liquibase short name of the target database
+     * @return the batch size, 1 if the database has no multi-row insert
+     */
+    static int defaultBatchSize(String dialect)
+    {
+        if (dialect == null)
+            return 1;
+        switch (dialect)
+        {
+            case "mssql":
+                // hard limit of a VALUES list
+                return 1000;
+            case "mysql":
+            case "mariadb":
+            case "postgresql":
+            case "hsqldb":
+            case "h2":
+            case "derby":
+            case "db2":
+            case "sqlite":
+                // also the default SQLITE_MAX_COMPOUND_SELECT
+                return 500;
+            default:
+                // oracle has no multi-row VALUES before 23ai, unknown databases are left alone
+                return 1;
+        }
+    }
+
+    @Override
+    public void close() throws Exception
+    {
+        delegate.close();
+    }
+
+    @Override
+    public List<Resource> search(String path, boolean recursive) throws IOException
+    {
+        return coalesce(delegate.search(path, recursive));
+    }
+
+    @Override
+    public List<Resource> getAll(String path) throws IOException
+    {
+        return coalesce(delegate.getAll(path));
+    }
+
+    @Override
+    public List<String> describeLocations()
+    {
+        return delegate.describeLocations();
+    }
+
+    private List<Resource> coalesce(List<Resource> resources)
+    {
+        return resources == null ? null : resources.stream().map(r -> isCreate(r.getPath()) ? new CoalescingResource(r) : r).collect(Collectors.toList());
+    }
+
+    private static boolean isCreate(String path)
+    {
+        if (path == null || !path.endsWith(".sql"))
+            return false;
+        SqlPathInfo info = SqlPathInfo.parse(path);
+        return info != null && info.isCreate();
+    }
+
+    private class CoalescingResource implements Resource
+    {
+        private final Resource actual;
+
+        CoalescingResource(Resource actual)
+        {
+            this.actual = actual;
+        }
+
+        public String getPath()
+        {
+            return actual.getPath();
+        }
+
+        public InputStream openInputStream() throws IOException
+        {
+            return new InsertCoalescingInputStream(actual.openInputStream(), getPath(), batchSize, maxLength);
+        }
+
+        public boolean isWritable()
+        {
+            return false;
+        }
+
+        public boolean exists()
+        {
+            return actual.exists();
+        }
+
+        public Resource resolve(String other)
+        {
+            return actual.resolve(other);
+        }
+
+        public Resource resolveSibling(String other)
+        {
+            return actual.resolveSibling(other);
+        }
+
+        public OutputStream openOutputStream(OpenOptions openOptions) throws IOException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public OutputStream openOutputStream(boolean createIfNeeded) throws IOException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public URI getUri()
+        {
+            return actual.getUri();
+        }
+    }
+}
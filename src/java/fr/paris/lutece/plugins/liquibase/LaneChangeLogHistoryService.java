@@ -0,0 +1,42 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import liquibase.changelog.StandardChangeLogHistoryService;
+import liquibase.database.Database;
+import liquibase.exception.LiquibaseException;
+
+/**
+ * DATABASECHANGELOG history of the databases of plugin lanes : the order of execution of their rows is taken from their run, instead of from a
+ * MAX(ORDEREXECUTED) cached by each lane, which would give the same values to parallel lanes.
+ *
+ * Declared to liquibase in META-INF/services. The lane databases are kept by LaneLockService.
+ */
+public class LaneChangeLogHistoryService extends StandardChangeLogHistoryService
+{
+    @Override
+    public int getPriority()
+    {
+        return PRIORITY_DATABASE;
+    }
+
+    @Override
+    public boolean supports(Database database)
+    {
+        return LaneLockService.laneRun(database) != null;
+    }
+
+    @Override
+    public int getNextSequenceValue() throws LiquibaseException
+    {
+        LaneLockService.LaneRun run = LaneLockService.laneRun(getDatabase());
+        return run == null ? super.getNextSequenceValue() : run.nextOrderExecuted(this);
+    }
+
+    /**
+     * @return the next order of execution read from DATABASECHANGELOG by this lane
+     * @throws LiquibaseException
+     */
+    int readNextSequenceValue() throws LiquibaseException
+    {
+        return super.getNextSequenceValue();
+    }
+}
@@ -0,0 +1,164 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import liquibase.database.Database;
+import liquibase.exception.LiquibaseException;
+import liquibase.exception.LockException;
+import liquibase.lockservice.DatabaseChangeLogLock;
+import liquibase.lockservice.LockService;
+
+/**
+ * Lock service of the databases of plugin lanes : the liquibase lock is taken by the run on its own database and held for all its lanes, so a lane
+ * only checks that its run still holds it.
+ *
+ * Declared to liquibase in META-INF/services, as LaneChangeLogHistoryService : liquibase resets its factories at the end of each update, and keeps
+ * only the services it found there. It instantiates them by reflection, so the lane databases are kept in a static map, with the run they belong
+ * to.
+ */
+public class LaneLockService implements LockService
+{
+    private static final Map<Database, LaneRun> LANE_DATABASES = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    private LaneRun run;
+
+    /**
+     * Declares the database of a lane, before liquibase uses it
+     *
+     * @param database the database of the lane
+     * @param run      the run of the lane
+     */
+    static void addLane(Database database, LaneRun run)
+    {
+        LANE_DATABASES.put(database, run);
+    }
+
+    /**
+     * Forgets the database of a lane, once closed
+     *
+     * @param database the database of the lane
+     */
+    static void removeLane(Database database)
+    {
+        LANE_DATABASES.remove(database);
+    }
+
+    /**
+     * @param database a liquibase database
+     * @return the run of the lane of the database, null if it is not the database of a lane
+     */
+    static LaneRun laneRun(Database database)
+    {
+        return LANE_DATABASES.get(database);
+    }
+
+    @Override
+    public int getPriority()
+    {
+        return PRIORITY_DATABASE;
+    }
+
+    @Override
+    public boolean supports(Database database)
+    {
+        return LANE_DATABASES.containsKey(database);
+    }
+
+    @Override
+    public void setDatabase(Database database)
+    {
+        run = LANE_DATABASES.get(database);
+    }
+
+    @Override
+    public void setChangeLogLockWaitTime(long changeLogLockWaitTime)
+    {
+    }
+
+    @Override
+    public void setChangeLogLockRecheckTime(long changeLogLockRecheckTime)
+    {
+    }
+
+    @Override
+    public boolean hasChangeLogLock()
+    {
+        return run != null && run.lockService.hasChangeLogLock();
+    }
+
+    @Override
+    public void waitForLock() throws LockException
+    {
+        if (!hasChangeLogLock())
+            throw new LockException("LiquibaseRunner the run of the lane does not hold the liquibase lock");
+    }
+
+    @Override
+    public boolean acquireLock()
+    {
+        return hasChangeLogLock();
+    }
+
+    @Override
+    public void releaseLock()
+    {
+    }
+
+    @Override
+    public DatabaseChangeLogLock[] listLocks()
+    {
+        return new DatabaseChangeLogLock[0];
+    }
+
+    @Override
+    public void forceReleaseLock()
+    {
+    }
+
+    @Override
+    public void reset()
+    {
+    }
+
+    @Override
+    public void init()
+    {
+    }
+
+    @Override
+    public void destroy()
+    {
+    }
+
+    /**
+     * Run of a set of lanes : holds the liquibase lock for them, and gives their DATABASECHANGELOG rows their order of execution
+     */
+    static class LaneRun
+    {
+        private final LockService lockService;
+        private Integer lastOrderExecuted;
+
+        /**
+         * @param lockService the lock service of the database of the run, holding the liquibase lock
+         */
+        LaneRun(LockService lockService)
+        {
+            this.lockService = lockService;
+        }
+
+        /**
+         * Next value of DATABASECHANGELOG.ORDEREXECUTED, unique across the lanes of the run
+         *
+         * @param service the history service of the lane asking for it, reading the first value from DATABASECHANGELOG
+         * @return the value
+         * @throws LiquibaseException
+         */
+        synchronized int nextOrderExecuted(LaneChangeLogHistoryService service) throws LiquibaseException
+        {
+            lastOrderExecuted = lastOrderExecuted == null ? service.readNextSequenceValue() : lastOrderExecuted + 1;
+            return lastOrderExecuted;
+        }
+    }
+}
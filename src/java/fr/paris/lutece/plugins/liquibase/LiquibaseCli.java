@@ -0,0 +1,148 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Runs liquibase outside of the webapp, like LiquibaseRunner at startup, so that the database can be migrated by a pre-deploy job and the webapp
+ * started with liquibase.enabled.at.startup=false.
+ *
+ * Usage : java -cp plugin-liquibase-&lt;version&gt;.jar fr.paris.lutece.plugins.liquibase.LiquibaseCli &lt;webapp directory or war&gt; &lt;JDBC
+ * URL&gt; [user]. The password is read from the LUTECE_DB_PASSWORD environment variable.
+ *
+ * The classes and jars of the webapp (SQL files, lutece-core, liquibase, JDBC driver) are loaded in their own class loader, and the configuration
+ * of the webapp applies, except that no file is deferred. This class only uses the JDK, so that the jar of the plugin is enough to start it.
+ */
+public final class LiquibaseCli
+{
+    private static final String PASSWORD_VARIABLE = "LUTECE_DB_PASSWORD";
+    private static final String MIGRATION_CLASS = "fr.paris.lutece.plugins.liquibase.OfflineMigration";
+    private static final String LOG4J_CONFIGURATION = "log4j2.configurationFile";
+    private static final String LOG4J_FILE = "WEB-INF/conf/log4j2.properties";
+
+    private LiquibaseCli()
+    {
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 2 || args.length > 3)
+        {
+            System.err.println("Usage : LiquibaseCli <webapp directory or war> <JDBC URL> [user]");
+            System.err.println("The password is read from the " + PASSWORD_VARIABLE + " environment variable");
+            System.exit(2);
+        }
+        System.exit(run(new File(args[0]), args[1], args.length > 2 ? args[2] : null, System.getenv(PASSWORD_VARIABLE)));
+    }
+
+    /**
+     * @param webapp   exploded webapp directory, or war file
+     * @param url      JDBC URL of the database of the default pool
+     * @param user     database user, or null
+     * @param password database password, or null
+     * @return the exit code : 0 if the migration succeeded
+     * @throws Exception
+     */
+    static int run(File webapp, String url, String user, String password) throws Exception
+    {
+        File directory = webapp.isFile() ? Files.createTempDirectory("lutece-liquibase").toFile() : webapp;
+        try
+        {
+            if (webapp.isFile())
+                unzip(webapp, directory);
+            File log4j = new File(directory, LOG4J_FILE);
+            if (System.getProperty(LOG4J_CONFIGURATION) == null && log4j.isFile())
+                System.setProperty(LOG4J_CONFIGURATION, log4j.getAbsolutePath());
+            Thread thread = Thread.currentThread();
+            ClassLoader previous = thread.getContextClassLoader();
+            try (URLClassLoader loader = new URLClassLoader(classpath(directory), ClassLoader.getPlatformClassLoader()))
+            {
+                // liquibase looks for the SQL files with the context class loader
+                thread.setContextClassLoader(loader);
+                Method migration = loader.loadClass(MIGRATION_CLASS).getDeclaredMethod("run", String.class, String.class, String.class, String.class);
+                migration.setAccessible(true);
+                return (Integer) migration.invoke(null, directory.getAbsolutePath(), url, user, password);
+            } catch (InvocationTargetException e)
+            {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            } finally
+            {
+                thread.setContextClassLoader(previous);
+            }
+        } finally
+        {
+            if (webapp.isFile())
+                delete(directory);
+        }
+    }
+
+    /**
+     * WEB-INF/classes and the jars of WEB-INF/lib
+     */
+    private static URL[] classpath(File webapp) throws IOException
+    {
+        List<URL> urls = new ArrayList<>();
+        File classes = new File(webapp, "WEB-INF/classes");
+        if (classes.isDirectory())
+            urls.add(classes.toURI().toURL());
+        File[] jars = new File(webapp, "WEB-INF/lib").listFiles((dir, name) -> name.endsWith(".jar"));
+        if (jars == null || jars.length == 0)
+            throw new IOException(webapp + " is not a webapp : no jar in WEB-INF/lib");
+        Arrays.sort(jars);
+        for (File jar : jars)
+            urls.add(jar.toURI().toURL());
+        return urls.toArray(new URL[0]);
+    }
+
+    private static void unzip(File war, File directory) throws IOException
+    {
+        Path root = directory.toPath().toAbsolutePath().normalize();
+        try (ZipFile zip = new ZipFile(war))
+        {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements())
+            {
+                ZipEntry entry = entries.nextElement();
+                Path target = root.resolve(entry.getName()).normalize();
+                if (!target.startsWith(root))
+                    throw new IOException("Invalid entry " + entry.getName() + " in " + war);
+                if (entry.isDirectory())
+                {
+                    Files.createDirectories(target);
+                } else
+                {
+                    Files.createDirectories(target.getParent());
+                    try (InputStream in = zip.getInputStream(entry))
+                    {
+                        Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void delete(File directory) throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(directory.toPath()))
+        {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package fr.paris.lutece.plugins.liquibase;
 
+import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
@@ -8,21 +10,52 @@ import java.io.PrintStream;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 
 import fr.paris.lutece.portal.service.database.AppConnectionService;
+import fr.paris.lutece.portal.service.database.PluginConnectionService;
 import fr.paris.lutece.portal.service.init.IEarlyInitializationService;
 import fr.paris.lutece.portal.service.util.AppLogService;
 import fr.paris.lutece.portal.service.util.AppPathService;
 import fr.paris.lutece.portal.service.util.AppPropertiesService;
+import fr.paris.lutece.util.ReferenceItem;
+import fr.paris.lutece.util.ReferenceList;
 import fr.paris.lutece.utils.sql.PluginVersion;
 import fr.paris.lutece.utils.sql.SqlRegexpHelper;
 import liquibase.Contexts;
 import liquibase.Liquibase;
+import liquibase.Scope;
+import liquibase.SingletonScopeManager;
+import liquibase.command.CommandScope;
+import liquibase.command.core.ChangelogSyncCommandStep;
+import liquibase.command.core.helpers.DatabaseChangelogCommandStep;
+import liquibase.command.core.helpers.DbUrlConnectionArgumentsCommandStep;
 import liquibase.database.Database;
 import liquibase.database.DatabaseFactory;
 import liquibase.database.jvm.JdbcConnection;
 import liquibase.exception.DatabaseException;
+import liquibase.lockservice.LockService;
+import liquibase.lockservice.LockServiceFactory;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.ChangeSet.ExecType;
+import liquibase.changelog.DatabaseChangeLog;
 import liquibase.resource.ClassLoaderResourceAccessor;
+import liquibase.resource.ResourceAccessor;
+import liquibase.util.LiquibaseUtil;
 
 /**
  * Entry point for plugin early run
@@ -32,92 +65,879 @@ public class LiquibaseRunner implements IEarlyInitializationService
     private static final String AT_STARTUP = "liquibase.enabled.at.startup";
     private static final String DRY_RUN_OUTPUT_FILE = "liquibase.dryrun.output.file";
     private static final String DRY_RUN = "liquibase.dryrun";
+    private static final String STATUS_ONLY = "liquibase.status.only";
     private static final String ANALYTICS_ENABLED = "liquibase.analytics.enabled";
-    private static final String SQL_LOG_LEVEL = "liquibase.sql.logLevel";   
+    private static final String SQL_LOG_LEVEL = "liquibase.sql.logLevel";
+    private static final String MULTI_POOL = "liquibase.multipool.enabled";
+    private static final String MULTI_POOL_THREADS = "liquibase.multipool.threads";
+    private static final String DEFAULT_POOL = "liquibase.multipool.default.pool";
+    private static final String FAST_PATH = "liquibase.fastpath.enabled";
+    private static final String METRICS_JMX = "liquibase.metrics.jmx.enabled";
+    private static final String REPORT_FILE = "liquibase.report.file";
+    private static final String CLUSTER_ENABLED = "liquibase.cluster.enabled";
+    private static final String LANES_ENABLED = "liquibase.lanes.enabled";
+    private static final String LANES_THREADS = "liquibase.lanes.threads";
+    private static final String CHECKSUM_CACHE_ENABLED = "liquibase.checksum.cache.enabled";
+    private static final String CHECKSUM_CACHE_FILE = "liquibase.checksum.cache.file";
+    private static final String CORE_PLUGIN_NAME = "core";
+    private static final String CHANGELOG = "db/changelog.xml";
+    private static final String BUILD_PROPERTIES = "/sql/build.properties";
+
+    // description of the SQL resources, shared by the runs of all pools
+    private String resourcesDescription;
+    // filtered SQL files, shared by the runs of all pools
+    private FilteredSqlCache filteredSqlCache;
+    private final ConnectionSupplier defaultConnections;
+    private final boolean offline;
+
+    public LiquibaseRunner()
+    {
+        this(AppConnectionService::getConnection, false);
+    }
+
+    /**
+     * @param defaultConnections gives connections to the database of the default pool
+     * @param offline            true when running outside of the webapp (LiquibaseCli) : files are not deferred, and the other pools of the webapp
+     *                           are not available
+     */
+    LiquibaseRunner(ConnectionSupplier defaultConnections, boolean offline)
+    {
+        this.defaultConnections = defaultConnections;
+        this.offline = offline;
+    }
 
     @Override
     public void process()
     {
-    
+
         // we do not run unless explicitly told to do so
         final boolean enabledAtStartup = AppPropertiesService.getPropertyBoolean(AT_STARTUP, false);
-        final boolean enabledDryRun = AppPropertiesService.getPropertyBoolean(DRY_RUN, false);
         if (!enabledAtStartup)
         {
             AppLogService.info("LiquibaseRunner not enabled at startup");
-        } else
+        } else if (AppPropertiesService.getPropertyBoolean(STATUS_ONLY, false))
         {
-            AppLogService.info("LiquibaseRunner starting");
             try
             {
-                PluginMeta.preloadMeta();// load plugin versions from XML files
+                MigrationStatus status = MigrationStatusService.getStatus(defaultConnections);
+                AppLogService.info("LiquibaseRunner status only, nothing run. Pending migrations : {}", status.toJson());
+            } catch (Exception e)
+            {
+                AppLogService.error("LiquibaseRunner could not compute the migration status", e);
+            }
+        } else
+        {
+            migrate();
+        }
+    }
+
+    /**
+     * Runs liquibase on the database of the default pool, or of every pool in multi pool mode
+     *
+     * @return true if the run succeeded (files deferred in background excepted)
+     */
+    boolean migrate()
+    {
+        AppLogService.info("LiquibaseRunner starting");
+        final LiquibaseRunnerMetrics metrics = LiquibaseRunnerMetrics.getInstance();
+        metrics.start();
+        if (AppPropertiesService.getPropertyBoolean(METRICS_JMX, false))
+            metrics.register();
+        MigrationLease lease = null;
+        boolean migrate = true;
+        boolean success = false;
+        try
+        {
+            long preloadStart = System.nanoTime();
+            PluginMeta.preloadMeta();// load plugin versions from XML files
+            metrics.preloadMetaEnded(preloadStart);
+            //System.setProperty("liquibase.shouldSendAnalytics", "false");
+            System.setProperty("liquibase.analytics.enabled", AppPropertiesService.getProperty(ANALYTICS_ENABLED, "false"));
+            System.setProperty("liquibase.sql.logLevel", AppPropertiesService.getProperty(SQL_LOG_LEVEL, "DEBUG"));
+
+            SpillBuffer.cleanUp();
+            filteredSqlCache = RegexpFilteringResourceAccessor.newCache();
+            if (AppPropertiesService.getPropertyBoolean(CHECKSUM_CACHE_ENABLED, false))
+            {
+                String checksumCacheFile = AppPropertiesService.getProperty(CHECKSUM_CACHE_FILE, "WEB-INF/plugins/liquibase/liquibase-checksums.txt");
+                ChecksumCache.open(new File(checksumCacheFile.startsWith("/") ? checksumCacheFile
+                        : AppPathService.getAbsolutePathFromRelativePath("/" + checksumCacheFile)), checksumEnvironment());
+            }
+            if (!AppPropertiesService.getPropertyBoolean(DRY_RUN, false))
+            {
+                StreamedSqlChangeLogParser.register();
+                IndexDeferralSqlChangeLogParser.register();
+            }
+            DeferredMigrationService.begin();
+            if (AppPropertiesService.getPropertyBoolean(CLUSTER_ENABLED, false) && !AppPropertiesService.getPropertyBoolean(DRY_RUN, false))
+            {
+                long electionStart = System.nanoTime();
+                lease = MigrationLease.acquire(defaultConnections, clusterFingerprint());
+                metrics.clusterElected(lease == null ? LiquibaseRunnerMetrics.ROLE_FOLLOWER
+                        : lease.isHeld() ? LiquibaseRunnerMetrics.ROLE_LEADER : LiquibaseRunnerMetrics.ROLE_UNLEASED, electionStart);
+                // null : another node already migrated the database
+                migrate = lease != null;
+            }
+            if (!migrate)
+            {
+                AppLogService.info("LiquibaseRunner skipping liquibase, the database was migrated by another node");
+            }
+            else if (AppPropertiesService.getPropertyBoolean(MULTI_POOL, false))
+            {
+                if (offline)
+                    throw new IllegalStateException("The multi pool mode needs the connection pools of the webapp, it can not run offline");
+                processPools();
+            }
+            else
+            {
                 // Here we get a default connection from the default pool
-                // TODO (or not) :
-                // - loop on pools
-                // - determine which SQL scripts are for these pools
-                // - call liquibase for each pool (OR use liquibase support for multi-DB)
-                boolean allWentWell = false;
-                try (Connection connection = AppConnectionService.getConnection();
-                        Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(connection));)
-                {
-                    InputStream buildProperties = getClass().getResourceAsStream("/sql/build.properties");
-                    SqlRegexpHelper helper = null;
-                    // build.properties is present only if the war was built without SQL processing
-                    // so, we process
-                    if (buildProperties != null)
+                processPool(null, null, defaultConnections, null);
+            }
+            success = true;
+        } catch (Throwable e)
+        {
+            AppLogService.error("LiquibaseRunner failed", e);
+        } finally
+        {
+            if (filteredSqlCache != null)
+                filteredSqlCache.clear();
+            DeferredMigrationService.end();
+            if (lease != null)
+                releaseLease(lease, success);
+            metrics.end();
+            ChecksumCache.saveActive();
+            if (DeferredMigrationService.getStatus() == DeferredMigrationService.Status.RUNNING)
+                DeferredMigrationService.onCompletion(status -> ChecksumCache.saveActive());
+            String reportFile = AppPropertiesService.getProperty(REPORT_FILE, "");
+            if (!reportFile.isEmpty())
+            {
+                File report = new File(reportFile.startsWith("/") ? reportFile : AppPathService.getAbsolutePathFromRelativePath("/" + reportFile));
+                metrics.writeReport(report);
+                // completed with the deferred passes, if any
+                if (DeferredMigrationService.getStatus() == DeferredMigrationService.Status.RUNNING)
+                    DeferredMigrationService.onCompletion(status -> metrics.writeReport(report));
+            }
+        }
+        AppLogService.info("LiquibaseRunner ended");
+        return success;
+    }
+
+    /**
+     * Releases the cluster lease at the end of the startup pass. Followers go on as soon as it is over, but the database is only published as
+     * migrated once the deferred files ran : if they fail, or the node stops meanwhile, the next start runs liquibase again.
+     */
+    private static void releaseLease(MigrationLease lease, boolean success)
+    {
+        if (!success || DeferredMigrationService.getStatus() != DeferredMigrationService.Status.RUNNING)
+        {
+            lease.release(success);
+        } else
+        {
+            lease.releaseDeferred();
+            DeferredMigrationService.onCompletion(status -> {
+                if (status == DeferredMigrationService.Status.COMPLETED)
+                    lease.deferredDone();
+            });
+        }
+    }
+
+    /**
+     * Runs liquibase on every configured pool, in parallel.
+     *
+     * Each pool gets its own liquibase instance, resource accessor and runner context, and only runs the scripts of the plugins declared on it.
+     *
+     * @throws Exception if the run of at least one pool failed
+     */
+    private void processPools() throws Exception
+    {
+        final String defaultPoolName = AppPropertiesService.getProperty(DEFAULT_POOL, "portal");
+        List<String> poolNames = poolNames(defaultPoolName);
+
+        AppLogService.info("LiquibaseRunner multi pool mode, pools : {}", poolNames);
+        // plugin versions and pools live in the datastore of the default pool, loaded once for all pools
+        final Map<String, String> pluginsStatus;
+        try (Connection connection = AppConnectionService.getConnection())
+        {
+            pluginsStatus = LiquibaseRunnerContext.loadPluginsStatus(connection);
+        }
+        final int threads = Math.max(1, Math.min(poolNames.size(), AppPropertiesService.getPropertyInt(MULTI_POOL_THREADS, 4)));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            Map<String, Future<?>> runs = new LinkedHashMap<>();
+            for (String poolName : poolNames)
+            {
+                ConnectionSupplier connectionSupplier = poolConnections(poolName, defaultPoolName);
+                runs.put(poolName, executor.submit(() -> {
+                    isolateScope();
+                    processPool(poolName, defaultPoolName, connectionSupplier, pluginsStatus);
+                    return null;
+                }));
+            }
+            Exception failure = null;
+            for (Map.Entry<String, Future<?>> run : runs.entrySet())
+            {
+                try
+                {
+                    run.getValue().get();
+                } catch (ExecutionException e)
+                {
+                    AppLogService.error("LiquibaseRunner failed for pool " + run.getKey(), e.getCause());
+                    failure = e;
+                }
+            }
+            if (failure != null)
+                throw failure;
+        } finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param defaultPoolName the pool used by plugins which do not declare one
+     * @return the connection pools of the webapp, the default one first if it is not declared
+     */
+    static List<String> poolNames(String defaultPoolName)
+    {
+        ReferenceList pools = new ReferenceList();
+        AppConnectionService.getPoolList(pools);
+        List<String> poolNames = new ArrayList<>();
+        for (ReferenceItem pool : pools)
+            poolNames.add(pool.getCode());
+        if (!poolNames.contains(defaultPoolName))
+            poolNames.add(0, defaultPoolName);
+        return poolNames;
+    }
+
+    /**
+     * @param poolName        a connection pool of the webapp
+     * @param defaultPoolName the pool used by plugins which do not declare one
+     * @return gives connections from the pool
+     */
+    static ConnectionSupplier poolConnections(String poolName, String defaultPoolName)
+    {
+        if (poolName.equals(defaultPoolName))
+            return AppConnectionService::getConnection;
+        return () -> new PluginConnectionService(poolName).getConnection();
+    }
+
+    /**
+     * Runs liquibase on one pool.
+     *
+     * @param poolName           the targeted pool, or null to run the scripts of all plugins
+     * @param defaultPoolName    the pool used by plugins which do not declare one, null in single pool mode
+     * @param connectionSupplier gives a connection from the pool
+     * @param pluginsStatus      plugin status entries of the datastore, or null to load them with the connection of the pool
+     * @throws Exception
+     */
+    private void processPool(String poolName, String defaultPoolName, ConnectionSupplier connectionSupplier, Map<String, String> pluginsStatus) throws Exception
+    {
+        final boolean enabledDryRun = AppPropertiesService.getPropertyBoolean(DRY_RUN, false);
+        final RunMetrics runMetrics = LiquibaseRunnerMetrics.getInstance().newPool(poolName, false);
+        boolean allWentWell = false;
+        boolean skipped = false;
+        long connectionStart = System.nanoTime();
+        try (Connection connection = connectionSupplier.get();
+                Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(GroupedJdbcConnection.wrap(connection));)
+        {
+            runMetrics.endPhase(RunMetrics.PHASE_CONNECTION, connectionStart);
+            String dbName = dbName(database);
+            SqlRegexpHelper helper = helper(dbName);
+
+            // fast path : nothing changed since the last successful run
+            String fingerprint = null;
+            if (!enabledDryRun && AppPropertiesService.getPropertyBoolean(FAST_PATH, false))
+            {
+                long fingerprintStart = System.nanoTime();
+                fingerprint = InputFingerprint.compute(resourcesDescription(), database.getConnection().getURL());
+                runMetrics.endPhase(RunMetrics.PHASE_FINGERPRINT, fingerprintStart);
+                if (fingerprint.equals(Datastore.getDataValue(InputFingerprint.key(poolName), null)))
+                {
+                    AppLogService.info("LiquibaseRunner nothing changed since the last run{}, skipping liquibase", poolName == null ? "" : " on pool " + poolName);
+                    allWentWell = true;
+                    skipped = true;
+                    return;
+                }
+            }
+
+            try (Liquibase liquibase = new Liquibase(CHANGELOG, resourceAccessor(database, dbName, helper, filteredSqlCache, runMetrics), database);)
+            {
+                long probesStart = System.nanoTime();
+                LiquibaseRunnerContext.init(connection, poolName, defaultPoolName, pluginsStatus);
+                // no background pass offline : the process ends with the run
+                if (offline)
+                    LiquibaseRunnerContext.cancelDeferral();
+                runMetrics.endPhase(RunMetrics.PHASE_PROBES, probesStart);
+                if (!enabledDryRun && !LiquibaseRunnerContext.isEmptyDb())
+                    IndexDeferral.resume(connection, poolName);
+                RunMetricsListener listener = new RunMetricsListener(runMetrics);
+                liquibase.setChangeExecListener(listener);
+                // first install : a snapshot matching the SQL resources and plugins replaces the scripts
+                final boolean snapshotCandidate = !enabledDryRun && poolName == null && LiquibaseRunnerContext.isEmptyDb();
+                String snapshotFingerprint = null;
+                File snapshot = null;
+                if (snapshotCandidate && (SnapshotBootstrap.isEnabled() || SnapshotBootstrap.isExportEnabled()))
+                {
+                    snapshotFingerprint = InputFingerprint.computeForDialect(resourcesDescription(), database.getShortName());
+                    if (SnapshotBootstrap.isEnabled())
+                        snapshot = SnapshotBootstrap.find(database.getShortName(), snapshotFingerprint);
+                }
+                if (snapshot == null && SqlPreparser.isEnabled())
+                {
+                    // fails before any file runs if some are invalid
+                    long preparseStart = System.nanoTime();
+                    SqlPreparser.preparse(liquibase.getResourceAccessor(), database.getShortName());
+                    runMetrics.endPhase(RunMetrics.PHASE_PREPARSE, preparseStart);
+                }
+                // neither the javadoc nor the tutorial are clear about an actual working replacement for update()
+
+                if( enabledDryRun )
+                {
+                    String dryRunOutputFile = dryRunOutputFile(poolName);
+
+                    try (FileOutputStream fos = new FileOutputStream( dryRunOutputFile.startsWith("/") ? dryRunOutputFile : AppPathService.getAbsolutePathFromRelativePath("/" + dryRunOutputFile), false);
+                         OutputStreamWriter writer = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
+                         )
                     {
-                        String url = database.getConnection().getURL();
-                        AppLogService.info("LiquibaseRunner. Determining target database from connection URL : " + url);
-                        helper = new SqlRegexpHelper(() -> buildProperties, SqlRegexpHelper.findDbName(url));
+                        AppLogService.info("LiquibaseRunner running in dry run mode. Output file : " + dryRunOutputFile);
+                        long updateStart = System.nanoTime();
+                        Scope.child(listener.statementCounter(), () -> liquibase.update(new Contexts(), writer));
+                        runMetrics.endPhase(RunMetrics.PHASE_UPDATE, updateStart);
                     }
-                    //System.setProperty("liquibase.shouldSendAnalytics", "false");
-                     System.setProperty("liquibase.analytics.enabled", AppPropertiesService.getProperty(ANALYTICS_ENABLED, "false"));
-                     System.setProperty("liquibase.sql.logLevel", AppPropertiesService.getProperty(SQL_LOG_LEVEL, "DEBUG"));
 
-                    try (Liquibase liquibase = new Liquibase("db/changelog.xml", new RegexpFilteringResourceAccessor(new ClassLoaderResourceAccessor(), helper),
-                            database);)
+                }
+                else if (snapshot != null && bootstrap(liquibase, database, connectionSupplier, snapshot, runMetrics))
+                {
+                    AppLogService.info("LiquibaseRunner database bootstrapped from snapshot " + snapshot);
+                }
+                else if (AppPropertiesService.getPropertyBoolean(LANES_ENABLED, false))
+                {
+                    AppLogService.info("LiquibaseRunner applying database changes in plugin lanes" + (poolName == null ? "" : " on pool " + poolName));
+                    applyLanes(database, dbName, helper, connectionSupplier, runMetrics);
+                }
+                else
+                {
+                    AppLogService.info("LiquibaseRunner applying database changes" + (poolName == null ? "" : " on pool " + poolName));
+                    applyChanges(liquibase, database, listener, runMetrics);
+                }
+                Set<String> deferredPaths = LiquibaseRunnerContext.deferredPaths();
+                // the deferred files load data too : indexes taken out of the create files wait for them
+                if (deferredPaths.isEmpty())
+                    IndexDeferral.apply(connection, poolName);
+                else
+                    IndexDeferral.save(poolName);
+                if (snapshotCandidate && snapshot == null && SnapshotBootstrap.isExportEnabled())
+                    exportSnapshot(database, snapshotFingerprint, deferredPaths);
+                if (!deferredPaths.isEmpty())
+                {
+                    // the run goes on in background : plugin versions and the fingerprint are written once the deferred files ran
+                    final LiquibaseRunnerContext context = LiquibaseRunnerContext.detach();
+                    final String deferredFingerprint = fingerprint;
+                    DeferredMigrationService.submit(poolName == null ? "default pool" : "pool " + poolName, deferredPaths.size(),
+                            () -> processDeferred(context, poolName, connectionSupplier, deferredFingerprint));
+                }
+                else
+                {
+                    // closing the context bumps plugin versions in the datastore
+                    // only if all went as planned
+                    long writeBackStart = System.nanoTime();
+                    LiquibaseRunnerContext.close();
+                    runMetrics.endPhase(RunMetrics.PHASE_WRITE_BACK, writeBackStart);
+                    if (fingerprint != null)
+                        Datastore.setDataValue(InputFingerprint.key(poolName), fingerprint);
+                }
+                allWentWell = true;
+            } finally
+            {
+                LiquibaseRunnerContext.release();
+            }
+        } catch (DatabaseException dbe)
+        {
+            // special case with some pools (tomcat for instance)
+            // somehow the close() method of the connection might have already been called
+            // when the automatic Database.close() (AbstractJdbcDatabase actually) calls connection.setAutoCommit()
+            // which causes the auto-close to fail
+            // Thus we throw only if something REALLY failed.
+            if (!allWentWell)
+                throw dbe;
+        } finally
+        {
+            runMetrics.end(skipped ? RunMetrics.OUTCOME_SKIPPED : allWentWell ? RunMetrics.OUTCOME_SUCCESS : RunMetrics.OUTCOME_FAILURE);
+        }
+    }
+
+    /**
+     * Runs in background the SQL files deferred by the startup pass of a pool, then writes plugin versions.
+     *
+     * @param context            the context of the startup pass
+     * @param poolName           the targeted pool, or null to run the scripts of all plugins
+     * @param connectionSupplier gives a connection from the pool
+     * @param fingerprint        the fast path fingerprint to store once done, or null
+     * @throws Exception
+     */
+    private void processDeferred(LiquibaseRunnerContext context, String poolName, ConnectionSupplier connectionSupplier, String fingerprint) throws Exception
+    {
+        isolateScope();
+        final RunMetrics runMetrics = LiquibaseRunnerMetrics.getInstance().newPool(poolName, true);
+        // the cache of the startup pass is gone
+        final FilteredSqlCache cache = RegexpFilteringResourceAccessor.newCache();
+        boolean allWentWell = false;
+        long connectionStart = System.nanoTime();
+        try (Connection connection = connectionSupplier.get();
+                Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(GroupedJdbcConnection.wrap(connection));)
+        {
+            runMetrics.endPhase(RunMetrics.PHASE_CONNECTION, connectionStart);
+            String dbName = dbName(database);
+            try (Liquibase liquibase = new Liquibase(CHANGELOG, resourceAccessor(database, dbName, helper(dbName), cache, runMetrics), database);)
+            {
+                LiquibaseRunnerContext.attach(context, connection);
+                RunMetricsListener listener = new RunMetricsListener(runMetrics)
+                {
+                    @Override
+                    public void ran(ChangeSet changeSet, DatabaseChangeLog databaseChangeLog, Database database, ExecType execType)
                     {
-                        LiquibaseRunnerContext.init(connection);
-                        // neither the javadoc nor the tutorial are clear about an actual working replacement for update()
-                        
-                        if( enabledDryRun )
+                        super.ran(changeSet, databaseChangeLog, database, execType);
+                        DeferredMigrationService.scriptDone();
+                    }
+                };
+                liquibase.setChangeExecListener(listener);
+                AppLogService.info("LiquibaseRunner applying deferred database changes" + (poolName == null ? "" : " on pool " + poolName));
+                applyChanges(liquibase, database, listener, runMetrics);
+                IndexDeferral.apply(connection, poolName);
+                long writeBackStart = System.nanoTime();
+                LiquibaseRunnerContext.close();
+                runMetrics.endPhase(RunMetrics.PHASE_WRITE_BACK, writeBackStart);
+                if (fingerprint != null)
+                    Datastore.setDataValue(InputFingerprint.key(poolName), fingerprint);
+                allWentWell = true;
+            } finally
+            {
+                LiquibaseRunnerContext.release();
+            }
+        } catch (DatabaseException dbe)
+        {
+            // same special case as processPool()
+            if (!allWentWell)
+                throw dbe;
+        } finally
+        {
+            cache.clear();
+            runMetrics.end(allWentWell ? RunMetrics.OUTCOME_SUCCESS : RunMetrics.OUTCOME_FAILURE);
+        }
+    }
+
+    /**
+     * Takes the liquibase lock and applies the changes
+     */
+    private static void applyChanges(Liquibase liquibase, Database database, RunMetricsListener listener, RunMetrics runMetrics) throws Exception
+    {
+        // the lock is taken here to measure the wait, liquibase reuses it and releases it at the end of the update
+        long lockStart = System.nanoTime();
+        LockService lockService = LockServiceFactory.getInstance().getLockService(database);
+        lockService.waitForLock();
+        try
+        {
+            runMetrics.endPhase(RunMetrics.PHASE_LOCK, lockStart);
+            long updateStart = System.nanoTime();
+            Connection connection = ((JdbcConnection) database.getConnection()).getUnderlyingConnection();
+            try
+            {
+                IndexDeferral.beginLoad(connection, database.getShortName());
+                GroupedJdbcConnection.attach(database);
+                liquibase.setChangeExecListener(GroupedJdbcConnection.listener(listener));
+                Scope.child(listener.statementCounter(), () -> liquibase.update(new Contexts()));
+            } finally
+            {
+                try
+                {
+                    GroupedJdbcConnection.detach(database);
+                } finally
+                {
+                    IndexDeferral.endLoad(connection, database.getShortName());
+                }
+            }
+            runMetrics.endPhase(RunMetrics.PHASE_UPDATE, updateStart);
+        } finally
+        {
+            // liquibase does not release the lock when the update did not start, nor when the database was up to date
+            if (lockService.hasChangeLogLock())
+                lockService.releaseLock();
+        }
+    }
+
+    /**
+     * Takes the liquibase lock, loads a snapshot and records the scripts as run, if the database is still empty once the lock is held. As in a
+     * plugin lane, the snapshot is loaded and synchronized on a connection of its own, so that liquibase does not release the lock between the two.
+     * Liquibase keeps one lock service per connection.
+     *
+     * @return false if another node installed the database meanwhile : the scripts must run instead
+     */
+    private static boolean bootstrap(Liquibase liquibase, Database database, ConnectionSupplier connectionSupplier, File snapshot,
+            RunMetrics runMetrics) throws Exception
+    {
+        long lockStart = System.nanoTime();
+        LockService lockService = LockServiceFactory.getInstance().getLockService(database);
+        lockService.waitForLock();
+        try
+        {
+            runMetrics.endPhase(RunMetrics.PHASE_LOCK, lockStart);
+            if (!LiquibaseRunnerContext.recheckEmptyDb())
+                return false;
+            AppLogService.info("LiquibaseRunner bootstrapping the database from snapshot " + snapshot);
+            long updateStart = System.nanoTime();
+            try (Connection connection = connectionSupplier.get())
+            {
+                Database snapshotDatabase = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(connection));
+                LaneLockService.addLane(snapshotDatabase, new LaneLockService.LaneRun(lockService));
+                try
+                {
+                    SnapshotBootstrap.load(snapshot, snapshotDatabase, connection);
+                    // the scripts are recorded as run, the snapshot holds the data of deferrable files too
+                    LiquibaseRunnerContext.cancelDeferral();
+                    CommandScope sync = new CommandScope(ChangelogSyncCommandStep.COMMAND_NAME)
+                            .addArgumentValue(DbUrlConnectionArgumentsCommandStep.DATABASE_ARG, snapshotDatabase)
+                            .addArgumentValue(DatabaseChangelogCommandStep.CHANGELOG_FILE_ARG, CHANGELOG);
+                    Scope.child(Scope.Attr.resourceAccessor.name(), liquibase.getResourceAccessor(), () -> sync.execute());
+                } finally
+                {
+                    LaneLockService.removeLane(snapshotDatabase);
+                }
+            }
+            runMetrics.endPhase(RunMetrics.PHASE_UPDATE, updateStart);
+            return true;
+        } finally
+        {
+            lockService.releaseLock();
+        }
+    }
+
+    /**
+     * Takes a snapshot of the database just installed, for the next first installs. A failure does not fail the run.
+     */
+    private static void exportSnapshot(Database database, String fingerprint, Set<String> deferredPaths)
+    {
+        if (!deferredPaths.isEmpty())
+        {
+            AppLogService.info("LiquibaseRunner no snapshot taken : some files are deferred");
+            return;
+        }
+        try
+        {
+            SnapshotBootstrap.export(database, database.getShortName(), fingerprint);
+        } catch (Exception e)
+        {
+            AppLogService.error("LiquibaseRunner could not take a snapshot of the database", e);
+        }
+    }
+
+    /**
+     * Applies the changes in plugin lanes : core goes first, then the files of each other plugin run in their own lane with those of its modules,
+     * in parallel, on their own connection. A lane starts once the lanes of the plugins it requires (see PluginMeta.getPluginRequirements()) are
+     * over, and does not run if one of them failed.
+     *
+     * The run holds the liquibase lock for all its lanes. The lanes share the decisions of the run context, and their datastore entries and deferred
+     * files are merged into it once they all succeeded.
+     */
+    private void applyLanes(Database database, String dbName, SqlRegexpHelper helper, ConnectionSupplier connectionSupplier, RunMetrics runMetrics)
+            throws Exception
+    {
+        long lockStart = System.nanoTime();
+        LockService lockService = LockServiceFactory.getInstance().getLockService(database);
+        lockService.waitForLock();
+        long updateStart = System.nanoTime();
+        try
+        {
+            runMetrics.endPhase(RunMetrics.PHASE_LOCK, lockStart);
+            final LaneLockService.LaneRun laneRun = new LaneLockService.LaneRun(lockService);
+            final LiquibaseRunnerContext context = LiquibaseRunnerContext.get();
+            LiquibaseRunnerContext.restrictToLane(Collections.singleton(CORE_PLUGIN_NAME));
+            try (Connection connection = connectionSupplier.get())
+            {
+                runLane(connection, dbName, helper, runMetrics, laneRun);
+            }
+            List<String> lanes = new ArrayList<>(LiquibaseRunnerContext.pendingLanes());
+            LiquibaseRunnerContext.restrictToLane(null);
+            if (lanes.isEmpty())
+                return;
+            Map<String, Set<String>> requirements = laneRequirements(lanes);
+            final int threads = Math.max(1, Math.min(lanes.size(), AppPropertiesService.getPropertyInt(LANES_THREADS, 4)));
+            AppLogService.info("LiquibaseRunner running {} plugin lanes on {} threads : {}", lanes.size(), threads, requirements);
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try
+            {
+                Map<String, CompletableFuture<LiquibaseRunnerContext>> runs = new LinkedHashMap<>();
+                for (String plugin : requirements.keySet())
+                {
+                    CompletableFuture<?>[] required = requirements.get(plugin).stream().map(runs::get).toArray(CompletableFuture[]::new);
+                    runs.put(plugin, CompletableFuture.allOf(required).thenApplyAsync(ignored -> {
+                        isolateScope();
+                        try (Connection connection = connectionSupplier.get())
                         {
-                            String dryRunOutputFile = AppPropertiesService.getProperty(DRY_RUN_OUTPUT_FILE, "WEB-INF/plugins/liquibase/liquibase-dryrun.sql");
-
-                            try (FileOutputStream fos = new FileOutputStream( dryRunOutputFile.startsWith("/") ? dryRunOutputFile : AppPathService.getAbsolutePathFromRelativePath("/" + dryRunOutputFile), false);
-                                 OutputStreamWriter writer = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
-                                 )
-                            {
-                                AppLogService.info("LiquibaseRunner running in dry run mode. Output file : " + dryRunOutputFile);
-                                liquibase.update(new Contexts(), writer);
-                            }
-                            
-                        }
-                        else
+                            LiquibaseRunnerContext lane = LiquibaseRunnerContext.forkLane(context, plugin, connection);
+                            runLane(connection, dbName, helper, runMetrics, laneRun);
+                            return lane;
+                        } catch (Exception e)
                         {
-                            AppLogService.info("LiquibaseRunner applying database changes");
-                            liquibase.update(new Contexts());
+                            throw new LaneException(plugin, e);
+                        } finally
+                        {
+                            LiquibaseRunnerContext.release();
                         }
-                        // closing the context bumps plugin versions in the datastore
-                        // only if all went as planned
-                        LiquibaseRunnerContext.close();
-                        allWentWell = true;
+                    }, executor));
+                }
+                Exception failure = null;
+                for (Map.Entry<String, CompletableFuture<LiquibaseRunnerContext>> run : runs.entrySet())
+                {
+                    try
+                    {
+                        LiquibaseRunnerContext.joinLane(run.getValue().get());
+                    } catch (ExecutionException e)
+                    {
+                        LaneException cause = (LaneException) e.getCause();
+                        if (cause.plugin.equals(run.getKey()))
+                        {
+                            AppLogService.error("LiquibaseRunner failed for the lane of plugin " + run.getKey(), cause.getCause());
+                            if (failure == null)
+                                failure = (Exception) cause.getCause();
+                        } else
+                            AppLogService.error("LiquibaseRunner lane of plugin {} not run : the lane of plugin {} failed", run.getKey(), cause.plugin);
                     }
-                } catch (DatabaseException dbe)
+                }
+                if (failure != null)
+                    throw failure;
+            } finally
+            {
+                executor.shutdownNow();
+            }
+        } finally
+        {
+            runMetrics.endPhase(RunMetrics.PHASE_UPDATE, updateStart);
+            lockService.releaseLock();
+        }
+    }
+
+    /**
+     * Orders the lanes so that each one comes after the lanes it requires, liquibase order being kept otherwise
+     *
+     * @param lanes the plugins of the lanes, in liquibase order
+     * @return the lanes in running order, with the lanes each one waits for
+     */
+    static Map<String, Set<String>> laneRequirements(List<String> lanes)
+    {
+        Map<String, Set<String>> requirements = new HashMap<>();
+        for (String lane : lanes)
+        {
+            Set<String> required = new LinkedHashSet<>();
+            // the requirements of the plugin and of its modules, on the other lanes of the run
+            for (String plugin : PluginMeta.getPluginsMeta().keySet())
+            {
+                if (lane.equals(PluginMeta.getParentPlugin(plugin)))
+                {
+                    for (String requirement : PluginMeta.getPluginRequirements(plugin))
+                        required.add(PluginMeta.getParentPlugin(requirement));
+                }
+            }
+            required.remove(lane);
+            required.retainAll(lanes);
+            requirements.put(lane, required);
+        }
+        Map<String, Set<String>> ordered = new LinkedHashMap<>();
+        Set<String> left = new LinkedHashSet<>(lanes);
+        while (!left.isEmpty())
+        {
+            String next = left.stream().filter(lane -> ordered.keySet().containsAll(requirements.get(lane))).findFirst().orElse(null);
+            if (next == null)
+            {
+                next = left.iterator().next();
+                AppLogService.error("LiquibaseRunner circular requirements between the plugins {}, the lane of {} does not wait for {}", left, next,
+                        requirements.get(next));
+                requirements.get(next).retainAll(ordered.keySet());
+            }
+            ordered.put(next, requirements.get(next));
+            left.remove(next);
+        }
+        return ordered;
+    }
+
+    /**
+     * Runs liquibase for the lane of the context bound to the current thread, under the liquibase lock held by its run
+     *
+     * @param connection a connection dedicated to the lane, closed by liquibase
+     * @param laneRun    the run of the lane
+     */
+    private void runLane(Connection connection, String dbName, SqlRegexpHelper helper, RunMetrics runMetrics, LaneLockService.LaneRun laneRun)
+            throws Exception
+    {
+        Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(GroupedJdbcConnection.wrap(connection));
+        LaneLockService.addLane(database, laneRun);
+        try (Liquibase liquibase = new Liquibase(CHANGELOG, resourceAccessor(database, dbName, helper, filteredSqlCache, runMetrics), database);)
+        {
+            RunMetricsListener listener = new RunMetricsListener(runMetrics);
+            try
+            {
+                IndexDeferral.beginLoad(connection, database.getShortName());
+                GroupedJdbcConnection.attach(database);
+                liquibase.setChangeExecListener(GroupedJdbcConnection.listener(listener));
+                Scope.child(listener.statementCounter(), () -> liquibase.update(new Contexts()));
+            } finally
+            {
+                try
                 {
-                    // special case with some pools (tomcat for instance)
-                    // somehow the close() method of the connection might have already been called
-                    // when the automatic Database.close() (AbstractJdbcDatabase actually) calls connection.setAutoCommit()
-                    // which causes the auto-close to fail
-                    // Thus we throw only if something REALLY failed.
-                    if (!allWentWell)
-                        throw dbe;
+                    // lanes do not release a liquibase lock, the last plugin transaction is committed here
+                    GroupedJdbcConnection.detach(database);
+                } finally
+                {
+                    IndexDeferral.endLoad(connection, database.getShortName());
                 }
-            } catch (Throwable e)
+            }
+        } finally
+        {
+            LaneLockService.removeLane(database);
+        }
+    }
+
+    /**
+     * Target database name for the filtering rules, null when the war was built with SQL processing
+     */
+    private String dbName(Database database)
+    {
+        return dbName(database.getConnection().getURL());
+    }
+
+    /**
+     * Target database name for the filtering rules, null when the war was built with SQL processing
+     *
+     * @param url JDBC URL of the target database
+     */
+    static String dbName(String url)
+    {
+        // build.properties is present only if the war was built without SQL processing
+        // so, we process
+        if (LiquibaseRunner.class.getResource(BUILD_PROPERTIES) == null)
+            return null;
+        AppLogService.info("LiquibaseRunner. Determining target database from connection URL : " + url);
+        return SqlRegexpHelper.findDbName(url);
+    }
+
+    /**
+     * Filtering rules for the target database, null when the war was built with SQL processing
+     */
+    private SqlRegexpHelper helper(String dbName)
+    {
+        if (getClass().getResource(BUILD_PROPERTIES) == null)
+            return null;
+        return new SqlRegexpHelper(() -> getClass().getResourceAsStream(BUILD_PROPERTIES), dbName);
+    }
+
+    /**
+     * What the checksums of the SQL files depend on, besides the files themselves : liquibase version and filtering rules
+     */
+    private String checksumEnvironment() throws IOException
+    {
+        CRC32 crc = new CRC32();
+        try (InputStream in = getClass().getResourceAsStream(BUILD_PROPERTIES))
+        {
+            if (in != null)
+                crc.update(in.readAllBytes());
+        }
+        return LiquibaseUtil.getBuildVersion() + "|" + Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * Resource accessor chain of a run : index, pre-filtered files, filtering, insert coalescing, metrics
+     */
+    private ResourceAccessor resourceAccessor(Database database, String dbName, SqlRegexpHelper helper, FilteredSqlCache cache, RunMetrics runMetrics)
+            throws IOException
+    {
+        return new MeteredResourceAccessor(InsertCoalescingResourceAccessor.wrap(
+                new RegexpFilteringResourceAccessor(sqlResourceAccessor(dbName), helper, cache, String.valueOf(dbName)), database.getShortName()), runMetrics);
+    }
+
+    /**
+     * Classpath accessor of the SQL files as a run sees them : searched through the index, pre-filtered files in place of the original ones
+     *
+     * @param dbName target database name, as given by dbName()
+     */
+    static ResourceAccessor sqlResourceAccessor(String dbName) throws IOException
+    {
+        return PrefilteredResourceAccessor.wrap(IndexedResourceAccessor.wrap(new ClassLoaderResourceAccessor(), webappSignature()), dbName);
+    }
+
+    /**
+     * Fingerprint published by the leader of a cluster, for followers to check that it migrated the database they expect
+     */
+    private String clusterFingerprint() throws Exception
+    {
+        try (Connection connection = defaultConnections.get())
+        {
+            return InputFingerprint.compute(resourcesDescription(), connection.getMetaData().getURL());
+        }
+    }
+
+    /**
+     * Describes the SQL resources once, for all pools
+     */
+    private synchronized String resourcesDescription() throws Exception
+    {
+        if (resourcesDescription == null)
+        {
+            try (ClassLoaderResourceAccessor accessor = new ClassLoaderResourceAccessor())
             {
-                AppLogService.error("LiquibaseRunner failed", e);
+                resourcesDescription = InputFingerprint.describeResources(accessor);
             }
-            AppLogService.info("LiquibaseRunner ended");
         }
+        return resourcesDescription;
+    }
+
+    /**
+     * Signature of the jars and SQL files of the webapp, to check that the SQL index is up to date
+     */
+    static String webappSignature()
+    {
+        return SqlIndex.signature(new File(AppPathService.getWebAppPath()));
+    }
+
+    /**
+     * Dry run output file, suffixed by the pool name in multi pool mode so that runs do not overwrite each other
+     */
+    private static String dryRunOutputFile(String poolName)
+    {
+        String dryRunOutputFile = AppPropertiesService.getProperty(DRY_RUN_OUTPUT_FILE, "WEB-INF/plugins/liquibase/liquibase-dryrun.sql");
+        if (poolName == null)
+            return dryRunOutputFile;
+        int extension = dryRunOutputFile.lastIndexOf('.');
+        return extension > dryRunOutputFile.lastIndexOf('/') ? dryRunOutputFile.substring(0, extension) + "-" + poolName + dryRunOutputFile.substring(extension)
+                : dryRunOutputFile + "-" + poolName;
+    }
+
+    /**
+     * Failure of a lane, or of a lane it requires
+     */
+    private static class LaneException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+        private final String plugin;
+
+        LaneException(String plugin, Exception cause)
+        {
+            super(cause);
+            this.plugin = plugin;
+        }
+    }
+
+    /**
+     * Gives the current thread a liquibase scope of its own. Liquibase scope managers are inherited from the thread which created a thread : the
+     * threads of a run (pools, lanes, deferred passes) would otherwise share the current scope of the thread starting the run.
+     */
+    private static void isolateScope()
+    {
+        Scope.setScopeManager(new SingletonScopeManager());
+    }
+
+    /** Because Supplier<Connection> does not throw */
+    interface ConnectionSupplier
+    {
+        Connection get() throws SQLException;
     }
 }
@@ -1,23 +1,37 @@
 package fr.paris.lutece.plugins.liquibase;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
-import fr.paris.lutece.portal.service.datastore.DatastoreService;
+import fr.paris.lutece.portal.service.database.AppConnectionService;
 import fr.paris.lutece.portal.service.plugin.PluginService;
 import fr.paris.lutece.portal.service.util.AppLogService;
 import fr.paris.lutece.portal.service.util.AppPropertiesService;
 import fr.paris.lutece.utils.sql.PluginVersion;
+import fr.paris.lutece.utils.sql.SqlPathInfo;
 
 /**
- * Static context holder for shared data during a liquibase run.
+ * Context holder for shared data during a liquibase run.
  * 
- * This class offers a static API so that filters instantiated by liquibase can access its state.
+ * This class offers a static API so that filters instantiated by liquibase can access its state. Each run (one per connection pool) has its own
+ * instance, bound to the thread running liquibase for that pool.
  */
 public class LiquibaseRunnerContext
 {
@@ -39,37 +53,91 @@ public class LiquibaseRunnerContext
      * A result of 0 means first run
      */
     private static final String SQL__EMPTY_DB = "liquibase.empty.db.request";
+    /**
+     * This (configurable) request loads all plugin status entries (key, value) from the datastore at once
+     */
+    private static final String SQL__PLUGINS_STATUS = "liquibase.plugins.status.request";
+    private static final String PLUGINS_STATUS_PREFIX = "core.plugins.status.";
+    private static final String SQL_STATUS_KEYS = "SELECT entity_key FROM core_datastore WHERE entity_key LIKE 'core.plugins.status.%'";
+    private static final String SQL_UPDATE_DATASTORE = "UPDATE core_datastore SET entity_value = ? WHERE entity_key = ?";
+    private static final String SQL_INSERT_DATASTORE = "INSERT INTO core_datastore (entity_key, entity_value) VALUES (?, ?)";
 
    
     
     private static final String LIQUIBASE_ACCEPT_SNAPSHOT_VERSIONS = "liquibase.accept.snapshot.versions";
     private static final String LIQUIBASE_ACCEPT_UNSTABLE_VERSIONS = "liquibase.accept.unstable.versions";
+    private static final String DEFERRED_ENABLED = "liquibase.deferred.enabled";
+    private static final String DEFERRED_PATTERNS = "liquibase.deferred.patterns";
+    private static final String INDEX_DEFERRAL_ENABLED = "liquibase.index.deferral.enabled";
 
+    /** the context of the run executing on the current thread */
+    private static final ThreadLocal<LiquibaseRunnerContext> current = new ThreadLocal<>();
+
+    private boolean liquibaseNeverRan, emptyDb, bAcceptSnapshotVersion, bAcceptUnstableVersion, bEnabledDryRun;
+    /** pool targeted by this run, null when all plugins are run against the default connection */
+    private String poolName;
+    private String defaultPoolName;
+    private Connection connection;
+    /** immutable copy of the plugin status entries of the datastore, null if they could not be loaded */
+    private Map<String, String> pluginsStatus;
+    /** matches the SQL files to run in background, null when nothing is deferred */
+    private Pattern deferrable;
+    /** plugins whose files are never deferred : core and the plugins required by others (see PluginMeta.getRequiredPlugins()) */
+    private Set<String> undeferrable = Collections.emptySet();
+    /** SQL files selected by the startup pass but left to the deferred pass, in liquibase order */
+    private final Set<String> deferredPaths = new LinkedHashSet<>();
+    /** true during the background pass running the deferred files */
+    private boolean deferredPass;
+    /** plugins (with their modules) whose files belong to the current lane, null when the run is not split in lanes */
+    private Set<String> lane;
+    /** plugins with files selected by the first lane but left to their own lane, in liquibase order */
+    private final Set<String> pendingLanes = new LinkedHashSet<>();
+    /** installed plugin versions, memoised by plugin name, shared by the lanes of a run */
+    private Map<String, Optional<PluginVersion>> pluginVersions = new ConcurrentHashMap<>();
+    /** true when the secondary indexes and foreign keys of the create files are created at the end of the run */
+    private boolean indexDeferral;
+    /** statements taken out of the create files, by file path in liquibase order, shared by the lanes of a run */
+    private Map<String, List<String>> deferredIndexes = Collections.synchronizedMap(new LinkedHashMap<>());
 
-    private static boolean liquibaseNeverRan, emptyDb, bAcceptSnapshotVersion, bAcceptUnstableVersion, bEnabledDryRun;
     public static boolean isEmptyDb()
     {
-        return emptyDb;
+        return current().emptyDb;
     }
 
     public static boolean isLiquibaseNeverRan()
     {
-        return liquibaseNeverRan;
+        return current().liquibaseNeverRan;
     }
     public static boolean isAcceptSnapshotVersion()
     {
-        return bAcceptSnapshotVersion;
+        return current().bAcceptSnapshotVersion;
     }
     public static boolean isAcceptUnstableVersion()
     {
-        return bAcceptUnstableVersion;
+        return current().bAcceptUnstableVersion;
     }
 
-    private static Connection connection;
-
     public static Connection getConnection()
     {
-        return connection;
+        return current().connection;
+    }
+
+    /**
+     * Returns the pool targeted by the current run
+     * 
+     * @return a pool name, or null when the run is not restricted to a pool
+     */
+    public static String getPoolName()
+    {
+        return current().poolName;
+    }
+
+    private static LiquibaseRunnerContext current()
+    {
+        LiquibaseRunnerContext context = current.get();
+        if (context == null)
+            throw new IllegalStateException("No LiquibaseRunnerContext bound to thread " + Thread.currentThread().getName());
+        return context;
     }
 
     /**
@@ -82,16 +150,364 @@ public class LiquibaseRunnerContext
      */
     static void init(Connection connection) throws SQLException
     {
-        
-        bAcceptSnapshotVersion=  AppPropertiesService.getPropertyBoolean(LIQUIBASE_ACCEPT_SNAPSHOT_VERSIONS, false);
-        bAcceptUnstableVersion=  AppPropertiesService.getPropertyBoolean(LIQUIBASE_ACCEPT_UNSTABLE_VERSIONS, false);
-        bEnabledDryRun=  AppPropertiesService.getPropertyBoolean("liquibase.dryrun", false);
-        LiquibaseRunnerContext.connection = connection;
+        init(connection, null, null, null);
+    }
+
+    /**
+     * Initializes the context of a run restricted to one connection pool, and binds it to the current thread.
+     * 
+     * Determines whether if the db is empty and if liquibase has ever been run or not. Meant to be run once per pool at startup
+     * 
+     * @param connection      from the targeted pool
+     * @param poolName        the targeted pool, or null to run the scripts of all plugins
+     * @param defaultPoolName the pool used by plugins which do not declare one
+     * @param pluginsStatus   plugin status entries loaded by loadPluginsStatus(), or null to load them with the given connection
+     * @throws SQLException
+     */
+    static void init(Connection connection, String poolName, String defaultPoolName, Map<String, String> pluginsStatus) throws SQLException
+    {
+        LiquibaseRunnerContext context = new LiquibaseRunnerContext();
+        context.bAcceptSnapshotVersion=  AppPropertiesService.getPropertyBoolean(LIQUIBASE_ACCEPT_SNAPSHOT_VERSIONS, false);
+        context.bAcceptUnstableVersion=  AppPropertiesService.getPropertyBoolean(LIQUIBASE_ACCEPT_UNSTABLE_VERSIONS, false);
+        context.bEnabledDryRun=  AppPropertiesService.getPropertyBoolean("liquibase.dryrun", false);
+        context.connection = connection;
+        context.poolName = poolName;
+        context.defaultPoolName = defaultPoolName;
+        // a dry run outputs all the SQL at once
+        if (!context.bEnabledDryRun && AppPropertiesService.getPropertyBoolean(DEFERRED_ENABLED, false))
+        {
+            String patterns = AppPropertiesService.getProperty(DEFERRED_PATTERNS, ".*/init_db_[^/]*\\.sql");
+            context.deferrable = Pattern.compile(Arrays.stream(patterns.split(",")).map(String::trim).filter(p -> !p.isEmpty()).collect(Collectors.joining("|")));
+            context.undeferrable = PluginMeta.getRequiredPlugins();
+        }
+        current.set(context);
+        context.liquibaseNeverRan = context.queryLiquibaseNeverRan();
+        context.emptyDb = context.queryEmptyDb();
+        // an empty database has no datastore yet
+        if (pluginsStatus != null)
+            context.pluginsStatus = pluginsStatus;
+        else
+            context.pluginsStatus = context.emptyDb ? Collections.emptyMap() : loadPluginsStatus(connection);
+        context.indexDeferral = context.emptyDb && !context.bEnabledDryRun && AppPropertiesService.getPropertyBoolean(INDEX_DEFERRAL_ENABLED, false);
+        AppLogService.info("LiquibaseRunnerContext pool : {}, liquibaseNeverRan : {} , emptyDb : {}", poolName == null ? "default" : poolName, context.liquibaseNeverRan, context.emptyDb);
+    }
+
+    private boolean queryLiquibaseNeverRan() throws SQLException
+    {
         final String firstRunRequest = AppPropertiesService.getProperty(SQL__FIRST_LIQUIBASE_RUN_EVER, "select count(*) FROM information_schema.tables where table_name='DATABASECHANGELOG';");
-        liquibaseNeverRan = runQuery(firstRunRequest, r -> r.getInt(1)) == 0;
+        return runQuery(firstRunRequest, r -> r.getInt(1)) == 0;
+    }
+
+    private boolean queryEmptyDb() throws SQLException
+    {
         final String emptyDbRequest = AppPropertiesService.getProperty(SQL__EMPTY_DB, "SELECT count(*) FROM information_schema.tables where table_schema=database();");
-        emptyDb = runQuery(emptyDbRequest, r -> r.getInt(1)) == 0;
-        AppLogService.info("LiquibaseRunnerContext liquibaseNeverRan : {} , emptyDb : {}", liquibaseNeverRan, emptyDb);
+        return runQuery(emptyDbRequest, r -> r.getInt(1)) == 0;
+    }
+
+    /**
+     * Checks again that the database is empty, once the liquibase lock is held : another node may have installed it meanwhile. The empty database
+     * request would count the lock table, so the database changelog written by the other node is looked for instead. If found, the plugin status
+     * entries the other node wrote are loaded, and the indexes of the create files are no longer deferred.
+     * 
+     * @return true if the database is still empty
+     * @throws SQLException
+     */
+    static boolean recheckEmptyDb() throws SQLException
+    {
+        LiquibaseRunnerContext context = current();
+        if (!context.emptyDb || context.queryLiquibaseNeverRan())
+            return context.emptyDb;
+        AppLogService.info("LiquibaseRunnerContext database no longer empty, installed by another node");
+        context.emptyDb = false;
+        context.liquibaseNeverRan = false;
+        context.pluginsStatus = loadPluginsStatus(context.connection);
+        context.pluginVersions.clear();
+        context.indexDeferral = false;
+        return false;
+    }
+
+    /**
+     * Loads all plugin status entries (versions, last run script types, pools) of the datastore with a single query.
+     * 
+     * If the query fails in a transaction, as on the liquibase connection, the transaction is rolled back : some databases (postgresql) reject any
+     * further statement of a transaction once one of them failed.
+     *
+     * @param connection from the default pool, where the datastore lives
+     * @return an immutable map of values by key, or null if the query failed, in which case entries are looked up one by one in the datastore
+     */
+    static Map<String, String> loadPluginsStatus(Connection connection)
+    {
+        final String pluginsStatusRequest = AppPropertiesService.getProperty(SQL__PLUGINS_STATUS,
+                "SELECT entity_key, entity_value FROM core_datastore WHERE entity_key LIKE 'core.plugins.status.%'");
+        Map<String, String> pluginsStatus = new HashMap<>();
+        try (Statement statement = connection.createStatement(); ResultSet result = statement.executeQuery(pluginsStatusRequest);)
+        {
+            while (result.next())
+                pluginsStatus.put(result.getString(1), result.getString(2));
+        } catch (SQLException e)
+        {
+            AppLogService.info("LiquibaseRunnerContext could not load plugin status entries, falling back to the datastore service : {}", e.getMessage());
+            rollback(connection);
+            return null;
+        }
+        AppLogService.info("LiquibaseRunnerContext loaded {} plugin status entries", pluginsStatus.size());
+        return Collections.unmodifiableMap(pluginsStatus);
+    }
+
+    private static void rollback(Connection connection)
+    {
+        try
+        {
+            if (!connection.getAutoCommit())
+                connection.rollback();
+        } catch (SQLException e)
+        {
+            AppLogService.error("LiquibaseRunnerContext could not roll back the failed load of plugin status entries", e);
+        }
+    }
+
+    /**
+     * Looks up a plugin status entry, in the preloaded entries if available
+     */
+    private String pluginStatus(String key)
+    {
+        if (pluginsStatus == null)
+            return Datastore.getDataValue(key, null);
+        return pluginsStatus.get(key);
+    }
+
+    /**
+     * Looks up an entry of the datastore among the plugin status entries, preloaded if available
+     *
+     * @param key a key starting with core.plugins.status.
+     * @return the value, or null if not found
+     */
+    static String statusEntry(String key)
+    {
+        return current().pluginStatus(key);
+    }
+
+    /**
+     * @return true if the current run creates the secondary indexes and foreign keys of the create files once all data is loaded, false on threads
+     *         without a run, such as those of SqlPreparser
+     */
+    static boolean isIndexDeferral()
+    {
+        LiquibaseRunnerContext context = current.get();
+        return context != null && context.indexDeferral;
+    }
+
+    /**
+     * Records the statements taken out of a create file, replacing those recorded by a previous read of the file
+     *
+     * @param changeLogPath path of the SQL file
+     * @param statements    the CREATE INDEX and ALTER TABLE ... FOREIGN KEY statements of the file
+     */
+    static void deferIndexes(String changeLogPath, List<String> statements)
+    {
+        current().deferredIndexes.put(changeLogPath, statements);
+    }
+
+    /**
+     * @return the statements taken out of the create files, in liquibase order
+     */
+    static List<String> deferredIndexes()
+    {
+        Map<String, List<String>> deferredIndexes = current().deferredIndexes;
+        synchronized (deferredIndexes)
+        {
+            return deferredIndexes.values().stream().flatMap(List::stream).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Leaves a SQL file selected for the current run to the deferred pass, if it is deferrable
+     * 
+     * @param changeLogPath path of the SQL file
+     * @return true if the file is deferred and must not be run now
+     */
+    public static boolean defer(String changeLogPath)
+    {
+        LiquibaseRunnerContext context = current();
+        if (!context.isDeferrableFile(changeLogPath))
+            return false;
+        context.deferredPaths.add(changeLogPath);
+        return true;
+    }
+
+    /**
+     * @param changeLogPath path of the SQL file
+     * @return true if the file would be left to the deferred pass by defer(), which records nothing here
+     */
+    static boolean isDeferrable(String changeLogPath)
+    {
+        return current().isDeferrableFile(changeLogPath);
+    }
+
+    private boolean isDeferrableFile(String changeLogPath)
+    {
+        if (deferredPass || deferrable == null || !deferrable.matcher(changeLogPath).matches())
+            return false;
+        SqlPathInfo info = SqlPathInfo.parse(changeLogPath);
+        return info == null || !undeferrable.contains(info.getFullPluginName());
+    }
+
+    /**
+     * Defers no file in the current run : used when the run stands for files already applied, such as a snapshot bootstrap
+     */
+    static void cancelDeferral()
+    {
+        current().deferrable = null;
+    }
+
+    /**
+     * @return true if the current run is the background pass running the deferred files
+     */
+    public static boolean isDeferredPass()
+    {
+        return current().deferredPass;
+    }
+
+    /**
+     * @param changeLogPath path of the SQL file
+     * @return true if the file was deferred by the startup pass
+     */
+    public static boolean isDeferred(String changeLogPath)
+    {
+        return current().deferredPaths.contains(changeLogPath);
+    }
+
+    /**
+     * @return the SQL files deferred by the startup pass
+     */
+    static Set<String> deferredPaths()
+    {
+        return Collections.unmodifiableSet(current().deferredPaths);
+    }
+
+    /**
+     * Unbinds the context from the current thread, to continue the run on another thread with attach().
+     * 
+     * @return the context
+     */
+    static LiquibaseRunnerContext detach()
+    {
+        LiquibaseRunnerContext context = current();
+        current.remove();
+        return context;
+    }
+
+    /**
+     * Binds a context detached from the startup pass to the current thread, for the deferred pass.
+     * 
+     * The decisions of the startup pass are kept : only the deferred files are run, and plugin versions are written by close() at the end of the pass.
+     * 
+     * @param context    the detached context
+     * @param connection a new connection from the pool of the run
+     */
+    static void attach(LiquibaseRunnerContext context, Connection connection)
+    {
+        context.connection = connection;
+        context.deferredPass = true;
+        current.set(context);
+    }
+
+    /**
+     * Tells whether the files of a plugin belong to the current lane, and records the plugins left to their own lane. A module runs in the lane of
+     * the plugin it extends.
+     * 
+     * @param pluginName a name such as 'forms'
+     * @return true if the files of the plugin are to be run by the current lane
+     */
+    public static boolean isPluginInLane(String pluginName)
+    {
+        LiquibaseRunnerContext context = current();
+        String lanePlugin = PluginMeta.getParentPlugin(pluginName);
+        if (context.lane == null || context.lane.contains(lanePlugin))
+            return true;
+        context.pendingLanes.add(lanePlugin);
+        return false;
+    }
+
+    /**
+     * Restricts the current run to the given plugins, for the first lane.
+     * 
+     * @param plugins the plugins of the lane
+     */
+    static void restrictToLane(Set<String> plugins)
+    {
+        current().lane = plugins;
+    }
+
+    /**
+     * @return the plugins left by the first lane to their own lane
+     */
+    static Set<String> pendingLanes()
+    {
+        return Collections.unmodifiableSet(current().pendingLanes);
+    }
+
+    /**
+     * Binds to the current thread the context of a lane, forked from the context of the run.
+     * 
+     * The lane shares the decisions of the run (database probes, plugin status entries) : its own changes are only visible to the run once merged by
+     * joinLane().
+     * 
+     * @param parent     the context of the run
+     * @param plugin     the plugin of the lane, which also runs the files of its modules
+     * @param connection a connection dedicated to the lane
+     * @return the context of the lane
+     */
+    static LiquibaseRunnerContext forkLane(LiquibaseRunnerContext parent, String plugin, Connection connection)
+    {
+        LiquibaseRunnerContext context = new LiquibaseRunnerContext();
+        context.liquibaseNeverRan = parent.liquibaseNeverRan;
+        context.emptyDb = parent.emptyDb;
+        context.bAcceptSnapshotVersion = parent.bAcceptSnapshotVersion;
+        context.bAcceptUnstableVersion = parent.bAcceptUnstableVersion;
+        context.bEnabledDryRun = parent.bEnabledDryRun;
+        context.poolName = parent.poolName;
+        context.defaultPoolName = parent.defaultPoolName;
+        context.pluginsStatus = parent.pluginsStatus;
+        context.pluginVersions = parent.pluginVersions;
+        context.indexDeferral = parent.indexDeferral;
+        context.deferredIndexes = parent.deferredIndexes;
+        context.deferrable = parent.deferrable;
+        context.undeferrable = parent.undeferrable;
+        context.lane = Collections.singleton(plugin);
+        context.connection = connection;
+        current.set(context);
+        return context;
+    }
+
+    /**
+     * Merges the datastore entries and deferred files of a lane into the context bound to the current thread
+     * 
+     * @param lane the context of a lane which ran successfully
+     */
+    static void joinLane(LiquibaseRunnerContext lane)
+    {
+        LiquibaseRunnerContext context = current();
+        context.entries.addAll(lane.entries);
+        context.deferredPaths.addAll(lane.deferredPaths);
+    }
+
+    /**
+     * @return the context bound to the current thread
+     */
+    static LiquibaseRunnerContext get()
+    {
+        return current();
+    }
+
+    /**
+     * Unbinds the context from the current thread.
+     * 
+     * Must be called when the run is over, whatever its outcome.
+     */
+    static void release()
+    {
+        current.remove();
     }
 
     /**
@@ -99,11 +515,12 @@ public class LiquibaseRunnerContext
      * 
      * Must be called when liquibase is done with the SQL files
      */
-    static void close()
+    static void close() throws SQLException
     {
-      if(!bEnabledDryRun)
+      LiquibaseRunnerContext context = current();
+      if(!context.bEnabledDryRun)
       {
-          entries.stream().forEach(entry -> DatastoreService.setDataValue(entry.key, entry.value));
+          context.writeEntries();
           PluginService.getPluginList().stream().forEach(p -> AppLogService.info("LiquibaseRunnerContext plugin {} version {}", p.getName(), p.getVersion()));
      }  
      else 
@@ -113,6 +530,127 @@ public class LiquibaseRunnerContext
 
     }
 
+    /**
+     * Writes all recorded entries in the datastore with one JDBC batch of updates and one of inserts, in a single transaction : either all entries are
+     * written, or none.
+     * 
+     * Entries already in the datastore when the transaction starts are updated, others are inserted. If the transaction fails, for instance because
+     * another node inserted an entry meanwhile, it is run once more. The cached values of the datastore service are evicted after the commit.
+     * 
+     * @throws SQLException if the entries could not be written
+     */
+    private void writeEntries() throws SQLException
+    {
+        if (entries.isEmpty())
+            return;
+        // the datastore lives in the default pool
+        boolean datastoreOnRunConnection = poolName == null || poolName.equals(defaultPoolName);
+        Connection datastoreConnection = datastoreOnRunConnection ? connection : AppConnectionService.getConnection();
+        try
+        {
+            try
+            {
+                writeEntries(datastoreConnection);
+            } catch (SQLException e)
+            {
+                AppLogService.info("LiquibaseRunnerContext batched datastore update failed, running it again : {}", e.getMessage());
+                writeEntries(datastoreConnection);
+            }
+        } finally
+        {
+            if (!datastoreOnRunConnection)
+                datastoreConnection.close();
+        }
+        Datastore.evict(entries.stream().map(entry -> entry.key).collect(Collectors.toList()));
+    }
+
+    private void writeEntries(Connection datastoreConnection) throws SQLException
+    {
+        final long start = System.currentTimeMillis();
+        int updated = 0, inserted = 0, rows = 0;
+        boolean autoCommit = datastoreConnection.getAutoCommit();
+        try (PreparedStatement update = datastoreConnection.prepareStatement(SQL_UPDATE_DATASTORE);
+                PreparedStatement insert = datastoreConnection.prepareStatement(SQL_INSERT_DATASTORE);)
+        {
+            datastoreConnection.setAutoCommit(false);
+            Set<String> existingKeys = new HashSet<>();
+            try (Statement statement = datastoreConnection.createStatement(); ResultSet result = statement.executeQuery(SQL_STATUS_KEYS))
+            {
+                while (result.next())
+                    existingKeys.add(result.getString(1));
+            }
+            for (DatastoreEntry entry : entries)
+            {
+                if (existingKeys.contains(entry.key))
+                {
+                    update.setString(1, entry.value);
+                    update.setString(2, entry.key);
+                    update.addBatch();
+                    updated++;
+                } else
+                {
+                    insert.setString(1, entry.key);
+                    insert.setString(2, entry.value);
+                    insert.addBatch();
+                    inserted++;
+                }
+            }
+            if (updated > 0)
+                rows += touchedRows(update.executeBatch());
+            if (inserted > 0)
+                rows += touchedRows(insert.executeBatch());
+            datastoreConnection.commit();
+        } catch (SQLException e)
+        {
+            datastoreConnection.rollback();
+            throw e;
+        } finally
+        {
+            datastoreConnection.setAutoCommit(autoCommit);
+        }
+        AppLogService.info("LiquibaseRunnerContext datastore : {} entries updated, {} entries inserted, {} rows touched in {} ms", updated, inserted, rows,
+                System.currentTimeMillis() - start);
+    }
+
+    private static int touchedRows(int[] counts)
+    {
+        int rows = 0;
+        for (int count : counts)
+            rows += count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(count, 0);
+        return rows;
+    }
+
+    /**
+     * Tells whether the scripts of a plugin are to be run by the current run.
+     * 
+     * When the run targets a pool, only the plugins declared (in the datastore) on that pool are accepted. Core and plugins without a pool are run on
+     * the default pool.
+     * 
+     * @param pluginName a name such as 'forms'
+     * @return true if the scripts of the plugin belong to the current run
+     */
+    public static boolean isPluginInScope(String pluginName)
+    {
+        LiquibaseRunnerContext context = current();
+        if (context.poolName == null)
+            return true;
+        String pluginPool = CORE_PLUGIN_NAME.equals(pluginName) ? null : pluginPoolName(pluginName);
+        if (pluginPool == null || pluginPool.isEmpty())
+            pluginPool = context.defaultPoolName;
+        return context.poolName.equals(pluginPool);
+    }
+
+    /**
+     * Looks the pool of the plugin in the DB.
+     * 
+     * @param pluginName a name such as 'forms'
+     * @return the pool name, or null if not found
+     */
+    public static String pluginPoolName(String pluginName)
+    {
+        return current().pluginStatus(pluginPoolKey(pluginName));
+    }
+
     /**
      * 
      * Looks the the plugin version in the DB.
@@ -128,10 +666,24 @@ public class LiquibaseRunnerContext
      */
     public static PluginVersion pluginVersion(String pluginName) throws SQLException
     {
-        String version = DatastoreService.getDataValue(pluginVersionKey(pluginName), null);
-        if (version == null && CORE_PLUGIN_NAME.equals(pluginName))
-            version = "" + Integer.MAX_VALUE;
-        return PluginVersion.of(version);
+        LiquibaseRunnerContext context = current();
+        return context.pluginVersions.computeIfAbsent(pluginName, name -> {
+            String version = context.pluginStatus(pluginVersionKey(name));
+            if (version == null && CORE_PLUGIN_NAME.equals(name))
+                version = "" + Integer.MAX_VALUE;
+            return Optional.ofNullable(PluginVersion.of(version));
+        }).orElse(null);
+    }
+
+    /**
+     * Looks the plugin version in the DB, as recorded.
+     * 
+     * @param pluginName a name such as 'forms'
+     * @return the version as a string, or null if not found (core included)
+     */
+    static String installedVersion(String pluginName)
+    {
+        return current().pluginStatus(pluginVersionKey(pluginName));
     }
 
     /**
@@ -145,18 +697,23 @@ public class LiquibaseRunnerContext
      */
     public static String  pluginLastRunScriptType(String pluginName) 
     {
-        return DatastoreService.getDataValue(pluginLastRunScriptTypeKey(pluginName), null);
+        return current().pluginStatus(pluginLastRunScriptTypeKey(pluginName));
     }
 
 
     private static String pluginVersionKey(String pluginName)
     {
-        return "core.plugins.status." + pluginName + ".version";
+        return PLUGINS_STATUS_PREFIX + pluginName + ".version";
     }
 
     private static String pluginLastRunScriptTypeKey(String pluginName)
     {
-        return "core.plugins.status." + pluginName + ".lastRunScriptType";
+        return PLUGINS_STATUS_PREFIX + pluginName + ".lastRunScriptType";
+    }
+
+    private static String pluginPoolKey(String pluginName)
+    {
+        return PLUGINS_STATUS_PREFIX + pluginName + ".pool";
     }
     
 
@@ -194,7 +751,7 @@ public class LiquibaseRunnerContext
         }
     }
 
-    private static final Set<DatastoreEntry> entries = new HashSet<>();
+    private final Set<DatastoreEntry> entries = new HashSet<>();
 
     /**
      * Sets the plugin version in the datastore (later, when all SQL files have been executed)
@@ -204,7 +761,7 @@ public class LiquibaseRunnerContext
      */
     public static void setPluginVersion(String pluginName, String version)
     {
-        entries.add(new DatastoreEntry(pluginVersionKey(pluginName), version));
+        current().entries.add(new DatastoreEntry(pluginVersionKey(pluginName), version));
     }
 
 
@@ -216,7 +773,7 @@ public class LiquibaseRunnerContext
      */
     public static void setPluginLastRunScriptType(String pluginName, String strLastRunTypeScript)
     {
-        entries.add(new DatastoreEntry(pluginLastRunScriptTypeKey(pluginName), strLastRunTypeScript));
+        current().entries.add(new DatastoreEntry(pluginLastRunScriptTypeKey(pluginName), strLastRunTypeScript));
     }
 
     /**
@@ -230,7 +787,7 @@ public class LiquibaseRunnerContext
      * @return an instance, or null
      * @throws SQLException
      */
-    private static <T> T runQuery(String sql, ResultSetExtractor<T> resultExtractor) throws SQLException
+    private <T> T runQuery(String sql, ResultSetExtractor<T> resultExtractor) throws SQLException
     {
         try (Statement firstRunStatement = connection.createStatement(); ResultSet result = firstRunStatement.executeQuery(sql);)
         {
@@ -0,0 +1,284 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Metrics of the last liquibase run : one RunMetrics per pool, published over JMX and written as a JSON report.
+ */
+public final class LiquibaseRunnerMetrics implements LiquibaseRunnerMetricsMXBean
+{
+    static final String OBJECT_NAME = "fr.paris.lutece.plugins.liquibase:type=LiquibaseRunner";
+    static final String ROLE_LEADER = "leader";
+    static final String ROLE_FOLLOWER = "follower";
+    static final String ROLE_UNLEASED = "unleased";
+    private static final int SLOWEST_CHANGESETS = 20;
+    private static final LiquibaseRunnerMetrics INSTANCE = new LiquibaseRunnerMetrics();
+
+    private volatile long startTime;
+    private volatile long startNanos;
+    private volatile long durationMillis = -1;
+    private volatile long preloadMetaMillis;
+    private volatile String clusterRole;
+    private volatile long leaseWaitMillis;
+    private final List<RunMetrics> pools = new CopyOnWriteArrayList<>();
+
+    private LiquibaseRunnerMetrics()
+    {
+    }
+
+    public static LiquibaseRunnerMetrics getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Forgets the previous run and starts a new one
+     */
+    void start()
+    {
+        pools.clear();
+        preloadMetaMillis = 0;
+        clusterRole = null;
+        leaseWaitMillis = 0;
+        durationMillis = -1;
+        startTime = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+    }
+
+    void preloadMetaEnded(long start)
+    {
+        preloadMetaMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Records the outcome of the cluster election
+     *
+     * @param role  leader, follower or unleased
+     * @param start System.nanoTime() when the node started waiting for the lease
+     */
+    void clusterElected(String role, long start)
+    {
+        clusterRole = role;
+        leaseWaitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Starts the metrics of a pool
+     *
+     * @param poolName the targeted pool, or null in single pool mode
+     * @param deferred true for the background pass running deferred files
+     * @return the metrics of the pool
+     */
+    RunMetrics newPool(String poolName, boolean deferred)
+    {
+        RunMetrics metrics = new RunMetrics(poolName, deferred);
+        pools.add(metrics);
+        return metrics;
+    }
+
+    void end()
+    {
+        durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Registers the MBean on the platform MBean server, replacing the one of a previous deployment if any
+     */
+    void register()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        } catch (JMException e)
+        {
+            AppLogService.error("LiquibaseRunner could not register its MBean", e);
+        }
+    }
+
+    /**
+     * Writes the JSON report of the last run
+     *
+     * @param file target file
+     */
+    void writeReport(File file)
+    {
+        try
+        {
+            Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+            Files.write(file.toPath(), getReport().getBytes(StandardCharsets.UTF_8));
+            AppLogService.info("LiquibaseRunner run report : " + file);
+        } catch (IOException e)
+        {
+            AppLogService.error("LiquibaseRunner could not write run report " + file, e);
+        }
+    }
+
+    @Override
+    public Date getStartTime()
+    {
+        return startTime == 0 ? null : new Date(startTime);
+    }
+
+    @Override
+    public long getDurationMillis()
+    {
+        return durationMillis;
+    }
+
+    @Override
+    public long getPreloadMetaMillis()
+    {
+        return preloadMetaMillis;
+    }
+
+    @Override
+    public String getClusterRole()
+    {
+        return clusterRole;
+    }
+
+    @Override
+    public long getLeaseWaitMillis()
+    {
+        return leaseWaitMillis;
+    }
+
+    @Override
+    public List<RunMetrics> getPools()
+    {
+        return new ArrayList<>(pools);
+    }
+
+    @Override
+    public List<ChangeSetMetrics> getSlowestChangeSets()
+    {
+        return pools.stream().flatMap(pool -> pool.getChangeSets().stream()).sorted(Comparator.comparingLong(ChangeSetMetrics::getDurationMillis).reversed())
+                .limit(SLOWEST_CHANGESETS).collect(Collectors.toList());
+    }
+
+    @Override
+    public String getDeferredStatus()
+    {
+        return DeferredMigrationService.getStatus().name();
+    }
+
+    @Override
+    public int getDeferredScriptsDone()
+    {
+        return DeferredMigrationService.getScriptsDone();
+    }
+
+    @Override
+    public int getDeferredScriptsTotal()
+    {
+        return DeferredMigrationService.getScriptsTotal();
+    }
+
+    @Override
+    public String getReport()
+    {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"startTime\": ").append(startTime == 0 ? "null" : quote(new Date(startTime).toInstant().toString()));
+        json.append(",\n  \"durationMillis\": ").append(durationMillis);
+        json.append(",\n  \"preloadMetaMillis\": ").append(preloadMetaMillis);
+        json.append(",\n  \"clusterRole\": ").append(quote(clusterRole));
+        json.append(",\n  \"leaseWaitMillis\": ").append(leaseWaitMillis);
+        json.append(",\n  \"pools\": [");
+        String poolSeparator = "\n";
+        for (RunMetrics pool : pools)
+        {
+            json.append(poolSeparator).append("    {\n      \"pool\": ").append(quote(pool.getPoolName()));
+            json.append(",\n      \"deferred\": ").append(pool.isDeferred());
+            json.append(",\n      \"outcome\": ").append(quote(pool.getOutcome()));
+            json.append(",\n      \"startTime\": ").append(quote(pool.getStartTime().toInstant().toString()));
+            json.append(",\n      \"durationMillis\": ").append(pool.getDurationMillis());
+            json.append(",\n      \"phasesMillis\": {");
+            String phaseSeparator = "";
+            for (Map.Entry<String, Long> phase : pool.getPhaseMillis().entrySet())
+            {
+                json.append(phaseSeparator).append(quote(phase.getKey())).append(": ").append(phase.getValue());
+                phaseSeparator = ", ";
+            }
+            json.append("}");
+            json.append(",\n      \"filesRead\": ").append(pool.getFilesRead());
+            json.append(",\n      \"bytesRead\": ").append(pool.getBytesRead());
+            json.append(",\n      \"statements\": ").append(pool.getStatements());
+            json.append(",\n      \"rowsAffected\": ").append(pool.getRowsAffected());
+            json.append(",\n      \"changeSets\": [");
+            String changeSetSeparator = "\n";
+            for (ChangeSetMetrics changeSet : pool.getChangeSets())
+            {
+                json.append(changeSetSeparator).append("        {\"id\": ").append(quote(changeSet.getId()));
+                json.append(", \"author\": ").append(quote(changeSet.getAuthor()));
+                json.append(", \"filePath\": ").append(quote(changeSet.getFilePath()));
+                json.append(", \"execType\": ").append(quote(changeSet.getExecType()));
+                json.append(", \"durationMillis\": ").append(changeSet.getDurationMillis());
+                json.append(", \"statements\": ").append(changeSet.getStatements());
+                json.append(", \"rowsAffected\": ").append(changeSet.getRowsAffected()).append("}");
+                changeSetSeparator = ",\n";
+            }
+            json.append(pool.getChangeSets().isEmpty() ? "]" : "\n      ]");
+            json.append("\n    }");
+            poolSeparator = ",\n";
+        }
+        json.append(pools.isEmpty() ? "]" : "\n  ]").append("\n}\n");
+        return json.toString();
+    }
+
+    static String quote(String value)
+    {
+        if (value == null)
+            return "null";
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            switch (c)
+            {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    else
+                        quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,62 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * JMX view of the last liquibase run, registered as fr.paris.lutece.plugins.liquibase:type=LiquibaseRunner
+ */
+public interface LiquibaseRunnerMetricsMXBean
+{
+    /**
+     * @return the start of the last run, or null if liquibase did not run
+     */
+    Date getStartTime();
+
+    /**
+     * @return the duration of the last run, or -1 while it is running
+     */
+    long getDurationMillis();
+
+    /**
+     * @return the time spent pre-loading plugin descriptors
+     */
+    long getPreloadMetaMillis();
+
+    /**
+     * @return leader, follower or unleased (run without the lease) in cluster mode, null otherwise
+     */
+    String getClusterRole();
+
+    /**
+     * @return the time spent waiting for the migration lease in cluster mode
+     */
+    long getLeaseWaitMillis();
+
+    /**
+     * @return the metrics of each pool of the last run
+     */
+    List<RunMetrics> getPools();
+
+    /**
+     * @return the slowest changesets of the last run, all pools together
+     */
+    List<ChangeSetMetrics> getSlowestChangeSets();
+
+    /**
+     * @return the status of the deferred migrations (see DeferredMigrationService.Status)
+     */
+    String getDeferredStatus();
+
+    /**
+     * @return the number of deferred SQL files already run, out of getDeferredScriptsTotal()
+     */
+    int getDeferredScriptsDone();
+
+    int getDeferredScriptsTotal();
+
+    /**
+     * @return the last run as a JSON document, as written to the report file
+     */
+    String getReport();
+}
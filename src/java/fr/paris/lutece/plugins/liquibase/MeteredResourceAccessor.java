@@ -0,0 +1,187 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import liquibase.resource.OpenOptions;
+import liquibase.resource.Resource;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Records in a RunMetrics the time spent searching resources, and reading them (filtering included when the delegate filters).
+ */
+class MeteredResourceAccessor implements ResourceAccessor
+{
+    private final ResourceAccessor delegate;
+    private final RunMetrics metrics;
+
+    MeteredResourceAccessor(ResourceAccessor delegate, RunMetrics metrics)
+    {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void close() throws Exception
+    {
+        delegate.close();
+    }
+
+    @Override
+    public List<Resource> search(String path, boolean recursive) throws IOException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return meter(delegate.search(path, recursive));
+        } finally
+        {
+            metrics.endPhase(RunMetrics.PHASE_SCAN, start);
+        }
+    }
+
+    @Override
+    public List<Resource> getAll(String path) throws IOException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return meter(delegate.getAll(path));
+        } finally
+        {
+            metrics.endPhase(RunMetrics.PHASE_SCAN, start);
+        }
+    }
+
+    @Override
+    public List<String> describeLocations()
+    {
+        return delegate.describeLocations();
+    }
+
+    private List<Resource> meter(List<Resource> resources)
+    {
+        return resources == null ? null : resources.stream().map(MeteredResource::new).collect(Collectors.toList());
+    }
+
+    private class MeteredResource implements Resource
+    {
+        private final Resource actual;
+
+        MeteredResource(Resource actual)
+        {
+            this.actual = actual;
+        }
+
+        public String getPath()
+        {
+            return actual.getPath();
+        }
+
+        public InputStream openInputStream() throws IOException
+        {
+            long start = System.nanoTime();
+            try
+            {
+                return new MeteredInputStream(actual.openInputStream());
+            } finally
+            {
+                metrics.endPhase(RunMetrics.PHASE_READ, start);
+            }
+        }
+
+        public boolean isWritable()
+        {
+            return actual.isWritable();
+        }
+
+        public boolean exists()
+        {
+            return actual.exists();
+        }
+
+        public Resource resolve(String other)
+        {
+            return actual.resolve(other);
+        }
+
+        public Resource resolveSibling(String other)
+        {
+            return actual.resolveSibling(other);
+        }
+
+        public OutputStream openOutputStream(OpenOptions openOptions) throws IOException
+        {
+            return actual.openOutputStream(openOptions);
+        }
+
+        public OutputStream openOutputStream(boolean createIfNeeded) throws IOException
+        {
+            return actual.openOutputStream(createIfNeeded);
+        }
+
+        public URI getUri()
+        {
+            return actual.getUri();
+        }
+    }
+
+    private class MeteredInputStream extends FilterInputStream
+    {
+        private long bytes;
+        private boolean closed;
+
+        MeteredInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            long start = System.nanoTime();
+            try
+            {
+                int read = super.read();
+                if (read != -1)
+                    bytes++;
+                return read;
+            } finally
+            {
+                metrics.endPhase(RunMetrics.PHASE_READ, start);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            long start = System.nanoTime();
+            try
+            {
+                int read = super.read(b, off, len);
+                if (read > 0)
+                    bytes += read;
+                return read;
+            } finally
+            {
+                metrics.endPhase(RunMetrics.PHASE_READ, start);
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            super.close();
+            if (!closed)
+            {
+                closed = true;
+                metrics.fileRead(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ * Lease elected by the nodes of a cluster starting at the same time, so that only one of them runs liquibase.
+ *
+ * The lease is a row of core_datastore, only changed by compare-and-set updates. Its value is one of :
+ * <ul>
+ * <li>held|&lt;owner&gt;|&lt;heartbeat&gt; : a node is migrating, and increments the heartbeat while it does</li>
+ * <li>done|&lt;fingerprint&gt; : the last leader succeeded, for the given InputFingerprint, deferred files included</li>
+ * <li>free : the last leader failed, or its deferred files are still running in background</li>
+ * </ul>
+ * Followers poll the row with an increasing delay, and continue without running liquibase as soon as it is done for their own fingerprint. A lease
+ * whose heartbeat did not change for the lease timeout, as seen by the follower's own clock, is taken over. No clock is compared across nodes.
+ */
+final class MigrationLease
+{
+    private static final String LEASE_KEY = "core.plugins.status.liquibase.lease";
+    private static final String LEASE_TIMEOUT = "liquibase.cluster.lease.timeout";
+    private static final String WAIT_MAX = "liquibase.cluster.wait.max";
+    private static final String POLL_MAX = "liquibase.cluster.poll.max";
+    private static final long POLL_MIN = 100;
+    private static final String HELD = "held|";
+    private static final String DONE = "done|";
+    private static final String FREE = "free";
+    private static final String SQL_SELECT = "SELECT entity_value FROM core_datastore WHERE entity_key = ?";
+    private static final String SQL_INSERT = "INSERT INTO core_datastore (entity_key, entity_value) VALUES (?, ?)";
+    private static final String SQL_CAS = "UPDATE core_datastore SET entity_value = ? WHERE entity_key = ? AND entity_value = ?";
+
+    private final LiquibaseRunner.ConnectionSupplier connectionSupplier;
+    private final String fingerprint;
+    private final String owner;
+    private final long timeout;
+    // the value this node last wrote, null while the lease is not held
+    private String value;
+    private long heartbeat;
+    private ScheduledExecutorService heartbeats;
+    // true when the lease was released while the deferred files of the run are running
+    private boolean deferred;
+
+    private MigrationLease(LiquibaseRunner.ConnectionSupplier connectionSupplier, String fingerprint)
+    {
+        this.connectionSupplier = connectionSupplier;
+        this.fingerprint = fingerprint;
+        this.owner = ManagementFactory.getRuntimeMXBean().getName() + '/' + UUID.randomUUID().toString().substring(0, 8);
+        this.timeout = AppPropertiesService.getPropertyLong(LEASE_TIMEOUT, 30000);
+    }
+
+    /**
+     * Takes the lease, or waits for the leader.
+     *
+     * @param connectionSupplier gives a connection to the database holding core_datastore
+     * @param fingerprint        fingerprint of the run of this node
+     * @return the lease when this node must run liquibase, null when another node did it for the same fingerprint
+     * @throws InterruptedException
+     */
+    static MigrationLease acquire(LiquibaseRunner.ConnectionSupplier connectionSupplier, String fingerprint) throws InterruptedException
+    {
+        MigrationLease lease = new MigrationLease(connectionSupplier, fingerprint);
+        return lease.waitForTurn() ? lease : null;
+    }
+
+    /**
+     * @return true when this node must run liquibase, false when another node did it
+     */
+    private boolean waitForTurn() throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + AppPropertiesService.getPropertyLong(WAIT_MAX, 30 * 60 * 1000L);
+        final long pollMax = Math.max(POLL_MIN, AppPropertiesService.getPropertyLong(POLL_MAX, 5000));
+        long delay = POLL_MIN;
+        String seen = null;
+        long seenSince = 0;
+        while (true)
+        {
+            String current;
+            try
+            {
+                current = read();
+                if (current == null ? insert(held(0)) : takeOver(current, seen, seenSince))
+                {
+                    startHeartbeats();
+                    AppLogService.info("LiquibaseRunner elected to migrate the database ({})", owner);
+                    return true;
+                }
+            } catch (SQLException e)
+            {
+                // typically core_datastore does not exist yet : first install, only the liquibase lock protects the run
+                AppLogService.info("LiquibaseRunner cluster lease unavailable, running under the liquibase lock only : {}", e.getMessage());
+                return true;
+            }
+            if ((DONE + fingerprint).equals(current))
+            {
+                AppLogService.info("LiquibaseRunner database already migrated by another node");
+                return false;
+            }
+            if (current != null && !current.equals(seen))
+            {
+                // the leader is alive : restart the staleness clock
+                seen = current;
+                seenSince = System.currentTimeMillis();
+            }
+            if (System.currentTimeMillis() > deadline)
+            {
+                AppLogService.error("LiquibaseRunner gave up waiting for the node holding the migration lease ({}), running under the liquibase lock only",
+                        current);
+                return true;
+            }
+            AppLogService.debug("LiquibaseRunner waiting {} ms for the node holding the migration lease ({})", delay, current);
+            Thread.sleep(delay);
+            delay = Math.min(delay * 2, pollMax);
+        }
+    }
+
+    /**
+     * Takes the lease if it is free, done for another fingerprint, or held by a node which stopped beating
+     */
+    private boolean takeOver(String current, String seen, long seenSince) throws SQLException
+    {
+        if ((DONE + fingerprint).equals(current))
+            return false;
+        if (current.startsWith(HELD))
+        {
+            if (!current.equals(seen) || System.currentTimeMillis() - seenSince < timeout)
+                return false;
+            AppLogService.info("LiquibaseRunner migration lease {} did not change for {} ms, taking it over", current, timeout);
+        }
+        return cas(current, held(0));
+    }
+
+    /**
+     * @return false when the run goes on without the lease (core_datastore missing, or waited too long)
+     */
+    synchronized boolean isHeld()
+    {
+        return value != null;
+    }
+
+    private String held(long beat)
+    {
+        return HELD + owner + '|' + beat;
+    }
+
+    private synchronized void beat()
+    {
+        if (value == null)
+            return;
+        try
+        {
+            String next = held(heartbeat + 1);
+            if (cas(value, next))
+            {
+                heartbeat++;
+            } else
+            {
+                AppLogService.error("LiquibaseRunner lost the migration lease, another node took it over");
+                value = null;
+            }
+        } catch (SQLException e)
+        {
+            AppLogService.error("LiquibaseRunner could not renew the migration lease", e);
+        }
+    }
+
+    private void startHeartbeats()
+    {
+        heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "liquibase-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, timeout / 3);
+        heartbeats.scheduleWithFixedDelay(this::beat, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Releases the lease : followers waiting for the same fingerprint continue without running liquibase if the run succeeded, otherwise one of them
+     * takes the lease.
+     *
+     * @param success true if the run succeeded
+     */
+    synchronized void release(boolean success)
+    {
+        if (heartbeats != null)
+            heartbeats.shutdownNow();
+        if (value == null)
+            return;
+        try
+        {
+            if (!cas(value, success ? DONE + fingerprint : FREE))
+                AppLogService.error("LiquibaseRunner lost the migration lease before releasing it");
+        } catch (SQLException e)
+        {
+            AppLogService.error("LiquibaseRunner could not release the migration lease, followers will take it over after " + timeout + " ms", e);
+        }
+        value = null;
+    }
+
+    /**
+     * Releases the lease at the end of a startup pass whose deferred files are still running : the lease is left free, so that followers go on and
+     * a restart runs liquibase again until deferredDone() is called
+     */
+    synchronized void releaseDeferred()
+    {
+        boolean held = value != null;
+        release(false);
+        deferred = held;
+    }
+
+    /**
+     * Publishes the success of the run once its deferred files ran, if no other node took the lease released meanwhile
+     */
+    synchronized void deferredDone()
+    {
+        if (!deferred)
+            return;
+        deferred = false;
+        try
+        {
+            if (!cas(FREE, DONE + fingerprint))
+                AppLogService.info("LiquibaseRunner migration lease taken by another node while the deferred files ran");
+        } catch (SQLException e)
+        {
+            AppLogService.error("LiquibaseRunner could not publish the end of the deferred migrations", e);
+        }
+    }
+
+    private String read() throws SQLException
+    {
+        try (Connection connection = connectionSupplier.get(); PreparedStatement select = connection.prepareStatement(SQL_SELECT))
+        {
+            select.setString(1, LEASE_KEY);
+            try (ResultSet rs = select.executeQuery())
+            {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        }
+    }
+
+    /**
+     * Creates the lease row
+     *
+     * @return false if another node created it first
+     */
+    private boolean insert(String newValue) throws SQLException
+    {
+        try (Connection connection = connectionSupplier.get(); PreparedStatement insert = connection.prepareStatement(SQL_INSERT))
+        {
+            insert.setString(1, LEASE_KEY);
+            insert.setString(2, newValue);
+            try
+            {
+                insert.executeUpdate();
+                commit(connection);
+            } catch (SQLException e)
+            {
+                // duplicate key : lost the race
+                AppLogService.debug("LiquibaseRunner migration lease created by another node : {}", e.getMessage());
+                return false;
+            }
+        }
+        value = newValue;
+        return true;
+    }
+
+    /**
+     * Compare-and-set of the lease row
+     *
+     * @return false if the row did not hold the expected value
+     */
+    private boolean cas(String expected, String newValue) throws SQLException
+    {
+        try (Connection connection = connectionSupplier.get(); PreparedStatement update = connection.prepareStatement(SQL_CAS))
+        {
+            update.setString(1, newValue);
+            update.setString(2, LEASE_KEY);
+            update.setString(3, expected);
+            boolean set = update.executeUpdate() == 1;
+            commit(connection);
+            if (set)
+                value = newValue.startsWith(HELD) ? newValue : null;
+            return set;
+        }
+    }
+
+    private static void commit(Connection connection) throws SQLException
+    {
+        if (!connection.getAutoCommit())
+            connection.commit();
+    }
+}
@@ -0,0 +1,187 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pending migrations computed by MigrationStatusService : the SQL files a run would execute, by pool and plugin.
+ */
+public final class MigrationStatus
+{
+    private final List<Pool> pools;
+    private final DeferredMigrationService.Status deferredStatus;
+    private final long durationMillis;
+
+    MigrationStatus(List<Pool> pools, DeferredMigrationService.Status deferredStatus, long durationMillis)
+    {
+        this.pools = Collections.unmodifiableList(pools);
+        this.deferredStatus = deferredStatus;
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * @return true if a run would execute SQL files, or if files deferred at startup are still running
+     */
+    public boolean isPending()
+    {
+        return deferredStatus == DeferredMigrationService.Status.RUNNING || pools.stream().anyMatch(pool -> !pool.getPlugins().isEmpty());
+    }
+
+    /**
+     * @return one entry per pool, a single one with a null name in single pool mode
+     */
+    public List<Pool> getPools()
+    {
+        return pools;
+    }
+
+    /**
+     * @return the status of the files deferred by the last startup
+     */
+    public DeferredMigrationService.Status getDeferredStatus()
+    {
+        return deferredStatus;
+    }
+
+    /**
+     * @return the time taken to compute the status
+     */
+    public long getDurationMillis()
+    {
+        return durationMillis;
+    }
+
+    /**
+     * @return the status as a JSON document
+     */
+    public String toJson()
+    {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"pending\": ").append(isPending());
+        json.append(",\n  \"deferredStatus\": ").append(LiquibaseRunnerMetrics.quote(deferredStatus.name()));
+        json.append(",\n  \"durationMillis\": ").append(durationMillis);
+        json.append(",\n  \"pools\": [");
+        String poolSeparator = "\n";
+        for (Pool pool : pools)
+        {
+            json.append(poolSeparator).append("    {\n      \"pool\": ").append(LiquibaseRunnerMetrics.quote(pool.getPoolName()));
+            json.append(",\n      \"emptyDb\": ").append(pool.isEmptyDb());
+            json.append(",\n      \"liquibaseNeverRan\": ").append(pool.isLiquibaseNeverRan());
+            json.append(",\n      \"plugins\": [");
+            String pluginSeparator = "\n";
+            for (Plugin plugin : pool.getPlugins())
+            {
+                json.append(pluginSeparator).append("        {\"name\": ").append(LiquibaseRunnerMetrics.quote(plugin.getName()));
+                json.append(", \"installedVersion\": ").append(LiquibaseRunnerMetrics.quote(plugin.getInstalledVersion()));
+                json.append(", \"targetVersion\": ").append(LiquibaseRunnerMetrics.quote(plugin.getTargetVersion()));
+                json.append(", \"scripts\": [");
+                String scriptSeparator = "";
+                for (String script : plugin.getScripts())
+                {
+                    json.append(scriptSeparator).append(LiquibaseRunnerMetrics.quote(script));
+                    scriptSeparator = ", ";
+                }
+                json.append("]}");
+                pluginSeparator = ",\n";
+            }
+            json.append(pool.getPlugins().isEmpty() ? "]" : "\n      ]");
+            json.append("\n    }");
+            poolSeparator = ",\n";
+        }
+        json.append(pools.isEmpty() ? "]" : "\n  ]").append("\n}\n");
+        return json.toString();
+    }
+
+    /**
+     * Pending migrations of a connection pool
+     */
+    public static final class Pool
+    {
+        private final String poolName;
+        private final boolean emptyDb;
+        private final boolean liquibaseNeverRan;
+        private final List<Plugin> plugins;
+
+        Pool(String poolName, boolean emptyDb, boolean liquibaseNeverRan, List<Plugin> plugins)
+        {
+            this.poolName = poolName;
+            this.emptyDb = emptyDb;
+            this.liquibaseNeverRan = liquibaseNeverRan;
+            this.plugins = Collections.unmodifiableList(plugins);
+        }
+
+        /**
+         * @return the pool name, null in single pool mode
+         */
+        public String getPoolName()
+        {
+            return poolName;
+        }
+
+        public boolean isEmptyDb()
+        {
+            return emptyDb;
+        }
+
+        public boolean isLiquibaseNeverRan()
+        {
+            return liquibaseNeverRan;
+        }
+
+        /**
+         * @return the plugins with SQL files to run, by name
+         */
+        public List<Plugin> getPlugins()
+        {
+            return plugins;
+        }
+    }
+
+    /**
+     * Pending migrations of a plugin
+     */
+    public static final class Plugin
+    {
+        private final String name;
+        private final String installedVersion;
+        private final String targetVersion;
+        private final List<String> scripts;
+
+        Plugin(String name, String installedVersion, String targetVersion, List<String> scripts)
+        {
+            this.name = name;
+            this.installedVersion = installedVersion;
+            this.targetVersion = targetVersion;
+            this.scripts = Collections.unmodifiableList(scripts);
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @return the version recorded in the datastore, null if the plugin is not installed
+         */
+        public String getInstalledVersion()
+        {
+            return installedVersion;
+        }
+
+        /**
+         * @return the version of the plugin descriptor
+         */
+        public String getTargetVersion()
+        {
+            return targetVersion;
+        }
+
+        /**
+         * @return the paths of the SQL files to run, in liquibase order
+         */
+        public List<String> getScripts()
+        {
+            return scripts;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import fr.paris.lutece.plugins.liquibase.filters.TestIncludeAllFilter;
+import fr.paris.lutece.portal.service.database.AppConnectionService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+import fr.paris.lutece.utils.sql.SqlPathInfo;
+import liquibase.resource.Resource;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Tells which SQL files a run would execute, without running liquibase : the files TestIncludeAllFilter would select, minus those already recorded
+ * in DATABASECHANGELOG. No SQL is read, generated or executed, and nothing is written : the status can be polled, for instance by health checks
+ * during rolling deploys.
+ */
+public final class MigrationStatusService
+{
+    private static final String MULTI_POOL = "liquibase.multipool.enabled";
+    private static final String DEFAULT_POOL = "liquibase.multipool.default.pool";
+    private static final String SQL_PATH = "sql";
+    private static final String SQL_RAN_FILES = "SELECT DISTINCT FILENAME FROM DATABASECHANGELOG";
+
+    private MigrationStatusService()
+    {
+    }
+
+    /**
+     * Computes the pending migrations of the webapp
+     *
+     * @return the SQL files a run would execute, by pool and plugin
+     * @throws Exception if the databases or the SQL files can not be read
+     */
+    public static MigrationStatus getStatus() throws Exception
+    {
+        return getStatus(AppConnectionService::getConnection);
+    }
+
+    /**
+     * @param defaultConnections gives connections to the database of the default pool
+     */
+    static MigrationStatus getStatus(LiquibaseRunner.ConnectionSupplier defaultConnections) throws Exception
+    {
+        long start = System.currentTimeMillis();
+        PluginMeta.preloadMeta();
+        List<MigrationStatus.Pool> pools = new ArrayList<>();
+        if (AppPropertiesService.getPropertyBoolean(MULTI_POOL, false))
+        {
+            final String defaultPoolName = AppPropertiesService.getProperty(DEFAULT_POOL, "portal");
+            final Map<String, String> pluginsStatus;
+            try (Connection connection = defaultConnections.get())
+            {
+                pluginsStatus = LiquibaseRunnerContext.loadPluginsStatus(connection);
+            }
+            for (String poolName : LiquibaseRunner.poolNames(defaultPoolName))
+                pools.add(poolStatus(poolName, defaultPoolName, LiquibaseRunner.poolConnections(poolName, defaultPoolName), pluginsStatus));
+        } else
+        {
+            pools.add(poolStatus(null, null, defaultConnections, null));
+        }
+        return new MigrationStatus(pools, DeferredMigrationService.getStatus(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Searches the SQL files as a run on the pool would see them, pre-filtered files included
+     */
+    private static MigrationStatus.Pool poolStatus(String poolName, String defaultPoolName, LiquibaseRunner.ConnectionSupplier connectionSupplier,
+            Map<String, String> pluginsStatus) throws Exception
+    {
+        try (Connection connection = connectionSupplier.get();
+                ResourceAccessor accessor = LiquibaseRunner.sqlResourceAccessor(LiquibaseRunner.dbName(connection.getMetaData().getURL())))
+        {
+            LiquibaseRunnerContext.init(connection, poolName, defaultPoolName, pluginsStatus);
+            try
+            {
+                Set<String> ranFiles = LiquibaseRunnerContext.isLiquibaseNeverRan() ? Collections.emptySet() : ranFiles(connection);
+                Map<String, List<String>> scripts = new TreeMap<>();
+                for (Resource resource : accessor.search(SQL_PATH, true))
+                {
+                    String path = resource.getPath();
+                    if (!path.endsWith(".sql") || ranFiles.contains(path))
+                        continue;
+                    SqlPathInfo info = SqlPathInfo.parse(path);
+                    if (info != null && LiquibaseRunnerContext.isPluginInScope(info.getFullPluginName()) && TestIncludeAllFilter.selects(info))
+                        scripts.computeIfAbsent(info.getFullPluginName(), name -> new ArrayList<>()).add(path);
+                }
+                List<MigrationStatus.Plugin> plugins = new ArrayList<>();
+                for (Map.Entry<String, List<String>> plugin : scripts.entrySet())
+                {
+                    // includeAll runs the files in path order
+                    Collections.sort(plugin.getValue());
+                    String installedVersion = LiquibaseRunnerContext.isEmptyDb() ? null : LiquibaseRunnerContext.installedVersion(plugin.getKey());
+                    plugins.add(new MigrationStatus.Plugin(plugin.getKey(), installedVersion, PluginMeta.getPluginVersion(plugin.getKey()), plugin.getValue()));
+                }
+                return new MigrationStatus.Pool(poolName, LiquibaseRunnerContext.isEmptyDb(), LiquibaseRunnerContext.isLiquibaseNeverRan(), plugins);
+            } finally
+            {
+                LiquibaseRunnerContext.release();
+            }
+        }
+    }
+
+    /**
+     * Paths of the SQL files recorded by liquibase
+     */
+    private static Set<String> ranFiles(Connection connection) throws SQLException
+    {
+        Set<String> ranFiles = new HashSet<>();
+        try (Statement statement = connection.createStatement(); ResultSet result = statement.executeQuery(SQL_RAN_FILES))
+        {
+            while (result.next())
+                ranFiles.add(result.getString(1));
+        }
+        return ranFiles;
+    }
+}
@@ -0,0 +1,59 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ * Serves the pending migrations computed by MigrationStatusService as JSON : HTTP 200 when nothing is pending, 503 otherwise, so that orchestrators
+ * can poll it during rolling deploys.
+ *
+ * Disabled unless liquibase.status.enabled is true. When liquibase.status.token is set, requests must send it in the X-Liquibase-Status-Token
+ * header.
+ */
+public class MigrationStatusServlet extends HttpServlet
+{
+    private static final long serialVersionUID = 1L;
+    private static final String ENABLED = "liquibase.status.enabled";
+    private static final String TOKEN = "liquibase.status.token";
+    private static final String TOKEN_HEADER = "X-Liquibase-Status-Token";
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        if (!AppPropertiesService.getPropertyBoolean(ENABLED, false))
+        {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        String token = AppPropertiesService.getProperty(TOKEN, "");
+        String sent = request.getHeader(TOKEN_HEADER);
+        if (!token.isEmpty() && (sent == null || !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), sent.getBytes(StandardCharsets.UTF_8))))
+        {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        MigrationStatus status;
+        try
+        {
+            status = MigrationStatusService.getStatus();
+        } catch (Exception e)
+        {
+            AppLogService.error("LiquibaseRunner could not compute the migration status", e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+        response.setStatus(status.isPending() ? HttpServletResponse.SC_SERVICE_UNAVAILABLE : HttpServletResponse.SC_OK);
+        response.setContentType("application/json");
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.setHeader("Cache-Control", "no-store");
+        response.getWriter().write(status.toJson());
+    }
+}
@@ -0,0 +1,61 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.ServiceLoader;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPathService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ * Migration run by LiquibaseCli, in the class loader of the webapp : initializes the path and properties services of the webapp, and runs a
+ * LiquibaseRunner on connections opened with the JDBC driver of the webapp. The datastore is accessed with plain JDBC.
+ */
+final class OfflineMigration
+{
+    private static final String CONF_PATH = "/WEB-INF/conf/";
+
+    private OfflineMigration()
+    {
+    }
+
+    /**
+     * @param webappPath exploded webapp directory
+     * @param url        JDBC URL of the database of the default pool
+     * @param user       database user, or null
+     * @param password   database password, or null
+     * @return the exit code : 0 if the migration succeeded
+     * @throws SQLException if no JDBC driver accepts the URL
+     */
+    static int run(String webappPath, String url, String user, String password) throws SQLException
+    {
+        AppPathService.init(webappPath);
+        AppPropertiesService.init(CONF_PATH);
+        Driver driver = driver(url);
+        Properties info = new Properties();
+        if (user != null)
+            info.setProperty("user", user);
+        if (password != null)
+            info.setProperty("password", password);
+        LiquibaseRunner.ConnectionSupplier connections = () -> driver.connect(url, info);
+        Datastore.useConnections(connections);
+        AppLogService.info("LiquibaseRunner running offline on webapp {}", webappPath);
+        return new LiquibaseRunner(connections, true).migrate() ? 0 : 1;
+    }
+
+    /**
+     * Drivers are looked up in the class loader of the webapp : DriverManager only registers those of the system class loader
+     */
+    private static Driver driver(String url) throws SQLException
+    {
+        for (Driver driver : ServiceLoader.load(Driver.class, OfflineMigration.class.getClassLoader()))
+        {
+            if (driver.acceptsURL(url))
+                return driver;
+        }
+        return DriverManager.getDriver(url);
+    }
+}
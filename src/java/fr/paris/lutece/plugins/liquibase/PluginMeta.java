@@ -1,19 +1,31 @@
 package fr.paris.lutece.plugins.liquibase;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
-import org.w3c.dom.Document;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import fr.paris.lutece.portal.service.init.LuteceInitException;
+import fr.paris.lutece.portal.service.util.AppLogService;
 import fr.paris.lutece.portal.service.util.AppPathService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
 import fr.paris.lutece.util.filesystem.FileListFilter;
 
 public class PluginMeta
@@ -22,43 +34,205 @@ public class PluginMeta
     private static final String CORE_XML = "core.xml";
     private static final String PATH_PLUGIN = "path.plugins";
     private static final String EXTENSION_FILE = "xml";
-    private static final Map<String, String> _mapPluginsMeta = new HashMap<>();
+    private static final String META_CACHE_FILE = "liquibase.meta.cache.file";
+    private static final String TAG_NAME = "name";
+    private static final String TAG_VERSION = "version";
+    private static final String TAG_REQUIREMENT = "requirement";
+    private static final String TAG_REQUIREMENT_NAME = "requirement-name";
+    private static final String CORE_PLUGIN_NAME = "core";
+    private static final Map<String, String> _mapPluginsMeta = new ConcurrentHashMap<>();
+    // plugins required by each plugin, from the requirement elements of its descriptor
+    private static final Map<String, List<String>> _mapPluginsRequirements = new ConcurrentHashMap<>();
+    // descriptors already parsed, by absolute path
+    private static final Map<String, CachedMeta> _mapCache = new ConcurrentHashMap<>();
+    private static final XMLInputFactory _xmlInputFactory = newXmlInputFactory();
 
     /**
      * Pre-loads name and version from plugins to make them available (with getPluginVersion()) if needed before complete loading by init().
-     * 
+     *
      * @throws LuteceInitException
      */
     public static void preloadMeta() throws LuteceInitException
     {
-        File dirPlugin = new File(AppPathService.getPath(PATH_PLUGIN));
+        String cacheFile = AppPropertiesService.getProperty(META_CACHE_FILE, "");
+        preloadMeta(new File(AppPathService.getPath(PATH_PLUGIN)), new File(AppPathService.getPath(PATH_CONF, CORE_XML)),
+                cacheFile.isEmpty() ? null : new File(cacheFile.startsWith("/") ? cacheFile : AppPathService.getAbsolutePathFromRelativePath("/" + cacheFile)));
+    }
 
+    /**
+     * Pre-loads name and version from the descriptors of a plugin directory and of the core.
+     *
+     * Descriptors are parsed in parallel, and only up to their name and version. Descriptors whose modification time and size did not change since they
+     * were last parsed are not parsed again.
+     *
+     * @param dirPlugin directory of the plugin descriptors
+     * @param coreXml   descriptor of the core
+     * @param cacheFile file keeping the parsed descriptors between runs, or null
+     * @throws LuteceInitException
+     */
+    static void preloadMeta(File dirPlugin, File coreXml, File cacheFile) throws LuteceInitException
+    {
         if (dirPlugin.exists())// it should
         {
             // all plugins
             List<File> files = new ArrayList<>(Arrays.asList(dirPlugin.listFiles(new FileListFilter("", EXTENSION_FILE))));
             // and the core
-            files.add(new File(AppPathService.getPath(PATH_CONF, CORE_XML)));
+            files.add(coreXml);
+            if (cacheFile != null)
+                loadCache(cacheFile);
             try
             {
-                DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-                for (File file : files)
-                {
-                    Document doc = builder.parse(file);
-                    String name = doc.getElementsByTagName("name").item(0).getTextContent();
-                    String version = doc.getElementsByTagName("version").item(0).getTextContent();
-                    _mapPluginsMeta.put(name, version);
-                }
+                files.parallelStream().map(PluginMeta::readMeta).forEach(meta -> {
+                    _mapPluginsMeta.put(meta.name, meta.version);
+                    _mapPluginsRequirements.put(meta.name, meta.requirements);
+                });
             } catch (Exception e)
             {
                 throw new LuteceInitException("preloadMeta failed", e);
             }
+            if (cacheFile != null)
+                storeCache(cacheFile);
         }
     }
 
+    /**
+     * Reads the name and version of a descriptor, from the cache if the file did not change
+     */
+    private static CachedMeta readMeta(File file)
+    {
+        String key = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        CachedMeta meta = _mapCache.get(key);
+        if (meta == null || meta.lastModified != lastModified || meta.length != length)
+        {
+            meta = parseMeta(file, lastModified, length);
+            _mapCache.put(key, meta);
+        }
+        return meta;
+    }
+
+    /**
+     * Streams a descriptor : its first name and version elements (in document order, as DOM's getElementsByTagName().item(0) would), and the
+     * names of its requirement elements (the text of their requirement-name or name child, or their own text)
+     */
+    private static CachedMeta parseMeta(File file, long lastModified, long length)
+    {
+        String name = null, version = null;
+        List<String> requirements = new ArrayList<>();
+        try (InputStream in = Files.newInputStream(file.toPath()))
+        {
+            XMLStreamReader reader = _xmlInputFactory.createXMLStreamReader(in);
+            try
+            {
+                // text of the current requirement element, null outside of one
+                StringBuilder requirement = null;
+                String requirementName = null;
+                while (reader.hasNext())
+                {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT)
+                    {
+                        String tag = reader.getLocalName();
+                        if (requirement != null)
+                        {
+                            if (requirementName == null && (TAG_REQUIREMENT_NAME.equals(tag) || TAG_NAME.equals(tag)))
+                                requirementName = reader.getElementText().trim();
+                        } else if (TAG_REQUIREMENT.equals(tag))
+                        {
+                            requirement = new StringBuilder();
+                            requirementName = null;
+                        } else if (name == null && TAG_NAME.equals(tag))
+                            name = reader.getElementText();
+                        else if (version == null && TAG_VERSION.equals(tag))
+                            version = reader.getElementText();
+                    } else if (requirement != null && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA))
+                    {
+                        requirement.append(reader.getText());
+                    } else if (requirement != null && event == XMLStreamConstants.END_ELEMENT && TAG_REQUIREMENT.equals(reader.getLocalName()))
+                    {
+                        String required = requirementName != null ? requirementName : requirement.toString().trim();
+                        if (!required.isEmpty())
+                            requirements.add(required);
+                        requirement = null;
+                    }
+                }
+            } finally
+            {
+                reader.close();
+            }
+        } catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        } catch (XMLStreamException e)
+        {
+            throw new IllegalStateException("Could not parse " + file, e);
+        }
+        if (name == null || version == null)
+            throw new IllegalStateException("No name or version in " + file);
+        return new CachedMeta(lastModified, length, name, version, requirements);
+    }
+
+    private static XMLInputFactory newXmlInputFactory()
+    {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // descriptors may declare a DTD, which is not needed to read them
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    private static void loadCache(File cacheFile)
+    {
+        if (!cacheFile.exists())
+            return;
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(cacheFile.toPath()))
+        {
+            properties.load(in);
+            for (String key : properties.stringPropertyNames())
+            {
+                // entries written before the requirements were read have 4 fields, and are parsed again
+                String[] fields = properties.getProperty(key).split("\\|", 5);
+                if (fields.length == 5)
+                    _mapCache.putIfAbsent(key, new CachedMeta(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2], fields[3],
+                            fields[4].isEmpty() ? Collections.emptyList() : Arrays.asList(fields[4].split(","))));
+            }
+        } catch (IOException | NumberFormatException e)
+        {
+            AppLogService.error("PluginMeta could not read cache file " + cacheFile, e);
+        }
+    }
+
+    private static void storeCache(File cacheFile)
+    {
+        Properties properties = new Properties();
+        _mapCache.forEach((key, meta) -> properties.setProperty(key,
+                meta.lastModified + "|" + meta.length + "|" + meta.name + "|" + meta.version + "|" + String.join(",", meta.requirements)));
+        try
+        {
+            Files.createDirectories(cacheFile.getAbsoluteFile().getParentFile().toPath());
+            try (OutputStream out = Files.newOutputStream(cacheFile.toPath()))
+            {
+                properties.store(out, "PluginMeta cache");
+            }
+        } catch (IOException e)
+        {
+            AppLogService.error("PluginMeta could not write cache file " + cacheFile, e);
+        }
+    }
+
+    /**
+     * Forgets the descriptors already parsed, so that the next preload parses them again (or reads them from the cache file)
+     */
+    static void clearCache()
+    {
+        _mapCache.clear();
+    }
+
     /**
      * Returns a version for the given plugin name.
-     * 
+     *
      * @param pluginName plugin name to look up
      * @return a version or null if not found
      */
@@ -66,4 +240,77 @@ public class PluginMeta
     {
         return _mapPluginsMeta.get(pluginName);
     }
+
+    /**
+     * Returns all preloaded plugin versions.
+     *
+     * @return an unmodifiable map of versions, by plugin name
+     */
+    public static Map<String, String> getPluginsMeta()
+    {
+        return Collections.unmodifiableMap(_mapPluginsMeta);
+    }
+
+    /**
+     * Returns the plugins required by a plugin : those of the requirement elements of its descriptor, and the parent plugin of a module.
+     *
+     * @param pluginName plugin name to look up
+     * @return the names of the required plugins, empty if none or not found
+     */
+    public static Set<String> getPluginRequirements(String pluginName)
+    {
+        Set<String> requirements = new LinkedHashSet<>(_mapPluginsRequirements.getOrDefault(pluginName, Collections.emptyList()));
+        String parent = getParentPlugin(pluginName);
+        if (!parent.equals(pluginName))
+            requirements.add(parent);
+        requirements.remove(pluginName);
+        return requirements;
+    }
+
+    /**
+     * Returns the plugin of a module, such as workflow for workflow-notifygru : a module is installed along with the plugin it extends.
+     *
+     * @param pluginName full name of a plugin or module
+     * @return the name of the parent plugin for a module of a known plugin, the given name otherwise
+     */
+    public static String getParentPlugin(String pluginName)
+    {
+        int dash = pluginName.indexOf('-');
+        if (dash > 0 && _mapPluginsMeta.containsKey(pluginName.substring(0, dash)))
+            return pluginName.substring(0, dash);
+        return pluginName;
+    }
+
+    /**
+     * Returns the plugins other plugins depend on : core, the plugins named by requirements, and the plugins extended by modules.
+     *
+     * @return the names of the required plugins
+     */
+    public static Set<String> getRequiredPlugins()
+    {
+        Set<String> required = new HashSet<>();
+        required.add(CORE_PLUGIN_NAME);
+        for (String pluginName : _mapPluginsMeta.keySet())
+            required.addAll(getPluginRequirements(pluginName));
+        return required;
+    }
+
+    /**
+     * Name, version and requirements of a descriptor, with the modification time and size of the file when it was parsed
+     */
+    private static class CachedMeta
+    {
+        private final long lastModified, length;
+        private final String name, version;
+        private final List<String> requirements;
+
+        CachedMeta(long lastModified, long length, String name, String version, List<String> requirements)
+        {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.name = name;
+            this.version = version;
+            this.requirements = requirements;
+        }
+    }
 }
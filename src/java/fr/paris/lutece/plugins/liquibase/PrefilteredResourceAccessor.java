@@ -0,0 +1,191 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import liquibase.resource.OpenOptions;
+import liquibase.resource.Resource;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Serves SQL files pre-filtered at build time (see SqlPrefilter) in place of the original ones.
+ *
+ * Pre-filtered files live in sql/&lt;dialect&gt;/ but are exposed under their original path, so that liquibase sees exactly the same changelog as with
+ * runtime filtering. The pre-filtered trees of all dialects are hidden from searches. Files missing from the manifest of the target dialect are left
+ * untouched, for runtime filtering by RegexpFilteringResourceAccessor.
+ */
+public class PrefilteredResourceAccessor implements ResourceAccessor
+{
+    /** Lists the dialects for which pre-filtered files were generated */
+    static final String PREFILTERED_PROPERTIES = "sql/prefiltered.properties";
+    static final String PROPERTY_DIALECTS = "dialects";
+    /** Lists the pre-filtered files of a dialect, relative to sql/ */
+    static final String MANIFEST = "manifest.txt";
+    static final String SQL_PREFIX = "sql/";
+
+    private final ResourceAccessor delegate;
+    private final String dialect;
+    private final Set<String> dialectPrefixes;
+    private final Set<String> manifest;
+
+    private PrefilteredResourceAccessor(ResourceAccessor delegate, String dialect, Set<String> dialects, Set<String> manifest)
+    {
+        this.delegate = delegate;
+        this.dialect = dialect;
+        this.dialectPrefixes = dialects.stream().map(d -> SQL_PREFIX + d + "/").collect(Collectors.toSet());
+        this.manifest = manifest;
+    }
+
+    /**
+     * Wraps an accessor if pre-filtered files exist.
+     *
+     * @param delegate gives access to the classpath
+     * @param dialect  the target database name, as given by SqlRegexpHelper.findDbName()
+     * @return a PrefilteredResourceAccessor, or the delegate itself if no pre-filtered file was generated
+     * @throws IOException
+     */
+    public static ResourceAccessor wrap(ResourceAccessor delegate, String dialect) throws IOException
+    {
+        Resource prefiltered = delegate.get(PREFILTERED_PROPERTIES);
+        if (prefiltered == null || !prefiltered.exists())
+            return delegate;
+        Properties properties = new Properties();
+        try (InputStream in = prefiltered.openInputStream())
+        {
+            properties.load(in);
+        }
+        Set<String> dialects = new HashSet<>(Arrays.asList(properties.getProperty(PROPERTY_DIALECTS, "").split("\\s*,\\s*")));
+        dialects.remove("");
+        Set<String> manifest = new HashSet<>();
+        if (dialect != null && dialects.contains(dialect))
+        {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(delegate.getExisting(SQL_PREFIX + dialect + "/" + MANIFEST).openInputStream(), StandardCharsets.UTF_8)))
+            {
+                reader.lines().filter(line -> !line.isEmpty()).forEach(manifest::add);
+            }
+        }
+        AppLogService.info("LiquibaseRunner using {} SQL files pre-filtered for {}, pre-filtered dialects : {}", manifest.size(), dialect, dialects);
+        return new PrefilteredResourceAccessor(delegate, dialect, dialects, manifest);
+    }
+
+    @Override
+    public void close() throws Exception
+    {
+        delegate.close();
+    }
+
+    @Override
+    public List<Resource> search(String path, boolean recursive) throws IOException
+    {
+        return map(delegate.search(path, recursive));
+    }
+
+    @Override
+    public List<Resource> getAll(String path) throws IOException
+    {
+        return map(delegate.getAll(path));
+    }
+
+    @Override
+    public List<String> describeLocations()
+    {
+        return delegate.describeLocations();
+    }
+
+    private List<Resource> map(List<Resource> source) throws IOException
+    {
+        if (source == null)
+            return null;
+        List<Resource> result = new ArrayList<>(source.size());
+        for (Resource resource : source)
+        {
+            String path = normalize(resource.getPath());
+            if (dialectPrefixes.stream().anyMatch(path::startsWith))
+                continue;
+            if (path.startsWith(SQL_PREFIX) && manifest.contains(path.substring(SQL_PREFIX.length())))
+                result.add(new PrefilteredResource(resource, delegate.getExisting(SQL_PREFIX + dialect + "/" + path.substring(SQL_PREFIX.length()))));
+            else
+                result.add(resource);
+        }
+        return result;
+    }
+
+    private static String normalize(String path)
+    {
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
+    /**
+     * Original resource, with the content of its pre-filtered version
+     */
+    static class PrefilteredResource implements Resource
+    {
+        private final Resource actual;
+        private final Resource prefiltered;
+
+        PrefilteredResource(Resource actual, Resource prefiltered)
+        {
+            this.actual = actual;
+            this.prefiltered = prefiltered;
+        }
+
+        public String getPath()
+        {
+            return actual.getPath();
+        }
+
+        public InputStream openInputStream() throws IOException
+        {
+            return prefiltered.openInputStream();
+        }
+
+        public boolean isWritable()
+        {
+            return false;
+        }
+
+        public boolean exists()
+        {
+            return true;
+        }
+
+        public Resource resolve(String other)
+        {
+            return actual.resolve(other);
+        }
+
+        public Resource resolveSibling(String other)
+        {
+            return actual.resolveSibling(other);
+        }
+
+        public OutputStream openOutputStream(OpenOptions openOptions) throws IOException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public OutputStream openOutputStream(boolean createIfNeeded) throws IOException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public URI getUri()
+        {
+            return actual.getUri();
+        }
+    }
+}
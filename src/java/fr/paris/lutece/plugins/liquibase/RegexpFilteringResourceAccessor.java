@@ -1,20 +1,13 @@
 package fr.paris.lutece.plugins.liquibase;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.net.URI;
-import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
 import fr.paris.lutece.utils.sql.SqlRegexpHelper;
 import liquibase.resource.OpenOptions;
 import liquibase.resource.Resource;
@@ -23,30 +16,74 @@ import liquibase.resource.ResourceAccessor;
 /**
  * Filters SQL files before giving them to liquibase.
  * 
- * This class is NOT thread-safe. This is not a problem as long as it is only used at lucene core startup on the main thread.
+ * Filtered files are kept in a FilteredSqlCache, so that each file is filtered only once per run, whatever the order in which liquibase reads them.
+ * This class is thread-safe : an accessor, or a cache, can be shared by concurrent runs.
  * 
  */
 public class RegexpFilteringResourceAccessor implements ResourceAccessor
 {
+    private static final String SPILL_THRESHOLD = "liquibase.filter.spill.threshold";
+    private static final String CACHE_SIZE = "liquibase.filter.cache.size";
+
     private final ResourceAccessor delegate;
     private final SqlRegexpHelper helper;
-    // for better performance, re-used for all SQL files
-    // this is what makes this class unsafe for use by several threads.
-    private final ByteArrayOutputStream byteCache = new ByteArrayOutputStream();
-    // for performance again :
-    // liquibase reads the same file twice in a row
-    // so we note the file name and re-use the byteCache if names match
-    private String previousPath = null;
+    private final SqlLineFilter lineFilter;
+    // filtered content above this size is kept in a temporary file instead of the heap
+    private final long spillThreshold;
+    // for performance :
+    // liquibase reads the same files several times (checksum, parsing, validation)
+    // so we keep the filtered content and replay it
+    private final FilteredSqlCache cache;
+    // only released by close() when the cache is not shared
+    private final boolean ownCache;
+    // distinguishes the entries of runs sharing a cache with different filtering rules (the target database name)
+    private final String cacheNamespace;
 
     public RegexpFilteringResourceAccessor(ResourceAccessor delegate, SqlRegexpHelper helper) throws IOException
+    {
+        this(delegate, helper, newCache(), "", true);
+    }
+
+    /**
+     * Creates an accessor using a cache shared with other runs
+     * 
+     * @param delegate       gives access to the original files
+     * @param helper         filtering rules, or null if no filtering is needed
+     * @param cache          the shared cache
+     * @param cacheNamespace the same namespace must be used by all accessors sharing the cache with the same filtering rules
+     * @throws IOException
+     */
+    public RegexpFilteringResourceAccessor(ResourceAccessor delegate, SqlRegexpHelper helper, FilteredSqlCache cache, String cacheNamespace) throws IOException
+    {
+        this(delegate, helper, cache, cacheNamespace, false);
+    }
+
+    private RegexpFilteringResourceAccessor(ResourceAccessor delegate, SqlRegexpHelper helper, FilteredSqlCache cache, String cacheNamespace, boolean ownCache)
     {
         this.delegate = delegate;
         this.helper = helper;
+        this.lineFilter = helper == null ? null : SqlLineFilter.configured(helper);
+        this.spillThreshold = AppPropertiesService.getPropertyLong(SPILL_THRESHOLD, 1024 * 1024);
+        this.cache = cache;
+        this.cacheNamespace = cacheNamespace;
+        this.ownCache = ownCache;
+    }
+
+    /**
+     * Creates a cache sized according to the configuration
+     * 
+     * @return a new cache
+     */
+    public static FilteredSqlCache newCache()
+    {
+        return new FilteredSqlCache(AppPropertiesService.getPropertyLong(CACHE_SIZE, 128L * 1024 * 1024));
     }
 
     @Override
     public void close() throws Exception
     {
+        if (ownCache)
+            cache.clear();
         delegate.close();
     }
 
@@ -64,7 +101,9 @@ public class RegexpFilteringResourceAccessor implements ResourceAccessor
 
     private List<Resource> filterResources(List<Resource> source)
     {
-        return (source == null || helper == null) ? source : source.stream().map(FilteringResource::new).collect(Collectors.toList());
+        // files pre-filtered at build time are left untouched
+        return (source == null || helper == null) ? source
+                : source.stream().map(r -> r instanceof PrefilteredResourceAccessor.PrefilteredResource ? r : new FilteringResource(r)).collect(Collectors.toList());
     }
 
     @Override
@@ -75,26 +114,25 @@ public class RegexpFilteringResourceAccessor implements ResourceAccessor
 
     /**
      * Used by FilteringResource to filter a SQL file
+     * 
+     * The file is filtered line by line as it is read. The filtered content is recorded (in memory or in a temporary file depending on its size) in the
+     * cache so that later reads of the same file replay it.
+     * 
      * @param in the original SQL file
-     * @param path path of the original file, used to determine if we can reuse the last cached resource
+     * @param path path of the original file, used as cache key
      * @return a filtered InputStream
      * @throws IOException
      */
     private InputStream filterSQL(InputStream in, String path) throws IOException
     {
-        if (previousPath == null || !previousPath.equals(path))
+        final String key = cacheNamespace + ':' + path;
+        InputStream cached = cache.open(key);
+        if (cached != null)
         {
-            byteCache.reset();
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
-                    Stream<String> lines = reader.lines();
-                    BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(byteCache, StandardCharsets.UTF_8));)
-            {
-                for (String line : (Iterable<String>) lines::iterator)
-                    writer.append(helper.filter(line)).append('\n');
-            }
-            previousPath = path;
+            in.close();
+            return cached;
         }
-        return new ByteArrayInputStream(byteCache.toByteArray());
+        return new FilteringSqlInputStream(in, lineFilter, new SpillBuffer(spillThreshold), content -> cache.put(key, content));
     }
 
     /**
@@ -0,0 +1,192 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of a liquibase run on one pool : time spent in each phase, SQL files read, statements, rows, and the execution of each changeset.
+ *
+ * Phases may be entered several times (files are read all along the run), their times are summed.
+ */
+public class RunMetrics
+{
+    /** Getting the connection and the liquibase database */
+    public static final String PHASE_CONNECTION = "connection";
+    /** Computing the fast path fingerprint */
+    public static final String PHASE_FINGERPRINT = "fingerprint";
+    /** Probing the database state in LiquibaseRunnerContext.init() */
+    public static final String PHASE_PROBES = "probes";
+    /** Acquiring the liquibase lock */
+    public static final String PHASE_LOCK = "lock";
+    /** Searching the SQL files */
+    public static final String PHASE_SCAN = "scan";
+    /** Reading (and filtering) the SQL files */
+    public static final String PHASE_READ = "read";
+    /** Reading and checking the selected SQL files in parallel before the update */
+    public static final String PHASE_PREPARSE = "preparse";
+    /** The whole liquibase update, changesets included */
+    public static final String PHASE_UPDATE = "update";
+    /** Writing plugin versions to the datastore in LiquibaseRunnerContext.close() */
+    public static final String PHASE_WRITE_BACK = "writeBack";
+
+    static final String OUTCOME_RUNNING = "running";
+    static final String OUTCOME_SUCCESS = "success";
+    static final String OUTCOME_SKIPPED = "skipped";
+    static final String OUTCOME_FAILURE = "failure";
+
+    private final String poolName;
+    private final boolean deferred;
+    private final long startTime = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+    private final List<ChangeSetMetrics> changeSets = new ArrayList<>();
+    private final AtomicLong filesRead = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong statements = new AtomicLong();
+    private final AtomicLong rowsAffected = new AtomicLong();
+    private volatile long durationMillis = -1;
+    private volatile String outcome = OUTCOME_RUNNING;
+
+    /**
+     * @param poolName the targeted pool, or null in single pool mode
+     * @param deferred true for the background pass running deferred files
+     */
+    RunMetrics(String poolName, boolean deferred)
+    {
+        this.poolName = poolName;
+        this.deferred = deferred;
+    }
+
+    /**
+     * Adds the time elapsed since the given start to a phase
+     *
+     * @param phase      the phase
+     * @param startNanos System.nanoTime() when the phase started
+     */
+    void endPhase(String phase, long startNanos)
+    {
+        long elapsed = System.nanoTime() - startNanos;
+        synchronized (phaseNanos)
+        {
+            phaseNanos.merge(phase, elapsed, Long::sum);
+        }
+    }
+
+    void fileRead(long bytes)
+    {
+        filesRead.incrementAndGet();
+        bytesRead.addAndGet(bytes);
+    }
+
+    void statementRan()
+    {
+        statements.incrementAndGet();
+    }
+
+    void changeSetRan(ChangeSetMetrics changeSet)
+    {
+        rowsAffected.addAndGet(changeSet.getRowsAffected());
+        synchronized (changeSets)
+        {
+            changeSets.add(changeSet);
+        }
+    }
+
+    void end(String outcome)
+    {
+        this.outcome = outcome;
+        this.durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return the targeted pool, or null in single pool mode
+     */
+    public String getPoolName()
+    {
+        return poolName;
+    }
+
+    /**
+     * @return true for the background pass running deferred files
+     */
+    public boolean isDeferred()
+    {
+        return deferred;
+    }
+
+    public Date getStartTime()
+    {
+        return new Date(startTime);
+    }
+
+    /**
+     * @return the duration of the run, or -1 while it is running
+     */
+    public long getDurationMillis()
+    {
+        return durationMillis;
+    }
+
+    /**
+     * @return running, success, skipped (fast path) or failure
+     */
+    public String getOutcome()
+    {
+        return outcome;
+    }
+
+    /**
+     * @return the time spent in each phase, in the order phases were first entered
+     */
+    public Map<String, Long> getPhaseMillis()
+    {
+        Map<String, Long> phaseMillis = new LinkedHashMap<>();
+        synchronized (phaseNanos)
+        {
+            phaseNanos.forEach((phase, nanos) -> phaseMillis.put(phase, TimeUnit.NANOSECONDS.toMillis(nanos)));
+        }
+        return phaseMillis;
+    }
+
+    public long getFilesRead()
+    {
+        return filesRead.get();
+    }
+
+    public long getBytesRead()
+    {
+        return bytesRead.get();
+    }
+
+    /**
+     * @return the number of SQL statements sent to the database, liquibase bookkeeping included
+     */
+    public long getStatements()
+    {
+        return statements.get();
+    }
+
+    /**
+     * @return the number of rows affected by the changesets
+     */
+    public long getRowsAffected()
+    {
+        return rowsAffected.get();
+    }
+
+    /**
+     * @return the changesets, in execution order
+     */
+    public List<ChangeSetMetrics> getChangeSets()
+    {
+        synchronized (changeSets)
+        {
+            return new ArrayList<>(changeSets);
+        }
+    }
+}
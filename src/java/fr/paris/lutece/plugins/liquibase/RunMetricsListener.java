@@ -0,0 +1,90 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import liquibase.Scope;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.ChangeSet.ExecType;
+import liquibase.changelog.ChangeSet.RunStatus;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.changelog.visitor.AbstractChangeExecListener;
+import liquibase.database.Database;
+import liquibase.executor.jvm.JdbcExecutor;
+import liquibase.listener.SqlListener;
+
+/**
+ * Records the execution of each changeset of a run in its RunMetrics.
+ *
+ * Statements are counted by the SqlListener returned by statementCounter(), which must be registered in the liquibase scope of the run. Rows are those
+ * counted by liquibase in the scope of the update command.
+ */
+class RunMetricsListener extends AbstractChangeExecListener
+{
+    private static final String EXEC_TYPE_FAILED = "FAILED";
+
+    private final RunMetrics metrics;
+    // statements of this listener's run only : the metrics may be shared by runs in parallel (plugin lanes)
+    private final AtomicLong statements = new AtomicLong();
+    // changesets of a run are executed one at a time
+    private long changeSetStart;
+    private long statementsAtStart;
+    private long rowsAtStart;
+
+    RunMetricsListener(RunMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return a listener counting the statements sent to the database
+     */
+    SqlListener statementCounter()
+    {
+        return new SqlListener()
+        {
+            @Override
+            public void writeSqlWillRun(String sql)
+            {
+                statements.incrementAndGet();
+                metrics.statementRan();
+            }
+        };
+    }
+
+    @Override
+    public void willRun(ChangeSet changeSet, DatabaseChangeLog databaseChangeLog, Database database, RunStatus runStatus)
+    {
+        changeSetStart = System.nanoTime();
+        statementsAtStart = statements.get();
+        rowsAtStart = rowsAffected();
+    }
+
+    @Override
+    public void ran(ChangeSet changeSet, DatabaseChangeLog databaseChangeLog, Database database, ExecType execType)
+    {
+        record(changeSet, execType.name());
+    }
+
+    @Override
+    public void runFailed(ChangeSet changeSet, DatabaseChangeLog databaseChangeLog, Database database, Exception exception)
+    {
+        record(changeSet, EXEC_TYPE_FAILED);
+    }
+
+    private void record(ChangeSet changeSet, String execType)
+    {
+        metrics.changeSetRan(new ChangeSetMetrics(changeSet.getId(), changeSet.getAuthor(), changeSet.getFilePath(), execType,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - changeSetStart), statements.get() - statementsAtStart, rowsAffected() - rowsAtStart));
+    }
+
+    /**
+     * Rows counted so far by liquibase in the current scope
+     */
+    private static long rowsAffected()
+    {
+        AtomicInteger rows = Scope.getCurrentScope().get(JdbcExecutor.ROWS_AFFECTED_SCOPE_KEY, AtomicInteger.class);
+        return rows == null ? 0 : rows.get();
+    }
+}
@@ -0,0 +1,300 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPathService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+import liquibase.CatalogAndSchema;
+import liquibase.Contexts;
+import liquibase.Liquibase;
+import liquibase.database.Database;
+import liquibase.diff.output.DiffOutputControl;
+import liquibase.diff.output.changelog.DiffToChangeLog;
+import liquibase.resource.DirectoryResourceAccessor;
+import liquibase.serializer.core.xml.XMLChangeLogSerializer;
+import liquibase.structure.core.Column;
+import liquibase.structure.core.Data;
+import liquibase.structure.core.ForeignKey;
+import liquibase.structure.core.Index;
+import liquibase.structure.core.PrimaryKey;
+import liquibase.structure.core.Sequence;
+import liquibase.structure.core.Table;
+import liquibase.structure.core.UniqueConstraint;
+
+/**
+ * Bootstraps an empty database from a snapshot of a first install, instead of running every create/init script.
+ *
+ * A snapshot lives in &lt;liquibase.snapshot.dir&gt;/&lt;dialect&gt;/ : a liquibase changelog creating the schema (snapshot.xml), the data as CSV
+ * files loaded in batches by its loadData changes (data/), and snapshot.properties recording the InputFingerprint of the SQL resources and plugins it
+ * was taken from. A snapshot is only used when this fingerprint matches the current one.
+ *
+ * loadData inserts the ids of the snapshot : identity columns, and the sequences owned by a column (postgresql SERIAL), are restarted after them once
+ * the data is loaded. Sequences not owned by a column keep the start value of the snapshot.
+ */
+final class SnapshotBootstrap
+{
+    private static final String ENABLED = "liquibase.snapshot.enabled";
+    private static final String EXPORT = "liquibase.snapshot.export";
+    private static final String DIR = "liquibase.snapshot.dir";
+    private static final String CHANGELOG = "snapshot.xml";
+    private static final String PROPERTIES = "snapshot.properties";
+    private static final String DATA = "data";
+    private static final String PROPERTY_FINGERPRINT = "fingerprint";
+    private static final String PROPERTY_DIALECT = "dialect";
+    private static final String PROPERTY_CREATED = "created";
+    private static final String AUTHOR = "lutece-snapshot";
+    private static final String SQL_DELETE_STATUS = "DELETE FROM core_datastore WHERE entity_key LIKE 'core.plugins.status.%'";
+
+    private SnapshotBootstrap()
+    {
+    }
+
+    static boolean isEnabled()
+    {
+        return AppPropertiesService.getPropertyBoolean(ENABLED, false);
+    }
+
+    static boolean isExportEnabled()
+    {
+        return AppPropertiesService.getPropertyBoolean(EXPORT, false);
+    }
+
+    /**
+     * @param dialect liquibase short name of the target database
+     * @return the snapshot directory of the dialect
+     */
+    private static File directory(String dialect)
+    {
+        String dir = AppPropertiesService.getProperty(DIR, "WEB-INF/plugins/liquibase/snapshots");
+        return new File(dir.startsWith("/") ? dir : AppPathService.getAbsolutePathFromRelativePath("/" + dir), dialect);
+    }
+
+    /**
+     * Looks for a snapshot usable for the current run
+     *
+     * @param dialect     liquibase short name of the target database
+     * @param fingerprint result of InputFingerprint.computeForDialect()
+     * @return the snapshot directory, or null if there is no snapshot for this fingerprint
+     */
+    static File find(String dialect, String fingerprint)
+    {
+        File dir = directory(dialect);
+        File properties = new File(dir, PROPERTIES);
+        if (!properties.isFile())
+        {
+            AppLogService.info("LiquibaseRunner no snapshot in {}", dir);
+            return null;
+        }
+        Properties snapshot = new Properties();
+        try (InputStream in = new FileInputStream(properties))
+        {
+            snapshot.load(in);
+        } catch (IOException e)
+        {
+            AppLogService.error("LiquibaseRunner could not read snapshot " + properties, e);
+            return null;
+        }
+        if (!fingerprint.equals(snapshot.getProperty(PROPERTY_FINGERPRINT)))
+        {
+            AppLogService.info("LiquibaseRunner snapshot {} taken on {} does not match the SQL resources and plugins, running the scripts", dir,
+                    snapshot.getProperty(PROPERTY_CREATED));
+            return null;
+        }
+        return dir;
+    }
+
+    /**
+     * Loads a snapshot into the database, and forgets its changesets : the database changelog must then be synchronized by the caller. The caller
+     * holds the liquibase lock, which the database given must not release.
+     *
+     * @param dir        the snapshot directory
+     * @param database   a database of the connection, whose lock service does not release the lock of the run
+     * @param connection the connection of the database
+     * @throws Exception
+     */
+    static void load(File dir, Database database, Connection connection) throws Exception
+    {
+        try (DirectoryResourceAccessor accessor = new DirectoryResourceAccessor(dir))
+        {
+            // not closed : that would close the database of the run
+            Liquibase snapshot = new Liquibase(CHANGELOG, accessor, database);
+            snapshot.update(new Contexts());
+        }
+        restartIdentities(database, connection);
+        String table = database.escapeTableName(database.getLiquibaseCatalogName(), database.getLiquibaseSchemaName(),
+                database.getDatabaseChangeLogTableName());
+        try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + table + " WHERE FILENAME = ?"))
+        {
+            delete.setString(1, CHANGELOG);
+            delete.executeUpdate();
+        }
+        if (hasDatastore(dir))
+        {
+            // plugin status, fingerprint and lease of the run the snapshot was taken from : written again for this run
+            try (PreparedStatement delete = connection.prepareStatement(SQL_DELETE_STATUS))
+            {
+                delete.executeUpdate();
+            }
+        }
+        if (!connection.getAutoCommit())
+            connection.commit();
+    }
+
+    /**
+     * Restarts the identity columns of the schema after the greatest value loaded
+     *
+     * @param database   the database of the run
+     * @param connection the connection of the database
+     * @throws SQLException
+     */
+    private static void restartIdentities(Database database, Connection connection) throws SQLException
+    {
+        String dialect = database.getShortName();
+        String schema = database.getDefaultSchemaName();
+        List<String[]> identities = new ArrayList<>();
+        DatabaseMetaData metaData = connection.getMetaData();
+        try (ResultSet columns = metaData.getColumns(connection.getCatalog(), schema, "%", "%"))
+        {
+            while (columns.next())
+            {
+                if ("YES".equals(columns.getString("IS_AUTOINCREMENT")))
+                    identities.add(new String[] { columns.getString("TABLE_NAME"), columns.getString("COLUMN_NAME") });
+            }
+        }
+        int restarted = 0;
+        for (String[] identity : identities)
+        {
+            String table = database.escapeTableName(null, schema, identity[0]);
+            String column = database.escapeColumnName(null, schema, identity[0], identity[1]);
+            long next;
+            try (Statement statement = connection.createStatement(); ResultSet max = statement.executeQuery("SELECT MAX(" + column + ") FROM " + table))
+            {
+                next = max.next() ? max.getLong(1) + 1 : 1;
+            }
+            String sql = restartSql(dialect, table, column, identity[1], next);
+            if (sql == null)
+            {
+                AppLogService.info("LiquibaseRunner identity columns of {} are not restarted after a snapshot, check {}.{}", dialect, identity[0],
+                        identity[1]);
+                continue;
+            }
+            try (Statement statement = connection.createStatement())
+            {
+                statement.execute(sql);
+            }
+            restarted++;
+        }
+        AppLogService.info("LiquibaseRunner {} identity columns restarted after the snapshot", restarted);
+    }
+
+    /**
+     * @return the statement restarting an identity column at a value, null if the dialect is not supported
+     */
+    private static String restartSql(String dialect, String table, String column, String columnName, long next)
+    {
+        switch (dialect)
+        {
+            case "postgresql":
+                // SERIAL and IDENTITY columns both own a sequence
+                return "SELECT setval(pg_get_serial_sequence('" + table.replace("'", "''") + "', '" + columnName.replace("'", "''") + "'), " + next
+                        + ", false)";
+            case "hsqldb":
+            case "h2":
+                return "ALTER TABLE " + table + " ALTER COLUMN " + column + " RESTART WITH " + next;
+            case "mysql":
+            case "mariadb":
+                return "ALTER TABLE " + table + " AUTO_INCREMENT = " + next;
+            case "oracle":
+                return "ALTER TABLE " + table + " MODIFY " + column + " GENERATED BY DEFAULT AS IDENTITY (START WITH LIMIT VALUE)";
+            default:
+                return null;
+        }
+    }
+
+    private static boolean hasDatastore(File dir) throws IOException
+    {
+        String content = new String(Files.readAllBytes(new File(dir, CHANGELOG).toPath()), StandardCharsets.UTF_8);
+        return content.toLowerCase(Locale.ROOT).contains("tablename=\"core_datastore\"");
+    }
+
+    /**
+     * Takes a snapshot of the database just installed, replacing the previous snapshot of the dialect.
+     *
+     * @param database    the database of the run
+     * @param dialect     liquibase short name of the target database
+     * @param fingerprint result of InputFingerprint.computeForDialect()
+     * @throws Exception
+     */
+    static void export(Database database, String dialect, String fingerprint) throws Exception
+    {
+        long start = System.currentTimeMillis();
+        File dir = directory(dialect);
+        // written aside, then moved : a half written snapshot is never used
+        File work = new File(dir.getParentFile(), dialect + ".tmp");
+        delete(work);
+        File data = new File(work, DATA);
+        Files.createDirectories(data.toPath());
+        DiffOutputControl control = new DiffOutputControl(false, false, false, null);
+        control.setDataDir(data.getAbsolutePath());
+        DiffToChangeLog diff = new DiffToChangeLog(control);
+        diff.setChangeSetAuthor(AUTHOR);
+        File changelog = new File(work, CHANGELOG);
+        try (DirectoryResourceAccessor accessor = new DirectoryResourceAccessor(work);
+                PrintStream console = new PrintStream(new ByteArrayOutputStream(), true, StandardCharsets.UTF_8.name()))
+        {
+            // liquibase writes the changelog it is given, which must not exist yet. Not closed : that would close the database of the run
+            Liquibase liquibase = new Liquibase(changelog.getAbsolutePath(), accessor, database);
+            liquibase.generateChangeLog(CatalogAndSchema.DEFAULT, diff, console, new XMLChangeLogSerializer(), Table.class, Column.class,
+                    PrimaryKey.class, UniqueConstraint.class, Index.class, ForeignKey.class, Sequence.class, Data.class);
+        }
+        // CSV files are referenced with the path they were written to : make them relative to the snapshot
+        String content = new String(Files.readAllBytes(changelog.toPath()), StandardCharsets.UTF_8);
+        Files.write(changelog.toPath(), content.replaceAll("file=\"[^\"]*/(" + DATA + "/[^\"/]+\\.csv)\"", "file=\"$1\"").getBytes(StandardCharsets.UTF_8));
+        Properties snapshot = new Properties();
+        snapshot.setProperty(PROPERTY_FINGERPRINT, fingerprint);
+        snapshot.setProperty(PROPERTY_DIALECT, dialect);
+        snapshot.setProperty(PROPERTY_CREATED, new Date().toInstant().toString());
+        try (OutputStream out = new FileOutputStream(new File(work, PROPERTIES)))
+        {
+            snapshot.store(out, "Lutece liquibase snapshot");
+        }
+        delete(dir);
+        Files.move(work.toPath(), dir.toPath());
+        AppLogService.info("LiquibaseRunner snapshot taken in {} in {} ms", dir, System.currentTimeMillis() - start);
+    }
+
+    private static void delete(File dir) throws IOException
+    {
+        if (!dir.exists())
+            return;
+        try (Stream<Path> paths = Files.walk(dir.toPath()))
+        {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Write-once, read-many byte buffer.
+ *
+ * Content is kept in memory until it reaches a threshold, then spilled to a temporary file, so that the heap used does not grow with the size of the
+ * content. Once complete, the content can be replayed any number of times.
+ *
+ * Temporary files are deleted by release(), or when the last replay stream open at that time is closed. They are created in a directory per JVM, so that cleanUp() can delete the files left by JVMs which
+ * stopped before releasing them.
+ */
+class SpillBuffer extends OutputStream
+{
+    private static final Path SPILL_DIR = Paths.get(System.getProperty("java.io.tmpdir"), "liquibase-spill");
+
+    private final long threshold;
+    private ExposedByteArrayOutputStream memory = new ExposedByteArrayOutputStream();
+    private Path file;
+    private OutputStream fileOut;
+    private long size;
+    private boolean complete;
+    // replay streams not closed yet, and whether the content is to be deleted when the last one is closed
+    private int readers;
+    private boolean released;
+
+    /**
+     * @param threshold number of bytes above which content is spilled to a temporary file
+     */
+    SpillBuffer(long threshold)
+    {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if (complete)
+            throw new IllegalStateException("SpillBuffer already complete");
+        if (fileOut == null && size + len > threshold)
+        {
+            Path dir = Files.createDirectories(SPILL_DIR.resolve(String.valueOf(ProcessHandle.current().pid())));
+            file = Files.createTempFile(dir, "liquibase-", ".sql");
+            fileOut = new BufferedOutputStream(Files.newOutputStream(file));
+            memory.writeTo(fileOut);
+            memory = null;
+        }
+        if (fileOut != null)
+            fileOut.write(b, off, len);
+        else
+            memory.write(b, off, len);
+        size += len;
+    }
+
+    /**
+     * Marks the content as complete : no more writes are accepted, and the content can be replayed.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (!complete)
+        {
+            complete = true;
+            if (fileOut != null)
+                fileOut.close();
+        }
+    }
+
+    boolean isComplete()
+    {
+        return complete;
+    }
+
+    /**
+     * @return number of bytes written
+     */
+    long size()
+    {
+        return size;
+    }
+
+    /**
+     * @return true if the content is in memory
+     */
+    boolean isInMemory()
+    {
+        return memory != null;
+    }
+
+    /**
+     * Opens a new stream on the complete content, without copying it.
+     *
+     * @return a stream
+     * @throws IOException
+     */
+    synchronized InputStream openReplay() throws IOException
+    {
+        if (!complete)
+            throw new IllegalStateException("SpillBuffer not complete");
+        if (memory != null)
+            return memory.toInputStream();
+        InputStream in = new BufferedInputStream(Files.newInputStream(file));
+        readers++;
+        return new FilterInputStream(in)
+        {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException
+            {
+                if (closed)
+                    return;
+                closed = true;
+                try
+                {
+                    super.close();
+                } finally
+                {
+                    readerClosed();
+                }
+            }
+        };
+    }
+
+    private synchronized void readerClosed()
+    {
+        readers--;
+        if (released && readers == 0)
+            delete();
+    }
+
+    /**
+     * Releases the content. The temporary file, if any, is deleted once the replay streams still open are closed. The buffer must not be used
+     * afterwards.
+     */
+    synchronized void release()
+    {
+        memory = null;
+        complete = false;
+        released = true;
+        if (readers == 0)
+            delete();
+    }
+
+    private void delete()
+    {
+        try
+        {
+            if (fileOut != null)
+                fileOut.close();
+            if (file != null)
+                Files.deleteIfExists(file);
+        } catch (IOException e)
+        {
+            // deleted by cleanUp() on a later startup
+            AppLogService.debug("LiquibaseRunner could not delete {} : {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes the temporary files left by JVMs which are no longer running
+     */
+    static void cleanUp()
+    {
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(SPILL_DIR))
+        {
+            for (Path dir : dirs)
+            {
+                long pid;
+                try
+                {
+                    pid = Long.parseLong(dir.getFileName().toString());
+                } catch (NumberFormatException e)
+                {
+                    continue;
+                }
+                if (ProcessHandle.of(pid).isPresent())
+                    continue;
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir))
+                {
+                    for (Path file : files)
+                        Files.deleteIfExists(file);
+                }
+                Files.deleteIfExists(dir);
+            }
+        } catch (NoSuchFileException e)
+        {
+            // nothing was ever spilled
+        } catch (IOException e)
+        {
+            AppLogService.info("LiquibaseRunner could not clean up {} : {}", SPILL_DIR, e.getMessage());
+        }
+    }
+
+    /** Gives access to the internal buffer to avoid a copy on each replay */
+    private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream
+    {
+        InputStream toInputStream()
+        {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+}
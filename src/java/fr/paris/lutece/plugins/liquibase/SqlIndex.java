@@ -0,0 +1,205 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import liquibase.resource.ClassLoaderResourceAccessor;
+import liquibase.resource.Resource;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Index of the SQL changelog files of a webapp, generated at build time.
+ *
+ * Lists the paths of the SQL files, so that resource discovery does not need to scan the classpath. The index records a signature of the jars of
+ * WEB-INF/lib and of the files of WEB-INF/classes/sql : it is ignored at runtime if any of them was added, removed or replaced since it was generated.
+ *
+ * Run by the build of the site on its exploded webapp, after SqlPrefilter. Usage : <code>SqlIndex &lt;webapp directory&gt;</code>
+ */
+public final class SqlIndex
+{
+    /** Location of the index on the classpath */
+    static final String INDEX = "sql/index.txt";
+    private static final String SIGNATURE = "# signature=";
+    private static final String SEPARATOR = "\t";
+
+    private final String signature;
+    private final List<Entry> entries;
+
+    private SqlIndex(String signature, List<Entry> entries)
+    {
+        this.signature = signature;
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    public String getSignature()
+    {
+        return signature;
+    }
+
+    public List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length != 1)
+            throw new IllegalArgumentException("Usage : SqlIndex <webapp directory>");
+        File webapp = new File(args[0]);
+        SqlIndex index = build(webapp);
+        index.write(webapp.toPath().resolve("WEB-INF/classes").resolve(INDEX));
+        AppLogService.info("SqlIndex : {} SQL files indexed in {}", index.entries.size(), webapp);
+    }
+
+    /**
+     * Indexes the SQL files of a webapp
+     *
+     * @param webapp exploded webapp directory
+     * @return the index
+     * @throws Exception
+     */
+    static SqlIndex build(File webapp) throws Exception
+    {
+        List<Entry> entries = new ArrayList<>();
+        // pre-filtered files (see SqlPrefilter) are served under their original path, they are not indexed
+        Properties prefiltered = new Properties();
+        Path prefilteredProperties = webapp.toPath().resolve("WEB-INF/classes").resolve(PrefilteredResourceAccessor.PREFILTERED_PROPERTIES);
+        if (Files.exists(prefilteredProperties))
+        {
+            try (InputStream in = Files.newInputStream(prefilteredProperties))
+            {
+                prefiltered.load(in);
+            }
+        }
+        List<String> prefilteredPrefixes = new ArrayList<>();
+        for (String dialect : prefiltered.getProperty(PrefilteredResourceAccessor.PROPERTY_DIALECTS, "").split("\\s*,\\s*"))
+            if (!dialect.isEmpty())
+                prefilteredPrefixes.add(PrefilteredResourceAccessor.SQL_PREFIX + dialect + "/");
+        try (URLClassLoader classLoader = new URLClassLoader(SqlPrefilter.webappUrls(webapp), null);
+                ClassLoaderResourceAccessor accessor = new ClassLoaderResourceAccessor(classLoader))
+        {
+            for (Resource resource : accessor.search("sql", true))
+            {
+                String path = resource.getPath();
+                if (path.endsWith(".sql") && prefilteredPrefixes.stream().noneMatch(path::startsWith))
+                    entries.add(new Entry(path));
+            }
+        }
+        entries.sort(Comparator.comparing(Entry::getPath));
+        return new SqlIndex(signature(webapp), entries);
+    }
+
+    private void write(Path file) throws IOException
+    {
+        Files.createDirectories(file.getParent());
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+        {
+            writer.append(SIGNATURE).append(signature).append('\n');
+            for (Entry entry : entries)
+                writer.append(entry.path).append('\n');
+        }
+    }
+
+    /**
+     * Loads the index from the classpath
+     *
+     * @param accessor gives access to the classpath
+     * @return the index, or null if there is none
+     * @throws IOException
+     */
+    static SqlIndex load(ResourceAccessor accessor) throws IOException
+    {
+        Resource resource = accessor.get(INDEX);
+        if (resource == null || !resource.exists())
+            return null;
+        String signature = null;
+        List<Entry> entries = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(resource.openInputStream(), StandardCharsets.UTF_8)))
+        {
+            for (String line = reader.readLine(); line != null; line = reader.readLine())
+            {
+                if (line.startsWith(SIGNATURE))
+                {
+                    signature = line.substring(SIGNATURE.length());
+                } else if (!line.isEmpty() && !line.startsWith("#"))
+                {
+                    // indexes of previous versions had more fields after the path
+                    entries.add(new Entry(line.split(SEPARATOR, -1)[0]));
+                }
+            }
+        }
+        return new SqlIndex(signature, entries);
+    }
+
+    /**
+     * Signature of the files which can change the SQL files found on the classpath : names and sizes of the jars of WEB-INF/lib, paths and sizes of
+     * the files of WEB-INF/classes/sql. Modification times are left out : they are not always kept when a war is extracted.
+     *
+     * @param webapp exploded webapp directory
+     * @return the signature
+     */
+    static String signature(File webapp)
+    {
+        List<String> files = new ArrayList<>();
+        File[] jars = new File(webapp, "WEB-INF/lib").listFiles((dir, name) -> name.endsWith(".jar"));
+        if (jars != null)
+            for (File jar : jars)
+                files.add(jar.getName() + ":" + jar.length());
+        Path classes = webapp.toPath().resolve("WEB-INF/classes");
+        Path sql = classes.resolve("sql");
+        if (Files.isDirectory(sql))
+        {
+            try (Stream<Path> walk = Files.walk(sql))
+            {
+                walk.filter(Files::isRegularFile).forEach(file -> {
+                    String path = classes.relativize(file).toString().replace(File.separatorChar, '/');
+                    if (!INDEX.equals(path))
+                        files.add(path + ":" + file.toFile().length());
+                });
+            } catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+        Collections.sort(files);
+        CRC32 crc = new CRC32();
+        for (String file : files)
+            crc.update((file + "\n").getBytes(StandardCharsets.UTF_8));
+        return files.size() + "-" + Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * An indexed SQL file
+     */
+    public static class Entry
+    {
+        private final String path;
+
+        Entry(String path)
+        {
+            this.path = path;
+        }
+
+        public String getPath()
+        {
+            return path;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+import fr.paris.lutece.utils.sql.SqlRegexpHelper;
+
+/**
+ * Applies the rules of a SqlRegexpHelper to SQL lines held in a char buffer.
+ *
+ * When anchors are configured (literal keywords, one of which appears in every line a rule can change), lines are first searched for the anchors in a
+ * single pass, and lines without any anchor are left as is, without calling the helper nor even creating a String. Most data lines of large init scripts
+ * are thus copied at I/O speed.
+ *
+ * In verify mode, the default, skipped lines are still given to the helper, and an error is logged when the helper changes them : wrong anchors can not
+ * leave lines unfiltered. Lines are only skipped once verify mode is turned off, after the anchor list was validated.
+ */
+class SqlLineFilter
+{
+    private static final String ANCHORS = "liquibase.filter.anchors";
+    private static final String ANCHORS_VERIFY = "liquibase.filter.anchors.verify";
+
+    private final SqlRegexpHelper helper;
+    private final AhoCorasickMatcher matcher;
+    private final boolean verify;
+
+    /**
+     * @param helper  the rules
+     * @param anchors literal keywords, empty to give every line to the helper
+     * @param verify  true to check that skipped lines are not changed by the helper
+     */
+    SqlLineFilter(SqlRegexpHelper helper, List<String> anchors, boolean verify)
+    {
+        this.helper = helper;
+        AhoCorasickMatcher compiled = null;
+        if (!anchors.isEmpty())
+        {
+            if (anchors.stream().allMatch(AhoCorasickMatcher::isAscii))
+                compiled = new AhoCorasickMatcher(anchors);
+            else
+                AppLogService.error("LiquibaseRunner SQL filter anchors must be ASCII, anchors ignored : " + anchors);
+        }
+        this.matcher = compiled;
+        this.verify = verify;
+    }
+
+    /**
+     * Creates a filter configured by the properties
+     *
+     * @param helper the rules
+     * @return a filter
+     */
+    static SqlLineFilter configured(SqlRegexpHelper helper)
+    {
+        List<String> anchors = Arrays.stream(AppPropertiesService.getProperty(ANCHORS, "").split(",")).map(String::trim).filter(a -> !a.isEmpty())
+                .collect(Collectors.toList());
+        return new SqlLineFilter(helper, anchors, AppPropertiesService.getPropertyBoolean(ANCHORS_VERIFY, true));
+    }
+
+    /**
+     * Creates a filter giving every line to the helper
+     *
+     * @param helper the rules
+     * @return a filter
+     */
+    static SqlLineFilter of(SqlRegexpHelper helper)
+    {
+        return new SqlLineFilter(helper, Collections.emptyList(), false);
+    }
+
+    /**
+     * Filters a line
+     *
+     * @param line   buffer holding the line, without line terminator
+     * @param length length of the line
+     * @return the filtered line, or null if the line is unchanged
+     */
+    String filter(char[] line, int length)
+    {
+        if (matcher != null && !matcher.matches(line, length))
+        {
+            if (verify)
+            {
+                String original = new String(line, 0, length);
+                String filtered = helper.filter(original);
+                if (!original.equals(filtered))
+                {
+                    AppLogService.error("LiquibaseRunner SQL filter anchors miss line : " + original);
+                    return filtered;
+                }
+            }
+            return null;
+        }
+        return helper.filter(new String(line, 0, length));
+    }
+}
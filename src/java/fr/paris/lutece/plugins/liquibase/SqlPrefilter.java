@@ -0,0 +1,135 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.utils.sql.SqlRegexpHelper;
+import liquibase.resource.ClassLoaderResourceAccessor;
+import liquibase.resource.Resource;
+
+/**
+ * Build time tool : pre-filters the SQL files of an exploded webapp for a set of dialects, so that LiquibaseRunner can skip runtime filtering.
+ *
+ * Usage : <code>SqlPrefilter &lt;webapp directory&gt; &lt;dialect&gt; [&lt;dialect&gt; ...]</code>, run by the build of the site on its exploded webapp.
+ *
+ * SQL files are searched in WEB-INF/classes and in the jars of WEB-INF/lib, filtered with the rules of WEB-INF/classes/sql/build.properties, and written
+ * to WEB-INF/classes/sql/&lt;dialect&gt;/, along with a manifest listing them. Dialects are the names returned by SqlRegexpHelper.findDbName().
+ */
+public final class SqlPrefilter
+{
+    private static final String CLASSES = "WEB-INF/classes";
+    private static final String LIB = "WEB-INF/lib";
+    private static final String BUILD_PROPERTIES = "sql/build.properties";
+
+    private SqlPrefilter()
+    {
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 2)
+            throw new IllegalArgumentException("Usage : SqlPrefilter <webapp directory> <dialect> [<dialect> ...]");
+        prefilter(new File(args[0]), Arrays.asList(args).subList(1, args.length));
+    }
+
+    /**
+     * Pre-filters the SQL files of a webapp
+     *
+     * @param webapp   exploded webapp directory
+     * @param dialects target dialects
+     * @throws Exception
+     */
+    public static void prefilter(File webapp, List<String> dialects) throws Exception
+    {
+        Path classes = webapp.toPath().resolve(CLASSES);
+        Path buildProperties = classes.resolve(BUILD_PROPERTIES);
+        if (!Files.exists(buildProperties))
+            throw new IOException("No " + BUILD_PROPERTIES + " in " + classes + " : SQL files are already filtered");
+
+        try (URLClassLoader classLoader = new URLClassLoader(webappUrls(webapp), null);
+                ClassLoaderResourceAccessor accessor = new ClassLoaderResourceAccessor(classLoader))
+        {
+            List<Resource> resources = new ArrayList<>();
+            for (Resource resource : accessor.search("sql", true))
+            {
+                String path = resource.getPath();
+                // skip the output of previous runs
+                if (path.endsWith(".sql") && dialects.stream().noneMatch(d -> path.startsWith(PrefilteredResourceAccessor.SQL_PREFIX + d + "/")))
+                    resources.add(resource);
+            }
+            for (String dialect : dialects)
+            {
+                SqlRegexpHelper helper = new SqlRegexpHelper(() -> open(buildProperties), dialect);
+                Path target = classes.resolve(PrefilteredResourceAccessor.SQL_PREFIX + dialect);
+                TreeSet<String> manifest = new TreeSet<>();
+                for (Resource resource : resources)
+                {
+                    String relativePath = resource.getPath().substring(PrefilteredResourceAccessor.SQL_PREFIX.length());
+                    Path file = target.resolve(relativePath);
+                    Files.createDirectories(file.getParent());
+                    try (InputStream in = new FilteringSqlInputStream(resource.openInputStream(), SqlLineFilter.of(helper), null, null))
+                    {
+                        Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    manifest.add(relativePath);
+                }
+                try (Writer writer = Files.newBufferedWriter(target.resolve(PrefilteredResourceAccessor.MANIFEST), StandardCharsets.UTF_8))
+                {
+                    for (String relativePath : manifest)
+                        writer.append(relativePath).append('\n');
+                }
+                AppLogService.info("SqlPrefilter : {} files pre-filtered for {}", manifest.size(), dialect);
+            }
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty(PrefilteredResourceAccessor.PROPERTY_DIALECTS, String.join(",", dialects));
+        try (OutputStream out = Files.newOutputStream(classes.resolve(PrefilteredResourceAccessor.PREFILTERED_PROPERTIES)))
+        {
+            properties.store(out, "Generated by SqlPrefilter");
+        }
+    }
+
+    /**
+     * WEB-INF/classes and the jars of WEB-INF/lib
+     */
+    static URL[] webappUrls(File webapp) throws IOException
+    {
+        List<URL> urls = new ArrayList<>();
+        urls.add(new File(webapp, CLASSES).toURI().toURL());
+        File[] jars = new File(webapp, LIB).listFiles((dir, name) -> name.endsWith(".jar"));
+        if (jars != null)
+        {
+            Arrays.sort(jars);
+            for (File jar : jars)
+                urls.add(jar.toURI().toURL());
+        }
+        return urls.toArray(new URL[0]);
+    }
+
+    private static InputStream open(Path path)
+    {
+        try
+        {
+            return Files.newInputStream(path);
+        } catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
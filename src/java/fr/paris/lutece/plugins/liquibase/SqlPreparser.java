@@ -0,0 +1,130 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import fr.paris.lutece.plugins.liquibase.filters.TestIncludeAllFilter;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+import fr.paris.lutece.utils.sql.SqlPathInfo;
+import liquibase.exception.ChangeLogParseException;
+import liquibase.resource.Resource;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Reads the SQL files selected for a run in parallel, before liquibase parses them one after the other.
+ *
+ * Each file is read through the resource accessor of the run, so its filtered content is in the FilteredSqlCache when liquibase asks for it. Each
+ * file is also checked (not empty, no unterminated string or comment) and split into statements by a SqlStatementReader : all the errors are
+ * reported at once, before any file runs.
+ */
+final class SqlPreparser
+{
+    private static final String ENABLED = "liquibase.preparse.enabled";
+    private static final String THREADS = "liquibase.preparse.threads";
+    private static final String SQL_PATH = "sql";
+
+    private SqlPreparser()
+    {
+    }
+
+    static boolean isEnabled()
+    {
+        return AppPropertiesService.getPropertyBoolean(ENABLED, false);
+    }
+
+    /**
+     * Pre-parses the files selected by TestIncludeAllFilter for the run of the current thread
+     *
+     * @param accessor the resource accessor of the run
+     * @param dialect  liquibase short name of the target database
+     * @throws Exception a ChangeLogParseException listing the invalid files, if any
+     */
+    static void preparse(ResourceAccessor accessor, String dialect) throws Exception
+    {
+        long start = System.currentTimeMillis();
+        List<String> paths = selectedPaths(accessor);
+        if (paths.isEmpty())
+            return;
+        final boolean backslashEscapes = "mysql".equals(dialect) || "mariadb".equals(dialect);
+        final boolean dollarQuotes = "postgresql".equals(dialect);
+        final AtomicInteger statements = new AtomicInteger();
+        int threads = AppPropertiesService.getPropertyInt(THREADS, 0);
+        ForkJoinPool pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+        List<String> errors;
+        try
+        {
+            errors = pool.submit(() -> paths.parallelStream().map(path -> preparse(accessor, path, backslashEscapes, dollarQuotes, statements))
+                    .filter(Objects::nonNull).collect(Collectors.toList())).get();
+        } catch (ExecutionException e)
+        {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally
+        {
+            pool.shutdown();
+        }
+        if (!errors.isEmpty())
+            throw new ChangeLogParseException(errors.size() + " invalid SQL files :\n" + String.join("\n", errors));
+        AppLogService.info("LiquibaseRunner pre-parsed {} SQL files ({} statements) in {} ms", paths.size(), statements.get(),
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * SQL files the run will select, deferred files excepted
+     */
+    private static List<String> selectedPaths(ResourceAccessor accessor) throws IOException
+    {
+        List<String> paths = new ArrayList<>();
+        for (Resource resource : accessor.search(SQL_PATH, true))
+        {
+            String path = resource.getPath();
+            if (!path.endsWith(".sql"))
+                continue;
+            SqlPathInfo info = SqlPathInfo.parse(path);
+            if (info == null || !LiquibaseRunnerContext.isPluginInScope(info.getFullPluginName()) || LiquibaseRunnerContext.isDeferrable(path))
+                continue;
+            try
+            {
+                if (TestIncludeAllFilter.selects(info))
+                    paths.add(path);
+            } catch (SQLException e)
+            {
+                // reported by the filter during the run
+                AppLogService.debug("LiquibaseRunner not pre-parsing {} : {}", path, e.getMessage());
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * @return the error found in the file, or null
+     */
+    private static String preparse(ResourceAccessor accessor, String path, boolean backslashEscapes, boolean dollarQuotes, AtomicInteger statements)
+    {
+        int count = 0;
+        try (SqlStatementReader reader = new SqlStatementReader(new InputStreamReader(accessor.getExisting(path).openInputStream(), StandardCharsets.UTF_8),
+                backslashEscapes, dollarQuotes))
+        {
+            while (reader.next() != null)
+                count++;
+            if (reader.getLineCount() == 0)
+                return path + " : empty file";
+            if (reader.getError() != null)
+                return path + " : " + reader.getError();
+        } catch (IOException e)
+        {
+            return path + " : could not be read (" + e.getMessage() + ")";
+        }
+        statements.addAndGet(count);
+        return null;
+    }
+}
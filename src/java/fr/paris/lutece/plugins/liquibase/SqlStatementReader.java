@@ -0,0 +1,160 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Splits a SQL script into statements as it is read : only the statement being read is held in memory.
+ *
+ * Statements are separated by semicolons outside of strings, quoted identifiers and comments. They are returned trimmed, without their semicolon, and
+ * with their comments. Parts of the script made only of comments are skipped.
+ */
+final class SqlStatementReader implements Closeable
+{
+    private final BufferedReader reader;
+    private final boolean backslashEscapes;
+    private final boolean dollarQuotes;
+    // statements found in the lines read so far, and not returned yet
+    private final Deque<String> statements = new ArrayDeque<>();
+    private final StringBuilder current = new StringBuilder();
+    // true if the current statement has something else than comments
+    private boolean code;
+    // closing sequence of the current string, identifier or block comment, null outside of them
+    private String closing;
+    private int line;
+    private int openLine;
+    private boolean ended;
+
+    /**
+     * @param reader           the script
+     * @param backslashEscapes true if a backslash escapes the next character in strings (mysql)
+     * @param dollarQuotes     true if $tag$ quoted strings are supported (postgresql)
+     */
+    SqlStatementReader(Reader reader, boolean backslashEscapes, boolean dollarQuotes)
+    {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        this.backslashEscapes = backslashEscapes;
+        this.dollarQuotes = dollarQuotes;
+    }
+
+    /**
+     * @return the next statement, or null at the end of the script
+     * @throws IOException
+     */
+    String next() throws IOException
+    {
+        while (statements.isEmpty() && !ended)
+        {
+            String text = reader.readLine();
+            if (text == null)
+            {
+                ended = true;
+                end();
+            } else
+            {
+                line++;
+                scan(text);
+            }
+        }
+        return statements.poll();
+    }
+
+    /**
+     * @return the number of lines read so far
+     */
+    int getLineCount()
+    {
+        return line;
+    }
+
+    /**
+     * @return a description of the string, identifier or comment left open at the end of the script, or null
+     */
+    String getError()
+    {
+        if (!ended || closing == null)
+            return null;
+        return (closing.equals("*/") ? "unterminated comment" : "unterminated " + closing + " quoted text") + " starting line " + openLine;
+    }
+
+    private void scan(String text)
+    {
+        int start = 0;
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            if (closing == null)
+            {
+                if (c == ';')
+                {
+                    current.append(text, start, i);
+                    end();
+                    start = i + 1;
+                } else if (c == '\'' || c == '"' || c == '`')
+                {
+                    open(String.valueOf(c));
+                } else if (text.startsWith("--", i) || (backslashEscapes && c == '#'))
+                {
+                    // the rest of the line is a comment
+                    break;
+                } else if (text.startsWith("/*", i))
+                {
+                    open("*/");
+                    i++;
+                } else if (dollarQuotes && c == '$')
+                {
+                    int end = text.indexOf('$', i + 1);
+                    String tag = end < 0 ? null : text.substring(i, end + 1);
+                    if (tag != null && tag.matches("\\$[A-Za-z_]*\\$"))
+                    {
+                        open(tag);
+                        i = end;
+                    } else
+                    {
+                        code = true;
+                    }
+                } else if (!Character.isWhitespace(c))
+                {
+                    code = true;
+                }
+            } else if (backslashEscapes && c == '\\' && closing.length() == 1)
+            {
+                i++;
+            } else if (text.startsWith(closing, i))
+            {
+                i += closing.length() - 1;
+                closing = null;
+            }
+        }
+        current.append(text, start, text.length()).append('\n');
+    }
+
+    private void open(String closingSequence)
+    {
+        closing = closingSequence;
+        openLine = line;
+        if (!closingSequence.equals("*/"))
+            code = true;
+    }
+
+    /**
+     * Ends the current statement
+     */
+    private void end()
+    {
+        if (code)
+            statements.add(current.toString().trim());
+        current.setLength(0);
+        code = false;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        reader.close();
+    }
+}
@@ -0,0 +1,326 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.input.BOMInputStream;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+import liquibase.Scope;
+import liquibase.change.Change;
+import liquibase.change.core.RawSQLChange;
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.ChangeLogParseException;
+import liquibase.exception.UnexpectedLiquibaseException;
+import liquibase.exception.ValidationErrors;
+import liquibase.executor.jvm.JdbcExecutor;
+import liquibase.listener.SqlListener;
+import liquibase.parser.ChangeLogParserFactory;
+import liquibase.parser.core.formattedsql.FormattedSqlChangeLogParser;
+import liquibase.parser.core.sql.SqlChangeLogParser;
+import liquibase.resource.ResourceAccessor;
+import liquibase.statement.SqlStatement;
+
+/**
+ * Parses the raw SQL changelog files matching liquibase.streamed.patterns (large data scripts) into a StreamedSqlChange : the file is never loaded
+ * in memory, neither to compute its checksum nor to run it.
+ *
+ * Its priority is above the one of ChecksumCachingSqlChangeLogParser : the checksum of a streamed file is computed while it is read, like the one of
+ * any raw SQL file, and is the same.
+ */
+class StreamedSqlChangeLogParser extends SqlChangeLogParser
+{
+    private static final String PATTERNS = "liquibase.streamed.patterns";
+    private static final String BATCH_SIZE = "liquibase.streamed.batch.size";
+    private static final String COMMIT_INTERVAL = "liquibase.streamed.commit.interval";
+    private static final FormattedSqlChangeLogParser FORMATTED = new FormattedSqlChangeLogParser();
+    private static final String PLACEHOLDER = "-- streamed";
+    private static final String PROGRESS_PREFIX = "core.plugins.status.liquibase.streamed.";
+    private static final String SQL_SELECT_PROGRESS = "SELECT entity_value FROM core_datastore WHERE entity_key = ?";
+    private static final String SQL_INSERT_PROGRESS = "INSERT INTO core_datastore (entity_key, entity_value) VALUES (?, ?)";
+    private static final String SQL_UPDATE_PROGRESS = "UPDATE core_datastore SET entity_value = ? WHERE entity_key = ?";
+    private static final String SQL_DELETE_PROGRESS = "DELETE FROM core_datastore WHERE entity_key = ?";
+
+    private static volatile Pattern streamed;
+    private static boolean registered;
+
+    /**
+     * Registers the parser if some files are to be streamed
+     */
+    static synchronized void register()
+    {
+        String patterns = AppPropertiesService.getProperty(PATTERNS, "");
+        String pattern = Arrays.stream(patterns.split(",")).map(String::trim).filter(p -> !p.isEmpty()).collect(Collectors.joining("|"));
+        streamed = pattern.isEmpty() ? null : Pattern.compile(pattern);
+        if (streamed != null && !registered)
+        {
+            ChangeLogParserFactory.getInstance().register(new StreamedSqlChangeLogParser());
+            registered = true;
+        }
+    }
+
+    @Override
+    public int getPriority()
+    {
+        return FORMATTED.getPriority() + 2;
+    }
+
+    @Override
+    public boolean supports(String changeLogFile, ResourceAccessor resourceAccessor)
+    {
+        Pattern pattern = streamed;
+        return pattern != null && Scope.getCurrentScope().getDatabase() != null && pattern.matcher(changeLogFile).matches()
+                && super.supports(changeLogFile, resourceAccessor) && !FORMATTED.supports(changeLogFile, resourceAccessor);
+    }
+
+    @Override
+    public DatabaseChangeLog parse(String physicalChangeLogLocation, ChangeLogParameters changeLogParameters, ResourceAccessor resourceAccessor)
+            throws ChangeLogParseException
+    {
+        DatabaseChangeLog parsed = super.parse(physicalChangeLogLocation, changeLogParameters,
+                new ChecksumCachingSqlChangeLogParser.PlaceholderResourceAccessor(resourceAccessor, physicalChangeLogLocation, PLACEHOLDER));
+        StreamedSqlChange change = new StreamedSqlChange(resourceAccessor, physicalChangeLogLocation, AppPropertiesService.getPropertyInt(BATCH_SIZE, 100),
+                AppPropertiesService.getPropertyInt(COMMIT_INTERVAL, 10000));
+        return ChecksumCachingSqlChangeLogParser.withChange(parsed, physicalChangeLogLocation, change);
+    }
+
+    /**
+     * Raw SQL change streaming its statements to the database in JDBC batches, with a commit every commit interval.
+     *
+     * When the core_datastore table is in the same database, the number of statements committed is recorded along with them : a load interrupted
+     * after a commit resumes after the last committed statement. The record is removed with the last statements.
+     *
+     * Each chunk is committed with its record : when the connection is in auto commit mode (mysql, mariadb), it is turned off while the file runs.
+     */
+    static class StreamedSqlChange extends RawSQLChange
+    {
+        private final ResourceAccessor resourceAccessor;
+        private final String path;
+        private final int batchSize;
+        private final int commitInterval;
+
+        StreamedSqlChange(ResourceAccessor resourceAccessor, String path, int batchSize, int commitInterval)
+        {
+            this.resourceAccessor = resourceAccessor;
+            this.path = path;
+            this.batchSize = Math.max(1, batchSize);
+            this.commitInterval = Math.max(1, commitInterval);
+        }
+
+        @Override
+        public InputStream openSqlStream() throws IOException
+        {
+            // a UTF-8 byte order mark would be read as the start of the first statement
+            return BOMInputStream.builder().setInputStream(resourceAccessor.getExisting(path).openInputStream()).get();
+        }
+
+        @Override
+        public ValidationErrors validate(Database database)
+        {
+            // the file is only read to run it
+            return new ValidationErrors();
+        }
+
+        @Override
+        public boolean generateStatementsVolatile(Database database)
+        {
+            return true;
+        }
+
+        /**
+         * Runs the file, like the custom task changes of liquibase, unless liquibase only asks for the statements to log them
+         *
+         * @return no statement
+         */
+        @Override
+        public SqlStatement[] generateStatements(Database database)
+        {
+            if (!Scope.getCurrentScope().get(Change.SHOULD_EXECUTE, Boolean.TRUE))
+                return new SqlStatement[0];
+            if (!(database.getConnection() instanceof JdbcConnection))
+                throw new UnexpectedLiquibaseException("Streamed SQL file " + path + " needs a JDBC connection");
+            try
+            {
+                run(database.getShortName(), ((JdbcConnection) database.getConnection()).getUnderlyingConnection());
+            } catch (IOException | SQLException e)
+            {
+                throw new UnexpectedLiquibaseException("Streamed SQL file " + path + " failed : " + e.getMessage(), e);
+            }
+            return new SqlStatement[0];
+        }
+
+        private void run(String dialect, Connection connection) throws IOException, SQLException
+        {
+            long start = System.currentTimeMillis();
+            String key = PROGRESS_PREFIX + path;
+            boolean progress = hasDatastore(connection);
+            String recorded = progress ? readProgress(connection, key) : null;
+            long done = recorded == null ? 0 : Long.parseLong(recorded.substring(0, recorded.indexOf(':')));
+            if (recorded != null)
+                AppLogService.info("LiquibaseRunner resuming {} after statement {}", path, done);
+            boolean autoCommit = connection.getAutoCommit();
+            // otherwise each batch would be committed without the progress record
+            if (autoCommit)
+                connection.setAutoCommit(false);
+            boolean completed = false;
+            Collection<SqlListener> listeners = Scope.getCurrentScope().getListeners(SqlListener.class);
+            AtomicInteger rows = Scope.getCurrentScope().get(JdbcExecutor.ROWS_AFFECTED_SCOPE_KEY, AtomicInteger.class);
+            CRC32 crc = new CRC32();
+            long count = 0;
+            int batched = 0;
+            try (SqlStatementReader reader = new SqlStatementReader(new InputStreamReader(openSqlStream(), StandardCharsets.UTF_8),
+                    "mysql".equals(dialect) || "mariadb".equals(dialect), "postgresql".equals(dialect)); Statement statement = connection.createStatement())
+            {
+                for (String sql = reader.next(); sql != null; sql = reader.next())
+                {
+                    count++;
+                    crc.update(sql.getBytes(StandardCharsets.UTF_8));
+                    if (count <= done)
+                    {
+                        if (count == done && !recorded.equals(progress(count, crc)))
+                            throw new SQLException(changedMessage(key));
+                        continue;
+                    }
+                    for (SqlListener listener : listeners)
+                        listener.writeSqlWillRun(sql);
+                    statement.addBatch(sql);
+                    if (++batched == batchSize)
+                    {
+                        executeBatch(statement, rows);
+                        batched = 0;
+                    }
+                    if (count % commitInterval == 0)
+                    {
+                        if (batched > 0)
+                            executeBatch(statement, rows);
+                        batched = 0;
+                        if (progress)
+                            recorded = writeProgress(connection, key, recorded, progress(count, crc));
+                        connection.commit();
+                    }
+                }
+                if (reader.getError() != null)
+                    throw new SQLException(reader.getError());
+                if (count < done)
+                    throw new SQLException(changedMessage(key));
+                if (batched > 0)
+                    executeBatch(statement, rows);
+                if (recorded != null)
+                    deleteProgress(connection, key);
+                // committed by liquibase with the last statements, unless the file turned auto commit off
+                if (autoCommit)
+                    connection.commit();
+                completed = true;
+            } finally
+            {
+                if (autoCommit)
+                    restoreAutoCommit(connection, completed);
+            }
+            AppLogService.info("LiquibaseRunner streamed {} statements of {} in {} ms", count - done, path, System.currentTimeMillis() - start);
+        }
+
+        /**
+         * Turns auto commit back on, after rolling back the statements run since the last commit if the file failed : the load resumes after the
+         * last committed statement
+         */
+        private void restoreAutoCommit(Connection connection, boolean completed)
+        {
+            try
+            {
+                if (!completed)
+                    connection.rollback();
+                connection.setAutoCommit(true);
+            } catch (SQLException e)
+            {
+                AppLogService.error("LiquibaseRunner could not restore the auto commit mode after " + path, e);
+            }
+        }
+
+        private static void executeBatch(Statement statement, AtomicInteger rows) throws SQLException
+        {
+            int[] counts = statement.executeBatch();
+            if (rows != null)
+                rows.addAndGet(Arrays.stream(counts).filter(c -> c > 0).sum());
+        }
+
+        /**
+         * The statements run, and a checksum of their text, to check that the file did not change when resuming
+         */
+        private static String progress(long count, CRC32 crc)
+        {
+            return count + ":" + Long.toHexString(crc.getValue());
+        }
+
+        private String changedMessage(String key)
+        {
+            return path + " changed since its load was interrupted, delete the " + key + " entry of core_datastore to load it from the start";
+        }
+    }
+
+    private static boolean hasDatastore(Connection connection) throws SQLException
+    {
+        DatabaseMetaData metaData = connection.getMetaData();
+        for (String table : new String[] { "core_datastore", "CORE_DATASTORE" })
+        {
+            try (ResultSet tables = metaData.getTables(connection.getCatalog(), null, table, new String[] { "TABLE" }))
+            {
+                if (tables.next())
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static String readProgress(Connection connection, String key) throws SQLException
+    {
+        try (PreparedStatement select = connection.prepareStatement(SQL_SELECT_PROGRESS))
+        {
+            select.setString(1, key);
+            try (ResultSet result = select.executeQuery())
+            {
+                return result.next() ? result.getString(1) : null;
+            }
+        }
+    }
+
+    /**
+     * @return the recorded progress
+     */
+    private static String writeProgress(Connection connection, String key, String recorded, String progress) throws SQLException
+    {
+        try (PreparedStatement write = connection.prepareStatement(recorded == null ? SQL_INSERT_PROGRESS : SQL_UPDATE_PROGRESS))
+        {
+            write.setString(recorded == null ? 1 : 2, key);
+            write.setString(recorded == null ? 2 : 1, progress);
+            write.executeUpdate();
+        }
+        return progress;
+    }
+
+    private static void deleteProgress(Connection connection, String key) throws SQLException
+    {
+        try (PreparedStatement delete = connection.prepareStatement(SQL_DELETE_PROGRESS))
+        {
+            delete.setString(1, key);
+            delete.executeUpdate();
+        }
+    }
+}
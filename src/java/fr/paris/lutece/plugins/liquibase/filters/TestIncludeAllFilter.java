@@ -20,6 +20,13 @@ public class TestIncludeAllFilter implements IncludeAllFilter
     public boolean include(String changeLogPath)
     {
 
+        if (LiquibaseRunnerContext.isDeferredPass())
+        {
+            // files were selected by the startup pass, only those it deferred are left to run
+            boolean deferred = LiquibaseRunnerContext.isDeferred(changeLogPath);
+            AppLogService.debug("LiquibaseRunner deferred pass : file {} {}included", changeLogPath, deferred ? "" : "NOT ");
+            return deferred;
+        }
         // no explicit check can be done here on the "file" represented by changeLogPath, since it might not be a file, but a classpath entry
         boolean include = false;
         SqlPathInfo info = SqlPathInfo.parse(changeLogPath);
@@ -30,61 +37,26 @@ public class TestIncludeAllFilter implements IncludeAllFilter
         {
             AppLogService.info("LiquibaseRunner could not determine what to do with file {}", changeLogPath);
             include = false;
+        } else if (!LiquibaseRunnerContext.isPluginInScope(info.getFullPluginName()))
+        {
+            // the plugin is declared on another pool, whose own run will handle the file
+            AppLogService.debug("LiquibaseRunner skipping file {} : plugin not on pool {}", changeLogPath, LiquibaseRunnerContext.getPoolName());
+            include = false;
         } else
         {
             AppLogService.debug("LiquibaseRunner testing file with info " + info);
             final String pluginName = info.getFullPluginName();
-            // empty DB : only "create/init" files
-            if (LiquibaseRunnerContext.isEmptyDb())
-            {
-                include = info.isCreate();
-                if(include)
-                {
-                    LiquibaseRunnerContext.setPluginLastRunScriptType(pluginName, LiquibaseRunnerContext.LAST_RUN_SCRIPT_TYPE_CREATE);
-                 }
-            }
-            else
+            try
             {
-                try
+                include = selects(info);
+                if (include)
                 {
-                    PluginVersion alreadyInstalledVersion = LiquibaseRunnerContext.pluginVersion(pluginName);
-                    if (LiquibaseRunnerContext.isLiquibaseNeverRan())
-                    {
-                        // DB exists, never ran liquibase => consider it's a migration
-                        include = false;
-                    } else if (alreadyInstalledVersion == null)
-                    {
-                        // DB exists, liquibase already ran, but no version => that's a new plugin we're installing
-                        include = info.isCreate();
-                        if(include)
-                        {
-                           LiquibaseRunnerContext.setPluginLastRunScriptType(pluginName, LiquibaseRunnerContext.LAST_RUN_SCRIPT_TYPE_CREATE);
-                        }
-
-                    } else if (!info.isCreate())
-                    {
-                        // DB exists, liquibase already ran, a version exists => run the (chosen) updates
-                        include = info.getDstVersion().compareTo(alreadyInstalledVersion) > 0;
-
-                        if(!include &&  (alreadyInstalledVersion.isSnapshot()&& LiquibaseRunnerContext.isAcceptSnapshotVersion() )||(alreadyInstalledVersion.isUnstable()&& LiquibaseRunnerContext.isAcceptUnstableVersion())  && LiquibaseRunnerContext.LAST_RUN_SCRIPT_TYPE_UPDATE.equals(LiquibaseRunnerContext.pluginLastRunScriptType(pluginName)))
-                        {    // if we accept snapshot and unstable versions (rc,beta,..) include also if the dst version is an unstable or  snapshot and equals to the installed version
-                            include = info.getDstVersion().compareTo(alreadyInstalledVersion) == 0;
-                        }
-                        //finaly if we included an update script, we set the last run script type to update
-                        if(include)
-                        {
-                         LiquibaseRunnerContext.setPluginLastRunScriptType(pluginName, LiquibaseRunnerContext.LAST_RUN_SCRIPT_TYPE_UPDATE); 
-                        }
-  
-
-                    }
-                    
-                  
-
-                } catch (SQLException e)
-                {
-                    AppLogService.error("version retrieve failed for plugin " + pluginName, e);
+                    LiquibaseRunnerContext.setPluginLastRunScriptType(pluginName,
+                            info.isCreate() ? LiquibaseRunnerContext.LAST_RUN_SCRIPT_TYPE_CREATE : LiquibaseRunnerContext.LAST_RUN_SCRIPT_TYPE_UPDATE);
                 }
+            } catch (SQLException e)
+            {
+                AppLogService.error("version retrieve failed for plugin " + pluginName, e);
             }
             // in all cases, store the current version in the datastore
             String pluginVersion= PluginMeta.getPluginVersion(pluginName);
@@ -93,7 +65,54 @@ public class TestIncludeAllFilter implements IncludeAllFilter
             else
                 LiquibaseRunnerContext.setPluginVersion(pluginName, pluginVersion);
         }
+        if (include && !LiquibaseRunnerContext.isPluginInLane(info.getFullPluginName()))
+        {
+            AppLogService.debug("LiquibaseRunner : file {} left to the lane of plugin {}", changeLogPath, info.getFullPluginName());
+            return false;
+        }
+        if (include && LiquibaseRunnerContext.defer(changeLogPath))
+        {
+            AppLogService.info("LiquibaseRunner : file {} deferred to the background pass", changeLogPath);
+            return false;
+        }
         AppLogService.info("LiquibaseRunner : file {} {}included", changeLogPath, include ? "" : "NOT ");
         return include;
     }
+
+    /**
+     * Tells if the current run selects a SQL file of a plugin in scope, depending on the auto-detected use case. Records nothing : also used to
+     * pre-parse the files before the run.
+     * 
+     * @param info the parsed path of the SQL file
+     * @return true if the file must run
+     * @throws SQLException if the installed version of the plugin can not be read
+     */
+    public static boolean selects(SqlPathInfo info) throws SQLException
+    {
+        final String pluginName = info.getFullPluginName();
+        // empty DB : only "create/init" files
+        if (LiquibaseRunnerContext.isEmptyDb())
+            return info.isCreate();
+        PluginVersion alreadyInstalledVersion = LiquibaseRunnerContext.pluginVersion(pluginName);
+        if (LiquibaseRunnerContext.isLiquibaseNeverRan())
+        {
+            // DB exists, never ran liquibase => consider it's a migration
+            return false;
+        } else if (alreadyInstalledVersion == null)
+        {
+            // DB exists, liquibase already ran, but no version => that's a new plugin we're installing
+            return info.isCreate();
+        } else if (info.isCreate())
+        {
+            return false;
+        }
+        // DB exists, liquibase already ran, a version exists => run the (chosen) updates
+        boolean include = info.getDstVersion().compareTo(alreadyInstalledVersion) > 0;
+
+        if(!include &&  (alreadyInstalledVersion.isSnapshot()&& LiquibaseRunnerContext.isAcceptSnapshotVersion() )||(alreadyInstalledVersion.isUnstable()&& LiquibaseRunnerContext.isAcceptUnstableVersion())  && LiquibaseRunnerContext.LAST_RUN_SCRIPT_TYPE_UPDATE.equals(LiquibaseRunnerContext.pluginLastRunScriptType(pluginName)))
+        {    // if we accept snapshot and unstable versions (rc,beta,..) include also if the dst version is an unstable or  snapshot and equals to the installed version
+            include = info.getDstVersion().compareTo(alreadyInstalledVersion) == 0;
+        }
+        return include;
+    }
 }
@@ -0,0 +1,87 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class AhoCorasickMatcherTest
+{
+    private static boolean matches(AhoCorasickMatcher matcher, String text)
+    {
+        return matcher.matches(text.toCharArray(), text.length());
+    }
+
+    @Test
+    public void testMatchIsCaseInsensitive()
+    {
+        AhoCorasickMatcher matcher = new AhoCorasickMatcher(Arrays.asList("AUTO_INCREMENT", "long varchar"));
+        assertTrue(matches(matcher, "id int auto_increment,"));
+        assertTrue(matches(matcher, "content LONG VARCHAR,"));
+        assertFalse(matches(matcher, "INSERT INTO t VALUES (1, 'long');"));
+    }
+
+    @Test
+    public void testOverlappingKeywordsFollowFailureLinks()
+    {
+        AhoCorasickMatcher matcher = new AhoCorasickMatcher(Arrays.asList("he", "she", "his", "hers"));
+        assertTrue(matches(matcher, "ushers"));
+        assertTrue(matches(matcher, "this"));
+        assertFalse(matches(matcher, "shxs"));
+
+        // the partial match of "abcd" must fall back to "bc"
+        matcher = new AhoCorasickMatcher(Arrays.asList("abcd", "bc"));
+        assertTrue(matches(matcher, "abce"));
+        matcher = new AhoCorasickMatcher(Arrays.asList("abcd", "bcx"));
+        assertFalse(matches(matcher, "abce"));
+    }
+
+    @Test
+    public void testKeywordInsideAnother()
+    {
+        AhoCorasickMatcher matcher = new AhoCorasickMatcher(Arrays.asList("timestamp", "time"));
+        assertTrue(matches(matcher, "d TIME"));
+        assertTrue(matches(matcher, "d TIMESTAMP"));
+    }
+
+    @Test
+    public void testOnlyTheGivenLengthIsSearched()
+    {
+        AhoCorasickMatcher matcher = new AhoCorasickMatcher(Collections.singletonList("clob"));
+        char[] buffer = "x CLOB".toCharArray();
+        assertTrue(matcher.matches(buffer, buffer.length));
+        assertFalse(matcher.matches(buffer, buffer.length - 1));
+        assertFalse(matcher.matches(buffer, 0));
+    }
+
+    @Test
+    public void testNonAsciiCharsBreakKeywords()
+    {
+        AhoCorasickMatcher matcher = new AhoCorasickMatcher(Collections.singletonList("ab"));
+        assertFalse(matches(matcher, "aéb"));
+        assertTrue(matches(matcher, "été ab"));
+        assertTrue(matches(matcher, "€AB"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyKeywordIsRejected()
+    {
+        new AhoCorasickMatcher(Arrays.asList("clob", ""));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonAsciiKeywordIsRejected()
+    {
+        new AhoCorasickMatcher(Collections.singletonList("entrée"));
+    }
+
+    @Test
+    public void testIsAscii()
+    {
+        assertTrue(AhoCorasickMatcher.isAscii("AUTO_INCREMENT"));
+        assertFalse(AhoCorasickMatcher.isAscii("entrée"));
+    }
+}
@@ -0,0 +1,81 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class IndexDeferralTest
+{
+    private static IndexDeferral.DeferredObject parse(String statement)
+    {
+        return IndexDeferral.DeferredObject.parse(statement, false);
+    }
+
+    @Test
+    public void testIndex()
+    {
+        IndexDeferral.DeferredObject index = parse("-- index on title\n/* two columns */ CREATE INDEX idx_title ON app_entry (title, `Date` DESC, label(10))");
+        assertEquals("CREATE INDEX idx_title ON app_entry (title, `Date` DESC, label(10))", index.sql);
+        assertEquals("app_entry", index.table);
+        assertEquals("idx_title", index.name);
+        assertFalse(index.foreignKey);
+        assertEquals("TITLE,DATE,LABEL", index.columns);
+        assertTrue(index.matches("TITLE,DATE,LABEL"));
+        assertFalse(index.matches("DATE,TITLE,LABEL"));
+    }
+
+    @Test
+    public void testIndexVariants()
+    {
+        IndexDeferral.DeferredObject index = parse("create index if not exists public.idx_a on public.app_entry using btree (\"A\")");
+        assertEquals("public.app_entry", index.table);
+        assertEquals("idx_a", index.name);
+        assertEquals("A", index.columns);
+        // expressions are only checked by name
+        index = parse("CREATE INDEX idx_lower ON app_entry (lower(title), id)");
+        assertNull(index.columns);
+        assertTrue(index.matches("anything"));
+    }
+
+    @Test
+    public void testForeignKey()
+    {
+        IndexDeferral.DeferredObject key = parse("ALTER TABLE app_child ADD CONSTRAINT fk_child FOREIGN KEY (id_parent, kind)\n REFERENCES app_parent (id, kind)"
+                + " ON DELETE CASCADE");
+        assertEquals("app_child", key.table);
+        assertEquals("fk_child", key.name);
+        assertTrue(key.foreignKey);
+        assertEquals("ID_PARENT,KIND", key.columns);
+        assertEquals("APP_PARENT", key.referencedTable);
+        assertEquals("ID,KIND", key.referencedColumns);
+        assertTrue(key.matches("(ID_PARENT,KIND) REFERENCES APP_PARENT (ID,KIND)"));
+        assertFalse(key.matches("(ID_PARENT,KIND) REFERENCES APP_OTHER (ID,KIND)"));
+        assertFalse(key.matches("(KIND,ID_PARENT) REFERENCES APP_PARENT (KIND,ID)"));
+    }
+
+    @Test
+    public void testForeignKeyToPrimaryKey()
+    {
+        IndexDeferral.DeferredObject key = parse("ALTER TABLE ONLY app_child ADD CONSTRAINT fk_child FOREIGN KEY (id_parent) REFERENCES public.\"app_parent\"");
+        assertEquals("ID_PARENT", key.columns);
+        assertEquals("APP_PARENT", key.referencedTable);
+        assertNull(key.referencedColumns);
+        assertTrue(key.matches("(ID_PARENT) REFERENCES APP_PARENT (ID)"));
+        assertFalse(key.matches("(ID_PARENT) REFERENCES APP_OTHER (ID)"));
+    }
+
+    @Test
+    public void testNotDeferrable()
+    {
+        assertNull(parse("CREATE UNIQUE INDEX idx_u ON app_entry (title)"));
+        assertNull(parse("CREATE TABLE app_entry (id INT)"));
+        assertNull(parse("ALTER TABLE app_child ADD CONSTRAINT fk_child FOREIGN KEY (id_parent) REFERENCES app_parent (id), ADD COLUMN a INT"));
+        assertNull(parse("ALTER TABLE app_child ADD FOREIGN KEY (id_parent) REFERENCES app_parent (id)"));
+        // # only starts a comment on mysql
+        assertNull(parse("# index\nCREATE INDEX idx_title ON app_entry (title)"));
+        assertEquals("CREATE INDEX idx_title ON app_entry (title)", IndexDeferral.deferrable("# index\nCREATE INDEX idx_title ON app_entry (title)", true));
+    }
+}
@@ -0,0 +1,129 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class InsertCoalescingInputStreamTest
+{
+    private static String coalesce(String sql, int batchSize, int maxLength) throws IOException
+    {
+        try (InputStream in = new InsertCoalescingInputStream(new ByteArrayInputStream(sql.getBytes(StandardCharsets.UTF_8)), "test.sql", batchSize,
+                maxLength))
+        {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String coalesce(String sql) throws IOException
+    {
+        return coalesce(sql, 100, 100000);
+    }
+
+    @Test
+    public void testConsecutiveInsertsAreMerged() throws IOException
+    {
+        String sql = "INSERT INTO t (a, b) VALUES (1, 'x');\nINSERT INTO t (a, b)  values(2, 'y');\nINSERT INTO t (a, b) VALUES (3, 'z');\n"
+                + "insert into t (a, b) values (4, 'w');\n";
+        // the shared part must be written the same way
+        assertEquals("INSERT INTO t (a, b) VALUES (1, 'x'),\n(2, 'y'),\n(3, 'z');\ninsert into t (a, b) values (4, 'w');\n", coalesce(sql));
+    }
+
+    @Test
+    public void testSingleRowIsPassedThrough() throws IOException
+    {
+        String sql = "  INSERT INTO t   VALUES (1, 'x')  ;\nUPDATE t SET a = 2;\n";
+        assertEquals(sql, coalesce(sql));
+    }
+
+    @Test
+    public void testOtherStatementsEndTheGroup() throws IOException
+    {
+        String sql = "INSERT INTO t VALUES (1);\nINSERT INTO t VALUES (2);\nINSERT INTO u VALUES (3);\nINSERT INTO u VALUES (4);\n"
+                + "DELETE FROM t;\nINSERT INTO u VALUES (5);\nINSERT INTO u (a) VALUES (6);\n";
+        assertEquals("INSERT INTO t VALUES (1),\n(2);\nINSERT INTO u VALUES (3),\n(4);\nDELETE FROM t;\nINSERT INTO u VALUES (5);\n"
+                + "INSERT INTO u (a) VALUES (6);\n", coalesce(sql));
+    }
+
+    @Test
+    public void testQuotesAreEscapedByDoubling() throws IOException
+    {
+        String sql = "INSERT INTO t VALUES (1, 'it''s; (not) -- the end');\nINSERT INTO t VALUES (2, \"a \"\" b\", `c``d`);\n";
+        assertEquals("INSERT INTO t VALUES (1, 'it''s; (not) -- the end'),\n(2, \"a \"\" b\", `c``d`);\n", coalesce(sql));
+    }
+
+    @Test
+    public void testNestedParentheses() throws IOException
+    {
+        String sql = "INSERT INTO t VALUES (1, concat('a', upper(lower('b'))));\nINSERT INTO t VALUES ((2), 'c');\n";
+        assertEquals("INSERT INTO t VALUES (1, concat('a', upper(lower('b')))),\n((2), 'c');\n", coalesce(sql));
+    }
+
+    @Test
+    public void testCommentsAreLeftUntouched() throws IOException
+    {
+        String sql = "INSERT INTO t VALUES (1);\nINSERT INTO t VALUES (2); -- two\nINSERT INTO t VALUES (3 /* three */);\n"
+                + "INSERT INTO t VALUES (4); # four\nINSERT INTO t VALUES (5);\n";
+        assertEquals(sql, coalesce(sql));
+    }
+
+    @Test
+    public void testBackslashesAreLeftUntouched() throws IOException
+    {
+        String sql = "INSERT INTO t VALUES (1, 'a\\'b');\nINSERT INTO t VALUES (2, 'c');\nINSERT INTO t VALUES (3, 'd\\\\');\n";
+        assertEquals(sql, coalesce(sql));
+    }
+
+    @Test
+    public void testMultiLineAndMultiRowInsertsAreLeftUntouched() throws IOException
+    {
+        String sql = "INSERT INTO t VALUES (1);\nINSERT INTO t VALUES (2),(3);\nINSERT INTO t VALUES (4,\n5);\nINSERT INTO t VALUES (6)\n;\n";
+        assertEquals(sql, coalesce(sql));
+    }
+
+    @Test
+    public void testBatchSizeCap() throws IOException
+    {
+        String sql = "INSERT INTO t VALUES (1);\nINSERT INTO t VALUES (2);\nINSERT INTO t VALUES (3);\nINSERT INTO t VALUES (4);\n"
+                + "INSERT INTO t VALUES (5);\n";
+        assertEquals("INSERT INTO t VALUES (1),\n(2);\nINSERT INTO t VALUES (3),\n(4);\nINSERT INTO t VALUES (5);\n", coalesce(sql, 2, 100000));
+    }
+
+    @Test
+    public void testLengthCap() throws IOException
+    {
+        // "INSERT INTO t VALUES " and the final ";\n" take 23 chars, each "(n),\n" row 5 more
+        String sql = "INSERT INTO t VALUES (1);\nINSERT INTO t VALUES (2);\nINSERT INTO t VALUES (3);\n";
+        assertEquals("INSERT INTO t VALUES (1),\n(2);\nINSERT INTO t VALUES (3);\n", coalesce(sql, 100, 33));
+        assertEquals(sql, coalesce(sql, 100, 30));
+    }
+
+    @Test
+    public void testReadByByte() throws IOException
+    {
+        String sql = "INSERT INTO t VALUES ('é');\nINSERT INTO t VALUES ('è');\n";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new InsertCoalescingInputStream(new ByteArrayInputStream(sql.getBytes(StandardCharsets.UTF_8)), "test.sql", 100, 100000))
+        {
+            for (int b = in.read(); b != -1; b = in.read())
+                out.write(b);
+        }
+        assertEquals("INSERT INTO t VALUES ('é'),\n('è');\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testTuple()
+    {
+        assertEquals("(1, 'a')", InsertCoalescingInputStream.tuple("INSERT INTO t VALUES (1, 'a') ;", 21));
+        assertNull(InsertCoalescingInputStream.tuple("INSERT INTO t VALUES (1, 'a'); SELECT 1;", 21));
+        assertNull(InsertCoalescingInputStream.tuple("INSERT INTO t VALUES (1, 'a", 21));
+        assertNull(InsertCoalescingInputStream.tuple("INSERT INTO t VALUES (1, (2);", 21));
+    }
+}
@@ -0,0 +1,94 @@
+package fr.paris.lutece.plugins.liquibase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SqlStatementReaderTest
+{
+    private static List<String> statements(String sql, boolean backslashEscapes, boolean dollarQuotes) throws IOException
+    {
+        List<String> statements = new ArrayList<>();
+        try (SqlStatementReader reader = new SqlStatementReader(new StringReader(sql), backslashEscapes, dollarQuotes))
+        {
+            for (String statement = reader.next(); statement != null; statement = reader.next())
+                statements.add(statement);
+            assertNull(reader.getError());
+        }
+        return statements;
+    }
+
+    private static List<String> statements(String sql) throws IOException
+    {
+        return statements(sql, false, false);
+    }
+
+    @Test
+    public void testStatementsAreSplitOnSemicolons() throws IOException
+    {
+        String sql = "CREATE TABLE t (a INT);\nINSERT INTO t VALUES (1); INSERT INTO t VALUES (2);\nUPDATE t\nSET a = 3\n;\nDELETE FROM t";
+        assertEquals(Arrays.asList("CREATE TABLE t (a INT)", "INSERT INTO t VALUES (1)", "INSERT INTO t VALUES (2)", "UPDATE t\nSET a = 3", "DELETE FROM t"),
+                statements(sql));
+    }
+
+    @Test
+    public void testSemicolonsInQuotesAreKept() throws IOException
+    {
+        String sql = "INSERT INTO t VALUES ('a;b', 'it''s;');\nINSERT INTO \"t;u\" VALUES (`c;d`);\nINSERT INTO t VALUES ('multi\nline;');\n";
+        assertEquals(Arrays.asList("INSERT INTO t VALUES ('a;b', 'it''s;')", "INSERT INTO \"t;u\" VALUES (`c;d`)", "INSERT INTO t VALUES ('multi\nline;')"),
+                statements(sql));
+    }
+
+    @Test
+    public void testCommentsAreKeptWithTheirStatement() throws IOException
+    {
+        String sql = "-- header; comment\n/* block;\ncomment */\nINSERT INTO t VALUES (1); -- trailing; comment\nINSERT INTO t /* a; */ VALUES (2);\n"
+                + "-- only comments;\n";
+        assertEquals(Arrays.asList("-- header; comment\n/* block;\ncomment */\nINSERT INTO t VALUES (1)", "-- trailing; comment\nINSERT INTO t /* a; */ VALUES (2)"),
+                statements(sql));
+    }
+
+    @Test
+    public void testBackslashEscapes() throws IOException
+    {
+        String sql = "INSERT INTO t VALUES ('a\\';b');\nINSERT INTO t VALUES (2); # hash; comment\n";
+        assertEquals(Arrays.asList("INSERT INTO t VALUES ('a\\';b')", "INSERT INTO t VALUES (2)"), statements(sql, true, false));
+        // without, a hash is not a comment
+        assertEquals(Arrays.asList("SELECT a #b", "SELECT 2"), statements("SELECT a #b; SELECT 2;\n"));
+    }
+
+    @Test
+    public void testDollarQuotes() throws IOException
+    {
+        String sql = "CREATE FUNCTION f() RETURNS INT AS $body$ BEGIN RETURN 1; END; $body$ LANGUAGE plpgsql;\nSELECT $$a;b$$;\nSELECT 1 AS a$b;\n";
+        assertEquals(Arrays.asList("CREATE FUNCTION f() RETURNS INT AS $body$ BEGIN RETURN 1; END; $body$ LANGUAGE plpgsql", "SELECT $$a;b$$", "SELECT 1 AS a$b"),
+                statements(sql, false, true));
+    }
+
+    @Test
+    public void testUnterminatedText() throws IOException
+    {
+        try (SqlStatementReader reader = new SqlStatementReader(new StringReader("INSERT INTO t VALUES (1);\nINSERT INTO t VALUES ('a;\n\n"), false, false))
+        {
+            assertEquals("INSERT INTO t VALUES (1)", reader.next());
+            assertNull(reader.getError());
+            assertEquals("INSERT INTO t VALUES ('a;", reader.next());
+            assertNull(reader.next());
+            assertEquals("unterminated ' quoted text starting line 2", reader.getError());
+            assertEquals(3, reader.getLineCount());
+        }
+        try (SqlStatementReader reader = new SqlStatementReader(new StringReader("SELECT 1;\n/* open"), false, false))
+        {
+            assertEquals("SELECT 1", reader.next());
+            assertNull(reader.next());
+            assertEquals("unterminated comment starting line 2", reader.getError());
+        }
+    }
+}